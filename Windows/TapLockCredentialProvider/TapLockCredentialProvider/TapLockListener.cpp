@@ -122,9 +122,14 @@ DWORD WINAPI TapLockListener::ListenThread(void* Param)
 			send(clientSocket, TAPLOCK_VERSION, 1, 0);
 			char recvbuf[BUFLEN];
 			int readBytes;
+			// keep the connection open, the server sends each unlock as another credential block
 			do
 			{
-				readBytes = recv(clientSocket, recvbuf, BUFLEN, 0);
+				// a block may arrive in pieces
+				readBytes = 0;
+				int chunkBytes = 0;
+				while ((readBytes < BUFLEN) && ((chunkBytes = recv(clientSocket, recvbuf + readBytes, BUFLEN - readBytes, 0)) > 0))
+					readBytes += chunkBytes;
 				// only receiving credentials
 				if (readBytes == BUFLEN)
 				{
@@ -166,10 +171,16 @@ DWORD WINAPI TapLockListener::ListenThread(void* Param)
 					{
 						send(clientSocket, BAD_SOCKET_REQUEST, 1, 0);
 					}
-					readBytes = -1;
+					SecureZeroMemory(recvbuf, BUFLEN);
+					SecureZeroMemory(cPassword, PASSLEN);
 				}
 				else
-					send(clientSocket, BAD_SOCKET_REQUEST, 1, 0);
+				{
+					// the server closed the connection, possibly part way through a block
+					if (readBytes > 0)
+						send(clientSocket, BAD_SOCKET_REQUEST, 1, 0);
+					readBytes = -1;
+				}
 			}
 			while (readBytes > 0);
 		}
@@ -101,6 +101,23 @@ this.cancelRequest();
 reply.writeNoException();
 return true;
 }
+case TRANSACTION_getRequestState:
+{
+data.enforceInterface(DESCRIPTOR);
+java.lang.String _arg0;
+_arg0 = data.readString();
+int _result = this.getRequestState(_arg0);
+reply.writeNoException();
+reply.writeInt(_result);
+return true;
+}
+case TRANSACTION_lockAll:
+{
+data.enforceInterface(DESCRIPTOR);
+this.lockAll();
+reply.writeNoException();
+return true;
+}
 }
 return super.onTransact(code, data, reply, flags);
 }
@@ -222,6 +239,38 @@ _reply.recycle();
 _data.recycle();
 }
 }
+public int getRequestState(java.lang.String address) throws android.os.RemoteException
+{
+android.os.Parcel _data = android.os.Parcel.obtain();
+android.os.Parcel _reply = android.os.Parcel.obtain();
+int _result;
+try {
+_data.writeInterfaceToken(DESCRIPTOR);
+_data.writeString(address);
+mRemote.transact(Stub.TRANSACTION_getRequestState, _data, _reply, 0);
+_reply.readException();
+_result = _reply.readInt();
+}
+finally {
+_reply.recycle();
+_data.recycle();
+}
+return _result;
+}
+public void lockAll() throws android.os.RemoteException
+{
+android.os.Parcel _data = android.os.Parcel.obtain();
+android.os.Parcel _reply = android.os.Parcel.obtain();
+try {
+_data.writeInterfaceToken(DESCRIPTOR);
+mRemote.transact(Stub.TRANSACTION_lockAll, _data, _reply, 0);
+_reply.readException();
+}
+finally {
+_reply.recycle();
+_data.recycle();
+}
+}
 }
 static final int TRANSACTION_setCallback = (android.os.IBinder.FIRST_CALL_TRANSACTION + 0);
 static final int TRANSACTION_write = (android.os.IBinder.FIRST_CALL_TRANSACTION + 1);
@@ -230,6 +279,8 @@ static final int TRANSACTION_pairDevice = (android.os.IBinder.FIRST_CALL_TRANSAC
 static final int TRANSACTION_stop = (android.os.IBinder.FIRST_CALL_TRANSACTION + 4);
 static final int TRANSACTION_enableBluetooth = (android.os.IBinder.FIRST_CALL_TRANSACTION + 5);
 static final int TRANSACTION_cancelRequest = (android.os.IBinder.FIRST_CALL_TRANSACTION + 6);
+static final int TRANSACTION_getRequestState = (android.os.IBinder.FIRST_CALL_TRANSACTION + 7);
+static final int TRANSACTION_lockAll = (android.os.IBinder.FIRST_CALL_TRANSACTION + 8);
 }
 public void setCallback(android.os.IBinder uiBinder) throws android.os.RemoteException;
 public void write(java.lang.String address, java.lang.String action, java.lang.String passphrase) throws android.os.RemoteException;
@@ -238,4 +289,6 @@ public void pairDevice(java.lang.String address) throws android.os.RemoteExcepti
 public void stop() throws android.os.RemoteException;
 public void enableBluetooth() throws android.os.RemoteException;
 public void cancelRequest() throws android.os.RemoteException;
+public int getRequestState(java.lang.String address) throws android.os.RemoteException;
+public void lockAll() throws android.os.RemoteException;
 }
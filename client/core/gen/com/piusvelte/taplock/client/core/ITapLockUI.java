@@ -105,6 +105,36 @@ this.setBluetoothEnabled();
 reply.writeNoException();
 return true;
 }
+case TRANSACTION_setConnectionAttempt:
+{
+data.enforceInterface(DESCRIPTOR);
+java.lang.String _arg0;
+_arg0 = data.readString();
+int _arg1;
+_arg1 = data.readInt();
+int _arg2;
+_arg2 = data.readInt();
+boolean _arg3;
+_arg3 = (0!=data.readInt());
+long _arg4;
+_arg4 = data.readLong();
+long _arg5;
+_arg5 = data.readLong();
+this.setConnectionAttempt(_arg0, _arg1, _arg2, _arg3, _arg4, _arg5);
+reply.writeNoException();
+return true;
+}
+case TRANSACTION_setLockResult:
+{
+data.enforceInterface(DESCRIPTOR);
+java.lang.String _arg0;
+_arg0 = data.readString();
+boolean _arg1;
+_arg1 = (0!=data.readInt());
+this.setLockResult(_arg0, _arg1);
+reply.writeNoException();
+return true;
+}
 }
 return super.onTransact(code, data, reply, flags);
 }
@@ -228,6 +258,42 @@ _reply.recycle();
 _data.recycle();
 }
 }
+public void setConnectionAttempt(java.lang.String address, int attempt, int attempts, boolean connected, long duration, long delay) throws android.os.RemoteException
+{
+android.os.Parcel _data = android.os.Parcel.obtain();
+android.os.Parcel _reply = android.os.Parcel.obtain();
+try {
+_data.writeInterfaceToken(DESCRIPTOR);
+_data.writeString(address);
+_data.writeInt(attempt);
+_data.writeInt(attempts);
+_data.writeInt(((connected)?(1):(0)));
+_data.writeLong(duration);
+_data.writeLong(delay);
+mRemote.transact(Stub.TRANSACTION_setConnectionAttempt, _data, _reply, 0);
+_reply.readException();
+}
+finally {
+_reply.recycle();
+_data.recycle();
+}
+}
+public void setLockResult(java.lang.String address, boolean pass) throws android.os.RemoteException
+{
+android.os.Parcel _data = android.os.Parcel.obtain();
+android.os.Parcel _reply = android.os.Parcel.obtain();
+try {
+_data.writeInterfaceToken(DESCRIPTOR);
+_data.writeString(address);
+_data.writeInt(((pass)?(1):(0)));
+mRemote.transact(Stub.TRANSACTION_setLockResult, _data, _reply, 0);
+_reply.readException();
+}
+finally {
+_reply.recycle();
+_data.recycle();
+}
+}
 }
 static final int TRANSACTION_setMessage = (android.os.IBinder.FIRST_CALL_TRANSACTION + 0);
 static final int TRANSACTION_setUnpairedDevice = (android.os.IBinder.FIRST_CALL_TRANSACTION + 1);
@@ -236,6 +302,8 @@ static final int TRANSACTION_setStateFinished = (android.os.IBinder.FIRST_CALL_T
 static final int TRANSACTION_setPairingResult = (android.os.IBinder.FIRST_CALL_TRANSACTION + 4);
 static final int TRANSACTION_setPassphrase = (android.os.IBinder.FIRST_CALL_TRANSACTION + 5);
 static final int TRANSACTION_setBluetoothEnabled = (android.os.IBinder.FIRST_CALL_TRANSACTION + 6);
+static final int TRANSACTION_setConnectionAttempt = (android.os.IBinder.FIRST_CALL_TRANSACTION + 7);
+static final int TRANSACTION_setLockResult = (android.os.IBinder.FIRST_CALL_TRANSACTION + 8);
 }
 public void setMessage(java.lang.String message) throws android.os.RemoteException;
 public void setUnpairedDevice(java.lang.String device) throws android.os.RemoteException;
@@ -244,4 +312,6 @@ public void setStateFinished(boolean pass) throws android.os.RemoteException;
 public void setPairingResult(java.lang.String name, java.lang.String address) throws android.os.RemoteException;
 public void setPassphrase(java.lang.String address, java.lang.String passphrase) throws android.os.RemoteException;
 public void setBluetoothEnabled() throws android.os.RemoteException;
+public void setConnectionAttempt(java.lang.String address, int attempt, int attempts, boolean connected, long duration, long delay) throws android.os.RemoteException;
+public void setLockResult(java.lang.String address, boolean pass) throws android.os.RemoteException;
 }
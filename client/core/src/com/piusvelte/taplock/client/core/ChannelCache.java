@@ -0,0 +1,110 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * The RFCOMM channel each server was last found on, so the next connect can go
+ * straight to the channel instead of waiting on an SDP search for the Tap Lock
+ * service. A channel is dropped as soon as connecting to it fails. Kept in its
+ * own preferences, apart from the backed up ones, as it's only a hint.
+ */
+public class ChannelCache {
+	private static final String TAG = "ChannelCache";
+	private static final String KEY_CHANNELS = "channels";
+	private static final int NO_CHANNEL = -1;
+	private final SharedPreferences mPrefs;
+
+	public ChannelCache(Context context) {
+		mPrefs = context.getSharedPreferences(KEY_CHANNELS, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return the server's channel, or -1 if it isn't known
+	 */
+	public int get(String address) {
+		return mPrefs.getInt(address, NO_CHANNEL);
+	}
+
+	/**
+	 * Remember the channel a socket from an SDP search connected on.
+	 */
+	public void put(String address, BluetoothSocket socket) {
+		int channel = getChannel(socket);
+		if ((channel > 0) && (channel != get(address)))
+			mPrefs.edit().putInt(address, channel).apply();
+	}
+
+	/**
+	 * Take a channel from a tag, unless one's already known.
+	 */
+	public void suggest(String address, int channel) {
+		if ((channel > 0) && (get(address) == NO_CHANNEL))
+			mPrefs.edit().putInt(address, channel).apply();
+	}
+
+	public void invalidate(String address) {
+		if (mPrefs.contains(address))
+			mPrefs.edit().remove(address).apply();
+	}
+
+	/**
+	 * createRfcommSocket(int) is hidden, so it's looked up, and null returned if
+	 * this platform doesn't have it.
+	 */
+	public static BluetoothSocket createRfcommSocket(BluetoothDevice device, int channel) {
+		try {
+			Method method = device.getClass().getMethod("createRfcommSocket", int.class);
+			return (BluetoothSocket) method.invoke(device, channel);
+		} catch (NoSuchMethodException e) {
+			Log.e(TAG, e.toString());
+		} catch (IllegalAccessException e) {
+			Log.e(TAG, e.toString());
+		} catch (InvocationTargetException e) {
+			Log.e(TAG, e.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the channel the connected socket resolved, from its hidden mPort, or -1
+	 */
+	private static int getChannel(BluetoothSocket socket) {
+		try {
+			Field port = BluetoothSocket.class.getDeclaredField("mPort");
+			port.setAccessible(true);
+			return port.getInt(socket);
+		} catch (NoSuchFieldException e) {
+			Log.e(TAG, e.toString());
+		} catch (IllegalAccessException e) {
+			Log.e(TAG, e.toString());
+		}
+		return NO_CHANNEL;
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import static com.piusvelte.taplock.client.core.TapLock.PROTOCOL_VERSION_LEGACY;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Keeps the connection to each server open after a request, the server answers
+ * any number of requests on one connection, so the next request within the idle
+ * timeout skips the RFCOMM connect and the wait for a challenge. Connections are
+ * taken by one ConnectThread at a time, and closed after sitting idle, or by
+ * {@link #closeAll()}.
+ */
+public class ConnectionManager {
+	private static final String TAG = "ConnectionManager";
+	// close before the server's idle timeout does, so a request never races it
+	private static final long SERVER_IDLE_MARGIN = 5000L;
+	private final Handler mHandler;
+	private final Runnable mOnIdleClosed;
+	private final HashMap<String, Connection> mConnections = new HashMap<String, Connection>();
+	private long mIdleTimeout;
+
+	/**
+	 * @param onIdleClosed posted to the handler after an idle connection is closed
+	 */
+	public ConnectionManager(Handler handler, long idleTimeout, Runnable onIdleClosed) {
+		mHandler = handler;
+		mIdleTimeout = idleTimeout;
+		mOnIdleClosed = onIdleClosed;
+	}
+
+	/**
+	 * @param idleTimeout in milliseconds, 0 closes each connection after its request
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		mIdleTimeout = idleTimeout;
+		if (mIdleTimeout <= 0)
+			closeAll();
+	}
+
+	/**
+	 * @return the open connection to the server, which the caller then owns, or null
+	 */
+	public synchronized Connection take(String address) {
+		Connection connection = mConnections.remove(address);
+		if (connection != null)
+			mHandler.removeCallbacks(connection.mIdleCloser);
+		return connection;
+	}
+
+	/**
+	 * Keep the connection for the next request, if it has a challenge to answer,
+	 * otherwise close it. It's kept no longer than the server keeps it.
+	 */
+	public synchronized void release(Connection connection) {
+		long idleTimeout = mIdleTimeout;
+		if (connection.getServerIdleTimeout() > 0)
+			idleTimeout = Math.min(idleTimeout, connection.getServerIdleTimeout() - SERVER_IDLE_MARGIN);
+		if ((idleTimeout <= 0) || (connection.getChallenge() == null)) {
+			connection.close();
+			return;
+		}
+		Connection previous = mConnections.put(connection.getAddress(), connection);
+		if ((previous != null) && (previous != connection)) {
+			mHandler.removeCallbacks(previous.mIdleCloser);
+			previous.close();
+		}
+		mHandler.postDelayed(connection.mIdleCloser, idleTimeout);
+	}
+
+	public synchronized void closeAll() {
+		for (Connection connection : mConnections.values()) {
+			mHandler.removeCallbacks(connection.mIdleCloser);
+			connection.close();
+		}
+		mConnections.clear();
+	}
+
+	/**
+	 * @return a new connection over the connected socket, for the caller to release
+	 */
+	public Connection open(String address, BluetoothSocket socket) throws IOException {
+		return new Connection(address, socket);
+	}
+
+	public synchronized boolean isEmpty() {
+		return mConnections.isEmpty();
+	}
+
+	private synchronized void closeIdle(Connection connection) {
+		// it may have been taken for another request since this was posted
+		if (mConnections.get(connection.getAddress()) == connection) {
+			mConnections.remove(connection.getAddress());
+			connection.close();
+			mHandler.post(mOnIdleClosed);
+		}
+	}
+
+	/**
+	 * An open connection to a server, and the challenge from its last reply,
+	 * which the server accepts for the next request on this connection.
+	 */
+	public class Connection {
+		private final String mAddress;
+		private final BluetoothSocket mSocket;
+		private final InputStream mInStream;
+		private final OutputStream mOutStream;
+		private final MessageFramer mFramer;
+		private String mChallenge = null;
+		private int mServerVersion = PROTOCOL_VERSION_LEGACY;
+		private long mServerIdleTimeout = 0;
+		private final Runnable mIdleCloser = new Runnable() {
+
+			@Override
+			public void run() {
+				closeIdle(Connection.this);
+			}
+		};
+
+		private Connection(String address, BluetoothSocket socket) throws IOException {
+			mAddress = address;
+			mSocket = socket;
+			mInStream = socket.getInputStream();
+			mOutStream = socket.getOutputStream();
+			mFramer = new MessageFramer(mInStream, mOutStream);
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		public MessageFramer getFramer() {
+			return mFramer;
+		}
+
+		public String getChallenge() {
+			return mChallenge;
+		}
+
+		public int getServerVersion() {
+			return mServerVersion;
+		}
+
+		public void setChallenge(String challenge, int serverVersion) {
+			mChallenge = challenge;
+			mServerVersion = serverVersion;
+		}
+
+		/**
+		 * @return how long the server keeps the connection waiting for a request, in milliseconds, or 0 if it doesn't say
+		 */
+		public long getServerIdleTimeout() {
+			return mServerIdleTimeout;
+		}
+
+		public void setServerIdleTimeout(long serverIdleTimeout) {
+			mServerIdleTimeout = serverIdleTimeout;
+		}
+
+		/**
+		 * @return the challenge, which is cleared as it's only good for one request
+		 */
+		public String takeChallenge() {
+			String challenge = mChallenge;
+			mChallenge = null;
+			return challenge;
+		}
+
+		public void close() {
+			try {
+				mInStream.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+			try {
+				mOutStream.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+		}
+	}
+}
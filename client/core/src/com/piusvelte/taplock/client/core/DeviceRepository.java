@@ -0,0 +1,329 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import static com.piusvelte.taplock.client.core.TapLock.KEY_DEVICES;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_PREFS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The configured devices, shared by the service and activities in the
+ * process. They're loaded once, on the {@link DeviceStore}'s writer thread,
+ * starting when the application's created, and reads wait for that to finish.
+ * The main thread shouldn't wait on the disk, so it defers its work with
+ * {@link #whenLoaded(Runnable)} instead. Then they're looked up by address, name or widget id without a scan. Changes
+ * update the indexes, are queued for the store to write in the background, and
+ * listeners are told on the main thread.
+ */
+public class DeviceRepository {
+	private static final String TAG = "DeviceRepository";
+	private static DeviceRepository sInstance = null;
+	private final Context mContext;
+	private final DeviceStore mStore;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// in the order they were added, for lists
+	private final LinkedHashMap<String, TapLockDevice> mByAddress = new LinkedHashMap<String, TapLockDevice>();
+	private final HashMap<String, TapLockDevice> mByName = new HashMap<String, TapLockDevice>();
+	private final HashMap<Integer, TapLockDevice> mByWidget = new HashMap<Integer, TapLockDevice>();
+	private final ArrayList<OnDevicesChangedListener> mListeners = new ArrayList<OnDevicesChangedListener>();
+	private boolean mLoaded = false;
+	private final ArrayList<Runnable> mWhenLoaded = new ArrayList<Runnable>();
+	// only touched on the main thread, set once the runnables waiting for the load have run
+	private boolean mReady = false;
+	private final Runnable mRunWhenLoaded = new Runnable() {
+
+		@Override
+		public void run() {
+			ArrayList<Runnable> runnables;
+			synchronized (DeviceRepository.this) {
+				runnables = new ArrayList<Runnable>(mWhenLoaded);
+				mWhenLoaded.clear();
+			}
+			mReady = true;
+			for (Runnable runnable : runnables)
+				runnable.run();
+		}
+	};
+
+	public interface OnDevicesChangedListener {
+		void onDevicesChanged();
+	}
+
+	private DeviceRepository(Context context) {
+		mContext = context;
+		mStore = new DeviceStore(context);
+		// keep the disk off the main thread
+		mStore.post(new Runnable() {
+
+			@Override
+			public void run() {
+				load();
+			}
+		});
+	}
+
+	private synchronized void load() {
+		for (TapLockDevice device : mStore.load())
+			index(device);
+		// devices stored in the preferences before the journal, or restored there from an older backup
+		final SharedPreferences sp = mContext.getSharedPreferences(KEY_PREFS, Context.MODE_PRIVATE);
+		Set<String> devices = sp.getStringSet(KEY_DEVICES, null);
+		if (devices != null) {
+			for (String device : devices) {
+				try {
+					TapLockDevice tapLockDevice = TapLockDevice.fromJSONObject(new JSONObject(device));
+					TapLockDevice existing = mByAddress.get(tapLockDevice.getAddress());
+					if (existing != null)
+						unindexLookups(existing);
+					index(tapLockDevice);
+					mStore.put(tapLockDevice);
+				} catch (JSONException e) {
+					Log.e(TAG, e.toString());
+				}
+			}
+			// only drop them once they're safely in the journal
+			mStore.afterFlush(new Runnable() {
+
+				@Override
+				public void run() {
+					sp.edit().remove(KEY_DEVICES).commit();
+				}
+			});
+		}
+		mLoaded = true;
+		notifyAll();
+		mHandler.post(mRunWhenLoaded);
+	}
+
+	/**
+	 * Block until the devices are loaded, call holding the lock.
+	 */
+	private void waitForLoad() {
+		boolean interrupted = false;
+		while (!mLoaded) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public static synchronized DeviceRepository getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new DeviceRepository(context.getApplicationContext());
+		return sInstance;
+	}
+
+	public synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * Call on the main thread, to run there once the devices are loaded. It runs
+	 * now if they are, otherwise after anything that was waiting before it. A
+	 * runnable that's already waiting isn't added again.
+	 */
+	public void whenLoaded(Runnable runnable) {
+		if (!mReady) {
+			synchronized (this) {
+				if (!mWhenLoaded.contains(runnable))
+					mWhenLoaded.add(runnable);
+			}
+			return;
+		}
+		runnable.run();
+	}
+
+	public synchronized TapLockDevice getByAddress(String address) {
+		waitForLoad();
+		return mByAddress.get(address);
+	}
+
+	public synchronized TapLockDevice getByName(String name) {
+		waitForLoad();
+		return mByName.get(name);
+	}
+
+	public synchronized TapLockDevice getByWidget(int widgetId) {
+		waitForLoad();
+		return mByWidget.get(widgetId);
+	}
+
+	/**
+	 * @return a copy of the devices, in the order they were added
+	 */
+	public synchronized ArrayList<TapLockDevice> getDevices() {
+		waitForLoad();
+		return new ArrayList<TapLockDevice>(mByAddress.values());
+	}
+
+	public synchronized int size() {
+		waitForLoad();
+		return mByAddress.size();
+	}
+
+	/**
+	 * @return false if there's already a device with the address
+	 */
+	public boolean add(TapLockDevice device) {
+		synchronized (this) {
+			waitForLoad();
+			if (mByAddress.containsKey(device.getAddress()))
+				return false;
+			index(device);
+			mStore.put(device);
+		}
+		changed();
+		return true;
+	}
+
+	public void remove(String address) {
+		synchronized (this) {
+			waitForLoad();
+			TapLockDevice device = mByAddress.get(address);
+			if (device == null)
+				return;
+			unindex(device);
+			mStore.remove(address);
+		}
+		changed();
+	}
+
+	public void setPassphrase(String address, String passphrase) {
+		synchronized (this) {
+			waitForLoad();
+			TapLockDevice device = mByAddress.get(address);
+			if ((device == null) || passphrase.equals(device.getPassphrase()))
+				return;
+			replace(device, device.withPassphrase(passphrase));
+		}
+		changed();
+	}
+
+	/**
+	 * @return false if there's no device with the name
+	 */
+	public boolean addWidget(String name, int widgetId) {
+		synchronized (this) {
+			waitForLoad();
+			TapLockDevice device = mByName.get(name);
+			if (device == null)
+				return false;
+			// a widget belongs to one device
+			TapLockDevice previous = mByWidget.get(widgetId);
+			if ((previous != null) && (previous != device)) {
+				replace(previous, previous.withoutWidget(widgetId));
+				device = mByAddress.get(device.getAddress());
+			}
+			replace(device, device.withWidget(widgetId));
+		}
+		changed();
+		return true;
+	}
+
+	/**
+	 * Remove the widgets from their devices, storing and notifying once for them all.
+	 */
+	public void removeWidgets(int... widgetIds) {
+		boolean removed = false;
+		synchronized (this) {
+			waitForLoad();
+			for (int widgetId : widgetIds) {
+				TapLockDevice device = mByWidget.get(widgetId);
+				if (device != null) {
+					replace(device, device.withoutWidget(widgetId));
+					removed = true;
+				}
+			}
+		}
+		if (removed)
+			changed();
+	}
+
+	public synchronized void addListener(OnDevicesChangedListener listener) {
+		if (!mListeners.contains(listener))
+			mListeners.add(listener);
+	}
+
+	public synchronized void removeListener(OnDevicesChangedListener listener) {
+		mListeners.remove(listener);
+	}
+
+	private void index(TapLockDevice device) {
+		mByAddress.put(device.getAddress(), device);
+		mByName.put(device.getName(), device);
+		for (int widgetId : device.getWidgets())
+			mByWidget.put(widgetId, device);
+	}
+
+	private void unindex(TapLockDevice device) {
+		mByAddress.remove(device.getAddress());
+		unindexLookups(device);
+	}
+
+	private void unindexLookups(TapLockDevice device) {
+		if (mByName.get(device.getName()) == device)
+			mByName.remove(device.getName());
+		for (int widgetId : device.getWidgets()) {
+			if (mByWidget.get(widgetId) == device)
+				mByWidget.remove(widgetId);
+		}
+	}
+
+	private void replace(TapLockDevice device, TapLockDevice replacement) {
+		if (replacement == device)
+			return;
+		// putting over the address keeps the device's place in the order
+		unindexLookups(device);
+		index(replacement);
+		mStore.put(replacement);
+	}
+
+	private void changed() {
+		final ArrayList<OnDevicesChangedListener> listeners;
+		synchronized (this) {
+			listeners = new ArrayList<OnDevicesChangedListener>(mListeners);
+		}
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				for (OnDevicesChangedListener listener : listeners)
+					listener.onDevicesChanged();
+			}
+		});
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.app.backup.BackupManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Keeps the devices in a journal file, appending a record for each device
+ * that's changed or removed rather than rewriting them all. Changes are queued
+ * and written on a background thread, a burst of them, like a home screen
+ * adding many widgets, is coalesced into one append and one sync. When the
+ * journal grows well past the devices it describes it's compacted, by writing
+ * them to a new file that replaces it.
+ * <p>
+ * The file is a 4 byte magic and a version byte, then records of an op byte,
+ * a 2 byte payload length, the payload and a CRC32 of the op and payload. A
+ * record that's torn or doesn't match its CRC ends the journal, and is cut off
+ * before the next append.
+ */
+public class DeviceStore {
+	private static final String TAG = "DeviceStore";
+	public static final String FILE_NAME = "devices.journal";
+	private static final int MAGIC = 0x544c444a;
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 5;
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	// give a burst of changes a moment to arrive before writing
+	private static final long FLUSH_DELAY = 100L;
+	private static final long RETRY_DELAY = 5000L;
+	private final Context mContext;
+	private final File mFile;
+	private final Handler mHandler;
+	// only touched on the writer thread, after load
+	private final LinkedHashMap<String, TapLockDevice> mDevices = new LinkedHashMap<String, TapLockDevice>();
+	private int mRecords = 0;
+	private long mValidLength = 0;
+	// a failed write left mDevices ahead of the file, only touched on the writer thread
+	private boolean mDirty = false;
+	// address to device, or null to remove it
+	private final LinkedHashMap<String, TapLockDevice> mPending = new LinkedHashMap<String, TapLockDevice>();
+	private final ArrayList<Runnable> mAfterFlush = new ArrayList<Runnable>();
+	private boolean mFlushScheduled = false;
+	private final Runnable mFlush = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public DeviceStore(Context context) {
+		mContext = context;
+		mFile = new File(context.getFilesDir(), FILE_NAME);
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Run on the writer thread, ahead of any flush queued after it.
+	 */
+	public void post(Runnable runnable) {
+		mHandler.post(runnable);
+	}
+
+	/**
+	 * Replay the journal, call once on the writer thread before queuing any changes.
+	 * @return the devices, in the order they were first stored
+	 */
+	public Collection<TapLockDevice> load() {
+		mDevices.clear();
+		mRecords = 0;
+		mValidLength = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if ((in.readInt() != MAGIC) || (in.readByte() != VERSION))
+				Log.e(TAG, "unrecognized journal, starting over");
+			else {
+				mValidLength = HEADER_LENGTH;
+				CRC32 crc = new CRC32();
+				while (true) {
+					byte op = in.readByte();
+					byte[] payload = new byte[in.readUnsignedShort()];
+					in.readFully(payload);
+					crc.reset();
+					crc.update(op);
+					crc.update(payload);
+					if ((int) crc.getValue() != in.readInt()) {
+						Log.e(TAG, "bad record at " + mValidLength);
+						break;
+					}
+					apply(op, new DataInputStream(new ByteArrayInputStream(payload)));
+					mRecords++;
+					mValidLength += 1 + 2 + payload.length + 4;
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// nothing stored yet
+		} catch (EOFException e) {
+			// the end, or a torn record
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					Log.e(TAG, e.toString());
+				}
+			}
+		}
+		return new ArrayList<TapLockDevice>(mDevices.values());
+	}
+
+	public void put(TapLockDevice device) {
+		queue(device.getAddress(), device);
+	}
+
+	public void remove(String address) {
+		queue(address, null);
+	}
+
+	/**
+	 * Run on the writer thread once the changes queued so far are written, a
+	 * failed write holds it back until a retry succeeds.
+	 */
+	public void afterFlush(Runnable runnable) {
+		synchronized (mPending) {
+			mAfterFlush.add(runnable);
+			scheduleFlush();
+		}
+	}
+
+	private void queue(String address, TapLockDevice device) {
+		synchronized (mPending) {
+			// a later change to the same device replaces the earlier one
+			mPending.remove(address);
+			mPending.put(address, device);
+			scheduleFlush();
+		}
+	}
+
+	private void scheduleFlush() {
+		if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			mHandler.postDelayed(mFlush, FLUSH_DELAY);
+		}
+	}
+
+	private void flush() {
+		LinkedHashMap<String, TapLockDevice> changes;
+		ArrayList<Runnable> afterFlush;
+		synchronized (mPending) {
+			changes = new LinkedHashMap<String, TapLockDevice>(mPending);
+			mPending.clear();
+			afterFlush = new ArrayList<Runnable>(mAfterFlush);
+			mAfterFlush.clear();
+			mFlushScheduled = false;
+		}
+		if ((!changes.isEmpty() || mDirty) && !write(changes)) {
+			// the changes are in mDevices, and the retry compacts them all into a new file,
+			// even if nothing else has changed by then
+			mDirty = true;
+			synchronized (mPending) {
+				mAfterFlush.addAll(0, afterFlush);
+				if (!mFlushScheduled) {
+					mFlushScheduled = true;
+					mHandler.postDelayed(mFlush, RETRY_DELAY);
+				}
+			}
+			return;
+		}
+		for (Runnable runnable : afterFlush)
+			runnable.run();
+	}
+
+	/**
+	 * @return true if the changes are synced to the file
+	 */
+	private boolean write(LinkedHashMap<String, TapLockDevice> changes) {
+		for (Map.Entry<String, TapLockDevice> change : changes.entrySet()) {
+			if (change.getValue() == null)
+				mDevices.remove(change.getKey());
+			else
+				mDevices.put(change.getKey(), change.getValue());
+		}
+		try {
+			if ((mValidLength == 0) || (mRecords + changes.size() > 2 * mDevices.size() + 32))
+				compact();
+			else {
+				// cut off anything torn by an earlier crash, then append
+				if (mFile.length() != mValidLength) {
+					RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+					try {
+						file.setLength(mValidLength);
+					} finally {
+						file.close();
+					}
+				}
+				FileOutputStream fos = new FileOutputStream(mFile, true);
+				try {
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+					for (Map.Entry<String, TapLockDevice> change : changes.entrySet())
+						mValidLength += writeRecord(out, change.getKey(), change.getValue());
+					out.flush();
+					fos.getFD().sync();
+				} finally {
+					fos.close();
+				}
+				mRecords += changes.size();
+			}
+			mDirty = false;
+			(new BackupManager(mContext)).dataChanged();
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+			// the file's state is unknown, so the next flush rewrites it
+			mValidLength = 0;
+		}
+		return false;
+	}
+
+	// write the devices to a new journal, and swap it in
+	private void compact() throws IOException {
+		File tmp = new File(mFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		long length = HEADER_LENGTH;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			for (TapLockDevice device : mDevices.values())
+				length += writeRecord(out, device.getAddress(), device);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(mFile))
+			throw new IOException("failed to replace " + mFile.getPath());
+		mRecords = mDevices.size();
+		mValidLength = length;
+	}
+
+	/**
+	 * @return the bytes written
+	 */
+	private static int writeRecord(DataOutputStream out, String address, TapLockDevice device) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream payloadOut = new DataOutputStream(bytes);
+		byte op;
+		if (device == null) {
+			op = OP_REMOVE;
+			payloadOut.writeUTF(address);
+		} else {
+			op = OP_PUT;
+			payloadOut.writeUTF(address);
+			payloadOut.writeUTF(device.getName());
+			payloadOut.writeUTF(device.getPassphrase());
+			int[] widgets = device.getWidgets();
+			payloadOut.writeShort(widgets.length);
+			for (int widgetId : widgets)
+				payloadOut.writeInt(widgetId);
+		}
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(op);
+		crc.update(payload);
+		out.writeByte(op);
+		out.writeShort(payload.length);
+		out.write(payload);
+		out.writeInt((int) crc.getValue());
+		return 1 + 2 + payload.length + 4;
+	}
+
+	private void apply(byte op, DataInputStream payload) throws IOException {
+		String address = payload.readUTF();
+		if (op == OP_REMOVE)
+			mDevices.remove(address);
+		else if (op == OP_PUT) {
+			String name = payload.readUTF();
+			String passphrase = payload.readUTF();
+			int[] widgets = new int[payload.readUnsignedShort()];
+			for (int i = 0; i < widgets.length; i++)
+				widgets[i] = payload.readInt();
+			mDevices.put(address, new TapLockDevice(name, address, passphrase, widgets));
+		}
+	}
+}
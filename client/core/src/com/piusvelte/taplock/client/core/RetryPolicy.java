@@ -0,0 +1,85 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import static com.piusvelte.taplock.client.core.TapLock.KEY_INSECURE_FALLBACK;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_PREFS;
+
+import java.util.Random;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * How many times, and how far apart, to try connecting to a server. Attempts
+ * back off exponentially with jitter, and a server that hasn't answered the
+ * last few requests gets fewer attempts, so one that's switched off or out of
+ * range doesn't keep the radio busy. A success restores the full budget. If
+ * the insecure fallback preference is set in the settings, the last attempt
+ * after secure ones have failed is made without authentication, for servers
+ * whose stack won't pair securely. It's off by default.
+ */
+public class RetryPolicy {
+	public static final int MAX_ATTEMPTS = 4;
+	private static final int MIN_ATTEMPTS = 2;
+	private static final long BASE_DELAY = 250L;
+	private static final long MAX_DELAY = 4000L;
+	private static final String KEY_RETRIES = "retries";
+	private final SharedPreferences mHistory;
+	private final SharedPreferences mPrefs;
+	private final Random mRandom = new Random();
+
+	public RetryPolicy(Context context) {
+		mHistory = context.getSharedPreferences(KEY_RETRIES, Context.MODE_PRIVATE);
+		mPrefs = context.getSharedPreferences(KEY_PREFS, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return the attempts to make, halved for each request in a row the server missed
+	 */
+	public int getAttempts(String address) {
+		int failures = Math.min(mHistory.getInt(address, 0), 8);
+		return Math.max(MIN_ATTEMPTS, MAX_ATTEMPTS >> failures);
+	}
+
+	/**
+	 * @return milliseconds to wait after the attempt failed, half the
+	 * exponential delay plus up to as much again at random, so phones retrying
+	 * together spread out
+	 */
+	public long getDelay(int attempt) {
+		long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 16));
+		long half = delay / 2;
+		return half + (long) (mRandom.nextDouble() * half);
+	}
+
+	public boolean isInsecure(int attempt, int attempts) {
+		return (attempt > 0) && (attempt == attempts - 1) && mPrefs.getBoolean(KEY_INSECURE_FALLBACK, false);
+	}
+
+	public void succeeded(String address) {
+		if (mHistory.contains(address))
+			mHistory.edit().remove(address).apply();
+	}
+
+	public void failed(String address) {
+		mHistory.edit().putInt(address, mHistory.getInt(address, 0) + 1).apply();
+	}
+}
@@ -20,17 +20,13 @@
 package com.piusvelte.taplock.client.core;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.app.backup.BackupManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.util.Log;
 
 public class TapLock {
@@ -41,20 +37,32 @@ public class TapLock {
 	public static final String ACTION_TOGGLE = "com.piusvelte.taplock.ACTION_TOGGLE";
 	public static final String ACTION_UNLOCK = "com.piusvelte.taplock.ACTION_UNLOCK";
 	public static final String ACTION_LOCK = "com.piusvelte.taplock.ACTION_LOCK";
+	public static final String ACTION_LOCK_ALL = "com.piusvelte.taplock.ACTION_LOCK_ALL";
+	public static final String ACTION_TAG_LOCK_ALL = "com.piusvelte.taplock.ACTION_TAG_LOCK_ALL";
 	public static final String ACTION_PASSPHRASE = "com.piusvelte.taplock.ACTION_PASSPHRASE";
 	public static final String ACTION_TAG = "com.piusvelte.taplock.ACTION_TAG";
+	public static final String ACTION_UPGRADE_TAG = "com.piusvelte.taplock.ACTION_UPGRADE_TAG";
 	public static final String ACTION_REMOVE = "com.piusvelte.taplock.ACTION_REMOVE";
 	public static final String ACTION_DOWNLOAD_SDCARD = "com.piusvelte.taplock.ACTION_DOWNLOAD_SDCARD";
 	public static final String ACTION_DOWNLOAD_EMAIL = "com.piusvelte.taplock.ACTION_DOWNLOAD_EMAIL";
 	public static final String ACTION_COPY_DEVICE_URI = "com.piusvelte.taplock.ACTION_COPY_DEVICE_URI";
 	public static final String EXTRA_DEVICE_ADDRESS = "com.piusvelte.taplock.EXTRA_DEVICE_ADDRESS";
 	public static final String EXTRA_DEVICE_NAME = "com.piusvelte.taplock.EXTRA_DEVICE_NAME";
+	public static final String EXTRA_LOCK_ALL = "com.piusvelte.taplock.EXTRA_LOCK_ALL";
 	public static final String EXTRA_INFO = "com.piusvelte.taplock.EXTRA_INFO";
 	public static final String PARAM_ACTION = "action";
 	public static final String PARAM_HMAC = "hmac";
 	public static final String PARAM_PASSPHRASE = "passphrase";
 	public static final String PARAM_CHALLENGE = "challenge";
 	public static final String PARAM_ERROR = "error";
+	public static final String PARAM_VERSION = "version";
+	public static final String PARAM_TICKET = "ticket";
+	public static final String PARAM_IDLE_TIMEOUT = "idletimeout";
+	public static final String ERROR_TICKET_EXPIRED = "ticket expired";
+	public static final int PROTOCOL_VERSION_LEGACY = 1;
+	public static final int PROTOCOL_VERSION_FRAMED = 2;
+	public static final int PROTOCOL_VERSION_HMAC = 3;
+	public static final int PROTOCOL_VERSION_TICKET = 4;
 	public static final String KEY_NAME = "name";
 	public static final String KEY_PASSPHRASE = "passphrase";
 	public static final String KEY_ADDRESS = "address";
@@ -63,6 +71,21 @@ public class TapLock {
 	public static final String KEY_PREFS = "taplock";
 	public static final String KEY_SERVER_VERSION = "serverversion";
 	public static final String KEY_VERSION = "version";
+	// seconds a server connection is kept open after a request, 0 closes it straight away,
+	// capped a little under the idle timeout the server advertises
+	public static final String KEY_CONNECTION_IDLE = "connectionidle";
+	public static final int DEFAULT_CONNECTION_IDLE = 60;
+	// make the last connection attempt to a server without authentication, off by default as the link isn't encrypted
+	public static final String KEY_INSECURE_FALLBACK = "insecurefallback";
+	// widgets toggle from the service, without opening TapLockToggle, on by default
+	public static final String KEY_HEADLESS_WIDGET = "headlesswidget";
+	// widgets that lock every device
+	public static final String KEY_LOCK_ALL_WIDGETS = "lockallwidgets";
+	// states of a device's latest request, from ITapLockService.getRequestState
+	public static final int REQUEST_NONE = 0;
+	public static final int REQUEST_PENDING = 1;
+	public static final int REQUEST_PASSED = 2;
+	public static final int REQUEST_FAILED = 3;
 	public static final int SERVER_VERSION = 2;
 	public static final String DEFAULT_PASSPHRASE = "TapLock";
 	
@@ -83,24 +106,11 @@ public class TapLock {
 		return new Intent(context, getPackageClass(context, cls));
 	}
 	
-	protected static void storeDevices(Context context, SharedPreferences sp, ArrayList<JSONObject> devicesArr) {
-		Set<String> devices = new HashSet<String>();
-		for (JSONObject deviceJObj : devicesArr)
-			devices.add(deviceJObj.toString());
-		sp.edit().putStringSet(KEY_DEVICES, devices).commit();
-		(new BackupManager(context)).dataChanged();
-	}
-
-	protected static String[] getDeviceNames(ArrayList<JSONObject> devices) {
+	protected static String[] getDeviceNames(ArrayList<TapLockDevice> devices) {
 		String[] deviceNames = new String[devices.size()];
 		int d = 0;
-		for (JSONObject device : devices) {
-			try {
-				deviceNames[d++] = device.getString(KEY_NAME);
-			} catch (JSONException e) {
-				Log.e(TAG, e.toString());
-			}
-		}
+		for (TapLockDevice device : devices)
+			deviceNames[d++] = device.getName();
 		return deviceNames;
 	}
 	
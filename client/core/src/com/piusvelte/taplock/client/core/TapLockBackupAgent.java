@@ -21,15 +21,18 @@ package com.piusvelte.taplock.client.core;
 
 import android.annotation.TargetApi;
 import android.app.backup.BackupAgentHelper;
+import android.app.backup.FileBackupHelper;
 import android.app.backup.SharedPreferencesBackupHelper;
 
 @TargetApi(8)
 public class TapLockBackupAgent extends BackupAgentHelper {
 	
 	private static final String Spreferences = "preferences";
+	private static final String Sdevices = "devices";
 
 	@Override
 	public void onCreate() {
 		addHelper(Spreferences, new SharedPreferencesBackupHelper(this, TapLock.KEY_PREFS));
+		addHelper(Sdevices, new FileBackupHelper(this, DeviceStore.FILE_NAME));
 	}
 }
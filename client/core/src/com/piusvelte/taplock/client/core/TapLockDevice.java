@@ -0,0 +1,128 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import static com.piusvelte.taplock.client.core.TapLock.KEY_ADDRESS;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_NAME;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_PASSPHRASE;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_WIDGETS;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A configured server, and the widgets that toggle it. Devices are immutable,
+ * so they can be handed between threads, changes make a new device.
+ */
+public class TapLockDevice {
+	private static final int[] NO_WIDGETS = new int[0];
+	private final String mName;
+	private final String mAddress;
+	private final String mPassphrase;
+	private final int[] mWidgets;
+
+	public TapLockDevice(String name, String address, String passphrase) {
+		this(name, address, passphrase, NO_WIDGETS);
+	}
+
+	public TapLockDevice(String name, String address, String passphrase, int[] widgets) {
+		mName = name;
+		mAddress = address;
+		mPassphrase = passphrase;
+		mWidgets = widgets;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	public String getPassphrase() {
+		return mPassphrase;
+	}
+
+	/**
+	 * @return the widget ids, which mustn't be modified
+	 */
+	public int[] getWidgets() {
+		return mWidgets;
+	}
+
+	public boolean hasWidget(int widgetId) {
+		for (int id : mWidgets) {
+			if (id == widgetId)
+				return true;
+		}
+		return false;
+	}
+
+	public TapLockDevice withPassphrase(String passphrase) {
+		return new TapLockDevice(mName, mAddress, passphrase, mWidgets);
+	}
+
+	public TapLockDevice withWidget(int widgetId) {
+		if (hasWidget(widgetId))
+			return this;
+		int[] widgets = Arrays.copyOf(mWidgets, mWidgets.length + 1);
+		widgets[mWidgets.length] = widgetId;
+		return new TapLockDevice(mName, mAddress, mPassphrase, widgets);
+	}
+
+	public TapLockDevice withoutWidget(int widgetId) {
+		if (!hasWidget(widgetId))
+			return this;
+		int[] widgets = new int[mWidgets.length - 1];
+		int i = 0;
+		for (int id : mWidgets) {
+			if (id != widgetId)
+				widgets[i++] = id;
+		}
+		return new TapLockDevice(mName, mAddress, mPassphrase, widgets);
+	}
+
+	public JSONObject toJSONObject() throws JSONException {
+		JSONObject deviceJObj = new JSONObject();
+		deviceJObj.put(KEY_NAME, mName);
+		deviceJObj.put(KEY_ADDRESS, mAddress);
+		deviceJObj.put(KEY_PASSPHRASE, mPassphrase);
+		JSONArray widgetsJArr = new JSONArray();
+		for (int widgetId : mWidgets)
+			widgetsJArr.put(widgetId);
+		deviceJObj.put(KEY_WIDGETS, widgetsJArr);
+		return deviceJObj;
+	}
+
+	public static TapLockDevice fromJSONObject(JSONObject deviceJObj) throws JSONException {
+		int[] widgets = NO_WIDGETS;
+		JSONArray widgetsJArr = deviceJObj.optJSONArray(KEY_WIDGETS);
+		if (widgetsJArr != null) {
+			widgets = new int[widgetsJArr.length()];
+			for (int i = 0; i < widgets.length; i++)
+				widgets[i] = widgetsJArr.getInt(i);
+		}
+		return new TapLockDevice(deviceJObj.getString(KEY_NAME), deviceJObj.getString(KEY_ADDRESS), deviceJObj.getString(KEY_PASSPHRASE), widgets);
+	}
+}
@@ -19,34 +19,54 @@
  */
 package com.piusvelte.taplock.client.core;
 
-import static com.piusvelte.taplock.client.core.TapLock.KEY_ADDRESS;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_NAME;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_PASSPHRASE;
 import static com.piusvelte.taplock.client.core.TapLock.KEY_VERSION;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_WIDGETS;
 import static com.piusvelte.taplock.client.core.TapLock.EXTRA_DEVICE_ADDRESS;
 import static com.piusvelte.taplock.client.core.TapLock.EXTRA_DEVICE_NAME;
+import static com.piusvelte.taplock.client.core.TapLock.EXTRA_LOCK_ALL;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_PASSPHRASE;
+import static com.piusvelte.taplock.client.core.TapLock.ACTION_LOCK;
+import static com.piusvelte.taplock.client.core.TapLock.ACTION_LOCK_ALL;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_TOGGLE;
+import static com.piusvelte.taplock.client.core.TapLock.ACTION_UNLOCK;
 import static com.piusvelte.taplock.client.core.TapLock.PARAM_ACTION;
 import static com.piusvelte.taplock.client.core.TapLock.PARAM_CHALLENGE;
 import static com.piusvelte.taplock.client.core.TapLock.PARAM_ERROR;
 import static com.piusvelte.taplock.client.core.TapLock.PARAM_HMAC;
+import static com.piusvelte.taplock.client.core.TapLock.PARAM_IDLE_TIMEOUT;
 import static com.piusvelte.taplock.client.core.TapLock.PARAM_PASSPHRASE;
+import static com.piusvelte.taplock.client.core.TapLock.PARAM_TICKET;
+import static com.piusvelte.taplock.client.core.TapLock.PARAM_VERSION;
+import static com.piusvelte.taplock.client.core.TapLock.ERROR_TICKET_EXPIRED;
+import static com.piusvelte.taplock.client.core.TapLock.PROTOCOL_VERSION_FRAMED;
+import static com.piusvelte.taplock.client.core.TapLock.PROTOCOL_VERSION_HMAC;
+import static com.piusvelte.taplock.client.core.TapLock.PROTOCOL_VERSION_LEGACY;
+import static com.piusvelte.taplock.client.core.TapLock.PROTOCOL_VERSION_TICKET;
 import static com.piusvelte.taplock.client.core.TapLock.DEFAULT_PASSPHRASE;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_DEVICES;
 import static com.piusvelte.taplock.client.core.TapLock.KEY_PREFS;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_CONNECTION_IDLE;
+import static com.piusvelte.taplock.client.core.TapLock.DEFAULT_CONNECTION_IDLE;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_HEADLESS_WIDGET;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_LOCK_ALL_WIDGETS;
+import static com.piusvelte.taplock.client.core.TapLock.REQUEST_FAILED;
+import static com.piusvelte.taplock.client.core.TapLock.REQUEST_NONE;
+import static com.piusvelte.taplock.client.core.TapLock.REQUEST_PASSED;
+import static com.piusvelte.taplock.client.core.TapLock.REQUEST_PENDING;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -58,7 +78,10 @@ import android.appwidget.AppWidgetManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -66,6 +89,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.RemoteViews;
 
@@ -73,17 +97,83 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 	private static final String TAG = "TapLockService";
 	private BluetoothAdapter mBtAdapter;
 	private ConnectThread mConnectThread;
+	private LockAllRequest mLockAll;
+	private boolean mQueueLockAll = false;
+	// the last lock all's result, guarded by mThreadLock
+	private Boolean mLockAllResult = null;
+	// servers locked at once by a lock all, Bluetooth controllers don't page many devices well in parallel
+	private static final int LOCK_ALL_THREADS = 3;
 	private String mQueueAddress;
 	private String mQueueState;
 	private String mQueuePassphrase;
 	private boolean mRequestDiscovery = false;
 	private boolean mStartedBT = false;
 	private boolean mDeviceFound = false;
-	private ArrayList<JSONObject> mDevices = new ArrayList<JSONObject>();
+	private DeviceRepository mDevices;
 	private static final UUID sTapLockUUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 	private int[] mThreadLock = new int[0];
-	private static final int MAX_CONNECTION_ATTEMPTS = 4;
+	// address to whether its last request passed, guarded by mThreadLock
+	private final HashMap<String, Boolean> mResults = new HashMap<String, Boolean>();
+	// exchange results, a request that was never sent can be retried on a new connection
+	private static final int EXCHANGE_OK = 0;
+	private static final int EXCHANGE_FAILED = 1;
+	private static final int EXCHANGE_UNSENT = 2;
+	private static final int EXCHANGE_UNANSWERED = 3;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static Mac sHmac = null;
+	private static String sHmacPassphrase = null;
+	// the server keeps tickets for a minute, stay well inside that
+	private static final long TICKET_TIMEOUT = 30000L;
+	private final HashMap<String, Ticket> mTickets = new HashMap<String, Ticket>();
 	private Handler mHandler = new Handler();
+	// how long a widget shows the result of a request
+	private static final long WIDGET_STATUS_TIME = 3000L;
+	private static final String WIDGET_PROGRESS = "\u2026";
+	private static final String WIDGET_PASS = "\u2713";
+	private static final String WIDGET_FAIL = "\u2717";
+	// address to the status its widgets are showing
+	private final HashMap<String, String> mWidgetStatus = new HashMap<String, String>();
+	private final Runnable mWidgetRestorer = new Runnable() {
+
+		@Override
+		public void run() {
+			Iterator<Map.Entry<String, String>> statuses = mWidgetStatus.entrySet().iterator();
+			while (statuses.hasNext()) {
+				Map.Entry<String, String> status = statuses.next();
+				// requests still in progress keep theirs
+				if (!WIDGET_PROGRESS.equals(status.getValue())) {
+					statuses.remove();
+					TapLockDevice device = mDevices.getByAddress(status.getKey());
+					if (device != null)
+						updateWidgets(device, device.getWidgets(), null);
+				}
+			}
+			mStopIfIdle.run();
+		}
+	};
+	// commands waiting for the devices to load, only touched on the main thread
+	private int mWaitingCommands = 0;
+	// run on the main thread, where the widget statuses are kept
+	private final Runnable mStopIfIdle = new Runnable() {
+
+		@Override
+		public void run() {
+			// nothing left to wait for, or to show on the widgets
+			if ((mUIInterface == null) && (mConnectThread == null) && (mLockAll == null) && mConnections.isEmpty() && mWidgetStatus.isEmpty() && (mWaitingCommands == 0))
+				stopSelf();
+		}
+	};
+	private ChannelCache mChannels;
+	private RetryPolicy mRetryPolicy;
+	private final ConnectionManager mConnections = new ConnectionManager(mHandler, DEFAULT_CONNECTION_IDLE * 1000L, mStopIfIdle);
+	private final BroadcastReceiver mScreenOffReceiver = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			mConnections.closeAll();
+		}
+	};
 
 	private ITapLockUI mUIInterface;
 	private final ITapLockService.Stub mServiceInterface = new ITapLockService.Stub() {
@@ -114,11 +204,10 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 
 		@Override
 		public void stop() throws RemoteException {
-			// stop the service if there's no activity
-			if (mConnectThread == null)
-				stopSelf();
-			// when the connectthread stops, it will stop the service
+			// when the connectthread stops, the connections close, or the widgets are restored, it will stop the service
 			mUIInterface = null;
+			// stop the service now if there's no activity
+			mHandler.post(mStopIfIdle);
 		}
 
 		@Override
@@ -137,8 +226,39 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 			synchronized (mThreadLock) {
 				if (mConnectThread != null)
 					mConnectThread.cancelRequest();
+				if (mLockAll != null)
+					mLockAll.cancel();
 			}
 		}
+
+		@Override
+		public int getRequestState(String address) throws RemoteException {
+			synchronized (mThreadLock) {
+				// no address asks after the lock all
+				if (address == null) {
+					if ((mLockAll != null) || mQueueLockAll)
+						return REQUEST_PENDING;
+					if (mLockAllResult != null)
+						return mLockAllResult ? REQUEST_PASSED : REQUEST_FAILED;
+					return REQUEST_NONE;
+				}
+				if ((mConnectThread != null) && address.equals(mConnectThread.mAddress))
+					return REQUEST_PENDING;
+				if ((mLockAll != null) && mLockAll.contains(address))
+					return REQUEST_PENDING;
+				if (address.equals(mQueueAddress) && (mQueueState != null))
+					return REQUEST_PENDING;
+				Boolean pass = mResults.get(address);
+				if (pass != null)
+					return pass ? REQUEST_PASSED : REQUEST_FAILED;
+			}
+			return REQUEST_NONE;
+		}
+
+		@Override
+		public void lockAll() throws RemoteException {
+			requestLockAll();
+		}
 	};
 
 	@Override
@@ -155,193 +275,128 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 			sp.edit().putInt(KEY_VERSION, currVer).commit();
 			(new BackupManager(this)).dataChanged();
 		}
-		onSharedPreferenceChanged(getSharedPreferences(KEY_PREFS, MODE_PRIVATE), KEY_DEVICES);
+		mDevices = DeviceRepository.getInstance(this);
+		sp.registerOnSharedPreferenceChangeListener(this);
+		onSharedPreferenceChanged(sp, KEY_CONNECTION_IDLE);
 		mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+		mChannels = new ChannelCache(this);
+		mRetryPolicy = new RetryPolicy(this);
+		registerReceiver(mScreenOffReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
 	}
 
 	@Override
-	public int onStartCommand(Intent intent, int flags, int startId) {
+	public int onStartCommand(final Intent intent, int flags, int startId) {
 		if (intent != null) {
-			String action = intent.getAction();
-			if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
-				int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
-				if (state == BluetoothAdapter.STATE_ON) {
-					if (mStartedBT) {
-						if (mUIInterface != null) {
-							try {
-								mUIInterface.setMessage("Bluetooth enabled");
-							} catch (RemoteException e) {
-								Log.e(TAG, e.getMessage());
-							}
-						}
-						if ((mQueueAddress != null) && (mQueueState != null))
-							requestWrite(mQueueAddress, mQueueState, mQueuePassphrase);
-						else if (mRequestDiscovery && !mBtAdapter.isDiscovering())
-							mBtAdapter.startDiscovery();
-						else if (mUIInterface != null) {
-							try {
-								mUIInterface.setBluetoothEnabled();
-							} catch (RemoteException e) {
-								Log.e(TAG, e.getMessage());
-							}
-						}
-					}
-				} else if (state == BluetoothAdapter.STATE_TURNING_OFF) {
+			// commands look up devices on the main thread, so they wait for the load rather than block on it
+			mWaitingCommands++;
+			mDevices.whenLoaded(new Runnable() {
+
+				@Override
+				public void run() {
+					mWaitingCommands--;
+					handleCommand(intent);
+				}
+			});
+		}
+		return START_STICKY;
+	}
+
+	private void handleCommand(Intent intent) {
+		String action = intent.getAction();
+		if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+			int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
+			if (state == BluetoothAdapter.STATE_ON) {
+				if (mStartedBT) {
 					if (mUIInterface != null) {
 						try {
-							mUIInterface.setMessage("Bluetooth disabled");
+							mUIInterface.setMessage("Bluetooth enabled");
 						} catch (RemoteException e) {
 							Log.e(TAG, e.getMessage());
 						}
 					}
-					stopThreads();
-				}
-			} else if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-				// Get the BluetoothDevice object from the Intent
-				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
-					// connect if configured
-					String address = device.getAddress();
-					for (JSONObject deviceJObj : mDevices) {
+					if (mQueueLockAll)
+						requestLockAll();
+					else if ((mQueueAddress != null) && (mQueueState != null))
+						requestWrite(mQueueAddress, mQueueState, mQueuePassphrase);
+					else if (mRequestDiscovery && !mBtAdapter.isDiscovering())
+						mBtAdapter.startDiscovery();
+					else if (mUIInterface != null) {
 						try {
-							if (deviceJObj.getString(KEY_ADDRESS).equals(address)) {
-								// if queued
-								mDeviceFound = (mQueueAddress != null) && mQueueAddress.equals(address) && (mQueueState != null);
-								break;
-							}
-						} catch (JSONException e) {
+							mUIInterface.setBluetoothEnabled();
+						} catch (RemoteException e) {
 							Log.e(TAG, e.getMessage());
 						}
 					}
-				} else if (mRequestDiscovery && (mUIInterface != null)) {
-					String unpairedDevice = TapLock.createDevice(device.getName(), device.getAddress(), DEFAULT_PASSPHRASE).toString();
+				}
+			} else if (state == BluetoothAdapter.STATE_TURNING_OFF) {
+				if (mUIInterface != null) {
 					try {
-						mUIInterface.setUnpairedDevice(unpairedDevice);
+						mUIInterface.setMessage("Bluetooth disabled");
 					} catch (RemoteException e) {
 						Log.e(TAG, e.getMessage());
 					}
 				}
-			} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-				if (mDeviceFound) {
-					requestWrite(mQueueAddress, mQueueState, mQueuePassphrase);
-					mDeviceFound = false;
-				} else if (mRequestDiscovery) {
-					mRequestDiscovery = false;
-					if (mUIInterface != null) {
-						try {
-							mUIInterface.setDiscoveryFinished();
-						} catch (RemoteException e) {
-							Log.e(TAG, e.toString());
-						}
-					}
-				}
-			} else if (ACTION_TOGGLE.equals(action) && intent.hasExtra(EXTRA_DEVICE_ADDRESS)) {
-				String address = intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
-				requestWrite(address, ACTION_TOGGLE, null);
-			} else if (AppWidgetManager.ACTION_APPWIDGET_UPDATE.equals(action)) {
-				// create widget
-				if (intent.hasExtra(AppWidgetManager.EXTRA_APPWIDGET_ID)) {
-					int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
-					if (intent.hasExtra(EXTRA_DEVICE_NAME)) {
-						// add a widget
-						String deviceName = intent.getStringExtra(EXTRA_DEVICE_NAME);
-						for (int i = 0, l = mDevices.size(); i < l; i++) {
-							String name = null;
-							try {
-								name = mDevices.get(i).getString(KEY_NAME);
-							} catch (JSONException e1) {
-								e1.printStackTrace();
-							}
-							if ((name != null) && name.equals(deviceName)) {
-								JSONObject deviceJObj = mDevices.remove(i);
-								JSONArray widgetsJArr;
-								if (deviceJObj.has(KEY_WIDGETS)) {
-									try {
-										widgetsJArr = deviceJObj.getJSONArray(KEY_WIDGETS);
-									} catch (JSONException e) {
-										widgetsJArr = new JSONArray();
-									}
-								} else
-									widgetsJArr = new JSONArray();
-								widgetsJArr.put(appWidgetId);
-								try {
-									deviceJObj.put(KEY_WIDGETS, widgetsJArr);
-								} catch (JSONException e) {
-									e.printStackTrace();
-								}
-								mDevices.add(i, deviceJObj);
-								TapLock.storeDevices(this, getSharedPreferences(KEY_PREFS, MODE_PRIVATE), mDevices);
-								break;
-							}
-						}
-					}
-					buildWidget(appWidgetId);
-				} else if (intent.hasExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS)) {
-					int[] appWidgetIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
-					if (appWidgetIds != null) {
-						for (int appWidgetId : appWidgetIds)
-							buildWidget(appWidgetId);
-					}
+				stopThreads();
+			}
+		} else if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+			// Get the BluetoothDevice object from the Intent
+			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
+				// connect if configured, and queued
+				String address = device.getAddress();
+				if (mDevices.getByAddress(address) != null)
+					mDeviceFound = (mQueueAddress != null) && mQueueAddress.equals(address) && (mQueueState != null);
+			} else if (mRequestDiscovery && (mUIInterface != null)) {
+				String unpairedDevice = TapLock.createDevice(device.getName(), device.getAddress(), DEFAULT_PASSPHRASE).toString();
+				try {
+					mUIInterface.setUnpairedDevice(unpairedDevice);
+				} catch (RemoteException e) {
+					Log.e(TAG, e.getMessage());
 				}
-			} else if (AppWidgetManager.ACTION_APPWIDGET_DELETED.equals(action)) {
-				int appWidgetId = intent.getExtras().getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
-				Log.d(TAG, "delete appWidgetId: " + appWidgetId);
-				for (int i = 0, l = mDevices.size(); i < l; i++) {
-					JSONObject deviceJObj = mDevices.get(i);
-					if (deviceJObj.has(KEY_WIDGETS)) {
-						JSONArray widgetsJArr = null;
-						try {
-							widgetsJArr = deviceJObj.getJSONArray(KEY_WIDGETS);
-						} catch (JSONException e) {
-							e.printStackTrace();
-						}
-						if (widgetsJArr != null) {
-							boolean wasUpdated = false;
-							JSONArray newWidgetsJArr = new JSONArray();
-							for (int widgetIdx = 0, wdigetsLen = widgetsJArr.length(); widgetIdx < wdigetsLen; widgetIdx++) {
-								int widgetId;
-								try {
-									widgetId = widgetsJArr.getInt(widgetIdx);
-								} catch (JSONException e) {
-									widgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
-									e.printStackTrace();
-								}
-								Log.d(TAG, "eval widgetId: " + widgetId);
-								if ((widgetId != AppWidgetManager.INVALID_APPWIDGET_ID) && (widgetId == appWidgetId)) {
-									Log.d(TAG, "skip: " + widgetId);
-									wasUpdated = true;
-								} else {
-									Log.d(TAG, "include: " + widgetId);
-									newWidgetsJArr.put(widgetId);
-								}
-							}
-							if (wasUpdated) {
-								try {
-									deviceJObj.put(KEY_WIDGETS, newWidgetsJArr);
-									mDevices.remove(i);
-									mDevices.add(i, deviceJObj);
-									TapLock.storeDevices(this, getSharedPreferences(KEY_PREFS, MODE_PRIVATE), mDevices);
-									Log.d(TAG, "stored: " + deviceJObj.toString());
-								} catch (JSONException e) {
-									e.printStackTrace();
-								}
-							}
-						}
-					} else {
-						JSONArray widgetsJArr = new JSONArray();
-						try {
-							deviceJObj.put(KEY_WIDGETS, widgetsJArr);
-							mDevices.remove(i);
-							mDevices.add(i, deviceJObj);
-							TapLock.storeDevices(this, getSharedPreferences(KEY_PREFS, MODE_PRIVATE), mDevices);
-						} catch (JSONException e) {
-							e.printStackTrace();
-						}
+			}
+		} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+			if (mDeviceFound) {
+				requestWrite(mQueueAddress, mQueueState, mQueuePassphrase);
+				mDeviceFound = false;
+			} else if (mRequestDiscovery) {
+				mRequestDiscovery = false;
+				if (mUIInterface != null) {
+					try {
+						mUIInterface.setDiscoveryFinished();
+					} catch (RemoteException e) {
+						Log.e(TAG, e.toString());
 					}
 				}
 			}
+		} else if ((ACTION_TOGGLE.equals(action) || ACTION_UNLOCK.equals(action) || ACTION_LOCK.equals(action)) && intent.hasExtra(EXTRA_DEVICE_ADDRESS)) {
+			String address = intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
+			requestWrite(address, action, null);
+		} else if (ACTION_LOCK_ALL.equals(action))
+			requestLockAll();
+		else if (AppWidgetManager.ACTION_APPWIDGET_UPDATE.equals(action)) {
+			// create widget
+			if (intent.hasExtra(AppWidgetManager.EXTRA_APPWIDGET_ID)) {
+				int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+				if (intent.hasExtra(EXTRA_DEVICE_NAME)) {
+					// add a widget
+					mDevices.addWidget(intent.getStringExtra(EXTRA_DEVICE_NAME), appWidgetId);
+				} else if (intent.getBooleanExtra(EXTRA_LOCK_ALL, false))
+					setLockAllWidget(appWidgetId, true);
+				buildWidgets(new int[] {appWidgetId});
+			} else if (intent.hasExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS)) {
+				int[] appWidgetIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+				if (appWidgetIds != null)
+					buildWidgets(appWidgetIds);
+			}
+		} else if (AppWidgetManager.ACTION_APPWIDGET_DELETED.equals(action)) {
+			int[] appWidgetIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+			if (appWidgetIds == null)
+				appWidgetIds = new int[] {intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID)};
+			Log.d(TAG, "delete appWidgetIds: " + appWidgetIds.length);
+			mDevices.removeWidgets(appWidgetIds);
+			for (int appWidgetId : appWidgetIds)
+				setLockAllWidget(appWidgetId, false);
 		}
-		return START_STICKY;
 	}
 
 	@Override
@@ -352,52 +407,135 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		getSharedPreferences(KEY_PREFS, MODE_PRIVATE).unregisterOnSharedPreferenceChangeListener(this);
+		unregisterReceiver(mScreenOffReceiver);
 		stopThreads();
+		mHandler.removeCallbacks(mWidgetRestorer);
+		for (String address : mWidgetStatus.keySet()) {
+			TapLockDevice device = mDevices.getByAddress(address);
+			if (device != null)
+				updateWidgets(device, device.getWidgets(), null);
+		}
+		mWidgetStatus.clear();
 		if (mStartedBT) {
 			mStartedBT = false;
 			mBtAdapter.disable();
 		}
 	}
 
-	private void buildWidget(int appWidgetId) {
-		RemoteViews rv = new RemoteViews(getPackageName(), R.layout.widget);
-		String deviceName = null;
-		for (JSONObject deviceJObj : mDevices) {
-			if (deviceJObj.has(KEY_WIDGETS) && deviceJObj.has(KEY_NAME)) {
-				JSONArray widgetsJArr = null;
-				try {
-					widgetsJArr = deviceJObj.getJSONArray(KEY_WIDGETS);
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
-				if (widgetsJArr != null) {
-					for (int i = 0, l = widgetsJArr.length(); (i < l) && (deviceName == null); i++) {
-						int widgetId;
-						try {
-							widgetId = widgetsJArr.getInt(i);
-						} catch (JSONException e) {
-							widgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
-							e.printStackTrace();
-						}
-						if ((widgetId != AppWidgetManager.INVALID_APPWIDGET_ID) && (appWidgetId == widgetId)) {
-							try {
-								deviceName = deviceJObj.getString(KEY_NAME);
-							} catch (JSONException e) {
-								e.printStackTrace();
-							}
-							break;
-						}
-					}
-				}
-				if (deviceName != null)
-					break;
+	/**
+	 * Widgets for the same device look the same, so they're grouped by device
+	 * and each group is updated with one RemoteViews.
+	 */
+	private void buildWidgets(int[] appWidgetIds) {
+		// device to its widgets, in the order they came, null for widgets without one
+		LinkedHashMap<TapLockDevice, ArrayList<Integer>> groups = new LinkedHashMap<TapLockDevice, ArrayList<Integer>>();
+		ArrayList<Integer> lockAllWidgets = getLockAllWidgets();
+		ArrayList<Integer> lockAllGroup = new ArrayList<Integer>();
+		for (int appWidgetId : appWidgetIds) {
+			if (lockAllWidgets.contains(appWidgetId)) {
+				lockAllGroup.add(appWidgetId);
+				continue;
+			}
+			TapLockDevice device = mDevices.getByWidget(appWidgetId);
+			ArrayList<Integer> group = groups.get(device);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(device, group);
 			}
+			group.add(appWidgetId);
+		}
+		for (Map.Entry<TapLockDevice, ArrayList<Integer>> group : groups.entrySet()) {
+			int[] groupIds = new int[group.getValue().size()];
+			for (int i = 0; i < groupIds.length; i++)
+				groupIds[i] = group.getValue().get(i);
+			TapLockDevice device = group.getKey();
+			updateWidgets(device, groupIds, (device != null) ? mWidgetStatus.get(device.getAddress()) : null);
+		}
+		if (!lockAllGroup.isEmpty()) {
+			int[] groupIds = new int[lockAllGroup.size()];
+			for (int i = 0; i < groupIds.length; i++)
+				groupIds[i] = lockAllGroup.get(i);
+			updateLockAllWidgets(groupIds);
+		}
+	}
+
+	private void updateLockAllWidgets(int[] appWidgetIds) {
+		if (appWidgetIds.length == 0)
+			return;
+		RemoteViews rv = new RemoteViews(getPackageName(), R.layout.widget);
+		rv.setTextViewText(R.id.device_name, "lock all");
+		if (getSharedPreferences(KEY_PREFS, MODE_PRIVATE).getBoolean(KEY_HEADLESS_WIDGET, true))
+			rv.setOnClickPendingIntent(R.id.widget_icon, PendingIntent.getService(this, 0, TapLock.getPackageIntent(this, TapLockService.class).setAction(ACTION_LOCK_ALL), PendingIntent.FLAG_UPDATE_CURRENT));
+		else
+			rv.setOnClickPendingIntent(R.id.widget_icon, PendingIntent.getActivity(this, 0, TapLock.getPackageIntent(this, TapLockToggle.class).setAction(ACTION_LOCK_ALL), Intent.FLAG_ACTIVITY_NEW_TASK));
+		AppWidgetManager.getInstance(this).updateAppWidget(appWidgetIds, rv);
+	}
+
+	/**
+	 * @return the widgets that lock every device, rather than toggling one
+	 */
+	private ArrayList<Integer> getLockAllWidgets() {
+		ArrayList<Integer> appWidgetIds = new ArrayList<Integer>();
+		try {
+			JSONArray widgetsJArr = new JSONArray(getSharedPreferences(KEY_PREFS, MODE_PRIVATE).getString(KEY_LOCK_ALL_WIDGETS, "[]"));
+			for (int i = 0, l = widgetsJArr.length(); i < l; i++)
+				appWidgetIds.add(widgetsJArr.getInt(i));
+		} catch (JSONException e) {
+			Log.e(TAG, e.toString());
+		}
+		return appWidgetIds;
+	}
+
+	private void setLockAllWidget(int appWidgetId, boolean lockAll) {
+		ArrayList<Integer> appWidgetIds = getLockAllWidgets();
+		Integer id = appWidgetId;
+		if (lockAll == appWidgetIds.contains(id))
+			return;
+		if (lockAll)
+			appWidgetIds.add(id);
+		else
+			appWidgetIds.remove(id);
+		getSharedPreferences(KEY_PREFS, MODE_PRIVATE).edit().putString(KEY_LOCK_ALL_WIDGETS, new JSONArray(appWidgetIds).toString()).commit();
+		(new BackupManager(this)).dataChanged();
+	}
+
+	/**
+	 * In headless mode a widget toggles its device from the service, and shows
+	 * the request's progress itself, otherwise it opens TapLockToggle.
+	 * @param status shown after the device name, or null
+	 */
+	private void updateWidgets(TapLockDevice device, int[] appWidgetIds, String status) {
+		if (appWidgetIds.length == 0)
+			return;
+		String deviceName = (device != null) ? device.getName() : "unknown";
+		Uri deviceUri = Uri.parse(String.format(getString(R.string.device_uri), deviceName));
+		RemoteViews rv = new RemoteViews(getPackageName(), R.layout.widget);
+		rv.setTextViewText(R.id.device_name, (status != null) ? deviceName + " " + status : deviceName);
+		if ((device != null) && getSharedPreferences(KEY_PREFS, MODE_PRIVATE).getBoolean(KEY_HEADLESS_WIDGET, true))
+			rv.setOnClickPendingIntent(R.id.widget_icon, PendingIntent.getService(this, 0, TapLock.getPackageIntent(this, TapLockService.class).setAction(ACTION_TOGGLE).setData(deviceUri).putExtra(EXTRA_DEVICE_ADDRESS, device.getAddress()), PendingIntent.FLAG_UPDATE_CURRENT));
+		else
+			rv.setOnClickPendingIntent(R.id.widget_icon, PendingIntent.getActivity(this, 0, TapLock.getPackageIntent(this, TapLockToggle.class).setData(deviceUri), Intent.FLAG_ACTIVITY_NEW_TASK));
+		AppWidgetManager.getInstance(this).updateAppWidget(appWidgetIds, rv);
+	}
+
+	/**
+	 * Show a request's progress, or result, on its device's widgets. Results
+	 * are cleared after a few seconds, a null status clears it now.
+	 */
+	private void setWidgetStatus(String address, String status) {
+		TapLockDevice device = mDevices.getByAddress(address);
+		if ((device == null) || (device.getWidgets().length == 0))
+			return;
+		if (status != null)
+			mWidgetStatus.put(address, status);
+		else
+			mWidgetStatus.remove(address);
+		updateWidgets(device, device.getWidgets(), status);
+		if ((status != null) && !WIDGET_PROGRESS.equals(status)) {
+			mHandler.removeCallbacks(mWidgetRestorer);
+			mHandler.postDelayed(mWidgetRestorer, WIDGET_STATUS_TIME);
 		}
-		if (deviceName == null)
-			deviceName = "unknown";
-		rv.setTextViewText(R.id.device_name, deviceName);
-		rv.setOnClickPendingIntent(R.id.widget_icon, PendingIntent.getActivity(this, 0, TapLock.getPackageIntent(this, TapLockToggle.class).setData(Uri.parse(String.format(getString(R.string.device_uri), deviceName))), Intent.FLAG_ACTIVITY_NEW_TASK));
-		AppWidgetManager.getInstance(this).updateAppWidget(appWidgetId, rv);
 	}
 
 	protected static String getHashString(String str) throws NoSuchAlgorithmException, UnsupportedEncodingException {
@@ -414,11 +552,91 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 		return hexString.toString();
 	}
 
+	/**
+	 * HMAC-SHA256 keyed by the passphrase, over each field followed by a 0 byte,
+	 * for servers that speak {@link TapLock#PROTOCOL_VERSION_HMAC}. The keyed Mac
+	 * is kept until the passphrase changes.
+	 */
+	protected static synchronized String getHmacString(String passphrase, String challenge, String action, String newPassphrase) throws NoSuchAlgorithmException, UnsupportedEncodingException, InvalidKeyException {
+		if ((sHmac == null) || !passphrase.equals(sHmacPassphrase)) {
+			byte[] key = passphrase.getBytes("UTF-8");
+			// HMAC allows an empty key, SecretKeySpec doesn't, and a zero-padded key is the same
+			if (key.length == 0)
+				key = new byte[1];
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+			sHmac = mac;
+			sHmacPassphrase = passphrase;
+		}
+		sHmac.update(challenge.getBytes("UTF-8"));
+		sHmac.update((byte) 0);
+		sHmac.update(action.getBytes("UTF-8"));
+		sHmac.update((byte) 0);
+		sHmac.update(newPassphrase.getBytes("UTF-8"));
+		sHmac.update((byte) 0);
+		byte[] hmac = sHmac.doFinal();
+		char[] hex = new char[hmac.length * 2];
+		for (int i = 0; i < hmac.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(hmac[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX_DIGITS[hmac[i] & 0x0F];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * The next challenge from a server's last reply, which it accepts on the
+	 * next connection for a while, saving the wait for a new challenge.
+	 */
+	private static class Ticket {
+		final String mChallenge;
+		final long mExpiresAt;
+
+		Ticket(String challenge, long expiresAt) {
+			mChallenge = challenge;
+			mExpiresAt = expiresAt;
+		}
+	}
+
+	private void putTicket(String address, String challenge) {
+		synchronized (mTickets) {
+			mTickets.put(address, new Ticket(challenge, SystemClock.elapsedRealtime() + TICKET_TIMEOUT));
+		}
+	}
+
+	/**
+	 * @return the device's ticket if it hasn't expired, tickets are only good once
+	 */
+	private String takeTicket(String address) {
+		synchronized (mTickets) {
+			Ticket ticket = mTickets.remove(address);
+			if ((ticket != null) && (ticket.mExpiresAt > SystemClock.elapsedRealtime()))
+				return ticket.mChallenge;
+		}
+		return null;
+	}
+
+	/**
+	 * Forget the device's ticket if it's this challenge, which is being
+	 * answered on the connection it came from.
+	 */
+	private void dropTicket(String address, String challenge) {
+		synchronized (mTickets) {
+			Ticket ticket = mTickets.get(address);
+			if ((ticket != null) && ticket.mChallenge.equals(challenge))
+				mTickets.remove(address);
+		}
+	}
+
 	private void requestWrite(String address, String action, String passphrase) {
+		synchronized (mThreadLock) {
+			mResults.remove(address);
+		}
 		if (mBtAdapter.isEnabled()) {
 			synchronized (mThreadLock) {
 				if (mConnectThread != null)
 					mConnectThread.shutdown();
+				// after the superseded request clears its widgets
+				mHandler.post(new WidgetStatusSetter(address, WIDGET_PROGRESS));
 				// attempt connect
 				mConnectThread = new ConnectThread(address, action, passphrase);
 				mConnectThread.start();
@@ -430,6 +648,39 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 			mQueueAddress = address;
 			mQueueState = action;
 			mQueuePassphrase = passphrase;
+			setWidgetStatus(address, WIDGET_PROGRESS);
+			mStartedBT = true;
+			mBtAdapter.enable();
+		}
+	}
+
+	/**
+	 * Lock every device, several at once, alongside any single request.
+	 */
+	private void requestLockAll() {
+		ArrayList<String> addresses = new ArrayList<String>();
+		for (TapLockDevice device : mDevices.getDevices())
+			addresses.add(device.getAddress());
+		if (addresses.isEmpty()) {
+			mHandler.post(new MessageSetter("no devices to lock"));
+			mHandler.post(new StateFinishedSetter(false));
+			return;
+		}
+		if (mBtAdapter.isEnabled()) {
+			mQueueLockAll = false;
+			synchronized (mThreadLock) {
+				if (mLockAll != null)
+					mLockAll.shutdown();
+				mLockAllResult = null;
+				for (String address : addresses) {
+					mResults.remove(address);
+					mHandler.post(new WidgetStatusSetter(address, WIDGET_PROGRESS));
+				}
+				mLockAll = new LockAllRequest(addresses);
+				mLockAll.start();
+			}
+		} else {
+			mQueueLockAll = true;
 			mStartedBT = true;
 			mBtAdapter.enable();
 		}
@@ -439,19 +690,117 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 		synchronized (mThreadLock) {
 			if (mConnectThread != null)
 				mConnectThread.shutdown();
+			if (mLockAll != null)
+				mLockAll.shutdown();
+		}
+		mConnections.closeAll();
+	}
+
+	/**
+	 * Locks each device on its own ConnectThread, with at most LOCK_ALL_THREADS
+	 * of them running, and reports each device's result as it finishes.
+	 */
+	private class LockAllRequest {
+		// devices that haven't been started yet
+		private final ArrayList<String> mPending;
+		private final ArrayList<ConnectThread> mRunning = new ArrayList<ConnectThread>();
+		private boolean mPass = true;
+		private boolean mShutdown = false;
+
+		public LockAllRequest(ArrayList<String> addresses) {
+			mPending = addresses;
+		}
+
+		public synchronized void start() {
+			while (!mShutdown && (mRunning.size() < LOCK_ALL_THREADS) && !mPending.isEmpty()) {
+				ConnectThread thread = new ConnectThread(mPending.remove(0), ACTION_LOCK, null, this);
+				mRunning.add(thread);
+				thread.start();
+			}
+		}
+
+		public synchronized boolean contains(String address) {
+			if (mPending.contains(address))
+				return true;
+			for (ConnectThread thread : mRunning) {
+				if (address.equals(thread.mAddress))
+					return true;
+			}
+			return false;
+		}
+
+		// called by each thread as it finishes, starting the next device
+		public void finished(ConnectThread thread, boolean pass) {
+			boolean done;
+			boolean shutdown;
+			boolean allPass;
+			synchronized (this) {
+				// a shut down thread finishes twice
+				if (!mRunning.remove(thread))
+					return;
+				shutdown = mShutdown;
+				if (!shutdown) {
+					mPass &= pass;
+					start();
+				}
+				done = mRunning.isEmpty() && mPending.isEmpty();
+				// a shut down batch didn't lock everything
+				allPass = !shutdown && mPass;
+			}
+			if (!shutdown)
+				mHandler.post(new LockResultSetter(thread.mAddress, pass));
+			if (done) {
+				synchronized (mThreadLock) {
+					if (mLockAll == this) {
+						mLockAll = null;
+						if (!shutdown)
+							mLockAllResult = allPass;
+					}
+				}
+				mHandler.post(new StateFinishedSetter(allPass));
+			}
+		}
+
+		public void cancel() {
+			ArrayList<ConnectThread> running;
+			synchronized (this) {
+				mPending.clear();
+				running = new ArrayList<ConnectThread>(mRunning);
+			}
+			for (ConnectThread thread : running)
+				thread.cancelRequest();
+		}
+
+		public void shutdown() {
+			ArrayList<ConnectThread> running;
+			synchronized (this) {
+				mShutdown = true;
+				mPending.clear();
+				running = new ArrayList<ConnectThread>(mRunning);
+			}
+			for (ConnectThread thread : running)
+				thread.shutdown();
 		}
 	}
 
 	private class ConnectThread extends Thread {
 		private String mAddress = null;
 		private BluetoothSocket mSocket = null;
-		private InputStream inStream = null;
-		private OutputStream outStream = null;
+		private ConnectionManager.Connection mConnection = null;
 		private String mAction = null;
 		private String mNewPassphrase = null;
 		private boolean mRequestCanceled = false;
+		private boolean mCachedChannel = false;
+		private boolean mShutdown = false;
+		private boolean mFinished = false;
+		private LockAllRequest mLockAllRequest = null;
 
 		public ConnectThread(String address, String action, String newPassphrase) {
+			this(address, action, newPassphrase, null);
+		}
+
+		public ConnectThread(String address, String action, String newPassphrase, LockAllRequest lockAllRequest) {
+			mLockAllRequest = lockAllRequest;
 			mAction = action;
 			mAddress = address;
 			mNewPassphrase = newPassphrase;
@@ -462,192 +811,347 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 		public void run() {
 			String passphrase = null;
 			String name = "device";
-			for (JSONObject deviceJObj : mDevices) {
-				try {
-					if (deviceJObj.getString(KEY_ADDRESS).equals(mAddress)) {
-						passphrase = deviceJObj.getString(KEY_PASSPHRASE);
-						name = deviceJObj.getString(KEY_NAME);
-					}
-				} catch (JSONException e) {
-					Log.e(TAG, e.getMessage());
-				}
+			TapLockDevice tapLockDevice = mDevices.getByAddress(mAddress);
+			if (tapLockDevice != null) {
+				passphrase = tapLockDevice.getPassphrase();
+				name = tapLockDevice.getName();
 			}
 			boolean pass = false;
 			if ((mAction != null) && passphrase == null)
 				mHandler.post(new MessageSetter("...no passphrase found for " + name));
 			else {
 				mBtAdapter.cancelDiscovery();
-				BluetoothDevice device = mBtAdapter.getRemoteDevice(mAddress);
-				int connectionAttempt;
-				for (connectionAttempt = 0; (connectionAttempt < MAX_CONNECTION_ATTEMPTS) && !mRequestCanceled; connectionAttempt++) {
-					if (connectionAttempt == 0)
-						mHandler.post(new MessageSetter(String.format(getResources().getStringArray(R.array.connection_messages)[connectionAttempt], name)));
-					else
-						mHandler.post(new MessageSetter(getResources().getStringArray(R.array.connection_messages)[connectionAttempt]));
-					try {
-						mSocket = device.createRfcommSocketToServiceRecord(sTapLockUUID);
-						mSocket.connect();
-					} catch (IOException e) {
-						mSocket = null;
+				int exchange = EXCHANGE_UNSENT;
+				if (mAction != null) {
+					// a connection left open by an earlier request skips the connect and the challenge
+					ConnectionManager.Connection connection = mConnections.take(mAddress);
+					if (connection != null) {
+						setConnection(connection);
+						exchange = exchange(connection, passphrase);
+						if (exchange == EXCHANGE_UNSENT) {
+							// the server's gone away since, connect again
+							connection.close();
+							setConnection(null);
+						}
 					}
-					if (mSocket != null) {
-						if (mAction == null) {
-							mHandler.post(new PairingResultSetter(device.getName(), mAddress));
-							break;
-						} else {
-							// Get the BluetoothSocket input and output streams
-							try {
-								inStream = mSocket.getInputStream();
-								outStream = mSocket.getOutputStream();
-							} catch (IOException e) {
-								inStream = null;
-								outStream = null;
-								mHandler.post(new MessageSetter("...error getting streams: " + e.getMessage()));
+				}
+				if (exchange == EXCHANGE_UNSENT) {
+					BluetoothDevice device = mBtAdapter.getRemoteDevice(mAddress);
+					int attempts = mRetryPolicy.getAttempts(mAddress);
+					boolean connected = false;
+					int connectionAttempt;
+					for (connectionAttempt = 0; (connectionAttempt < attempts) && !mRequestCanceled; connectionAttempt++) {
+						if (connectionAttempt == 0)
+							mHandler.post(new MessageSetter(String.format(getResources().getStringArray(R.array.connection_messages)[connectionAttempt], name)));
+						else
+							mHandler.post(new MessageSetter(getResources().getStringArray(R.array.connection_messages)[connectionAttempt]));
+						long started = SystemClock.elapsedRealtime();
+						connect(device, mRetryPolicy.isInsecure(connectionAttempt, attempts));
+						long duration = SystemClock.elapsedRealtime() - started;
+						if (mSocket == null) {
+							long delay = (connectionAttempt + 1 < attempts) ? mRetryPolicy.getDelay(connectionAttempt) : 0;
+							mHandler.post(new AttemptSetter(mAddress, connectionAttempt, attempts, false, duration, delay));
+							if (delay > 0) {
+								try {
+									Thread.sleep(delay);
+								} catch (InterruptedException e) {
+									// canceled or shut down
+									break;
+								}
 							}
-							if ((inStream != null) && (outStream != null)) {
-								byte[] buffer = new byte[1024];
-								int readBytes = -1;
+						} else {
+							connected = true;
+							mRetryPolicy.succeeded(mAddress);
+							mHandler.post(new AttemptSetter(mAddress, connectionAttempt, attempts, true, duration, 0));
+							if (mAction == null) {
+								mHandler.post(new PairingResultSetter(device.getName(), mAddress));
+								break;
+							} else {
+								// Get the BluetoothSocket input and output streams
+								ConnectionManager.Connection connection = null;
 								try {
-									readBytes = inStream.read(buffer);
+									connection = mConnections.open(mAddress, mSocket);
 								} catch (IOException e) {
-									mHandler.post(new MessageSetter("...error reading input stream: " + e.getMessage()));
+									mHandler.post(new MessageSetter("...error getting streams: " + e.getMessage()));
 								}
-								if (readBytes != -1) {
-									// construct a string from the valid bytes in the buffer
-									String responseStr = new String(buffer, 0, readBytes);
-									JSONObject responseJObj = null;
-									String challenge = null;
-									try {
-										responseJObj = new JSONObject(responseStr);
-										if (responseJObj.has(PARAM_CHALLENGE))
-											challenge = responseJObj.getString(PARAM_CHALLENGE);
-									} catch (JSONException e) {
-										mHandler.post(new MessageSetter("...error reading response: " + responseStr + ", " + e.getMessage()));
-									}
-									if (challenge != null) {
-										byte[] requestBytes = null;
-										try {
-											JSONObject requestJObj = new JSONObject();
-											try {
-												requestJObj.put(PARAM_ACTION, mAction);
-												if (ACTION_PASSPHRASE.equals(mAction))
-													requestJObj.put(PARAM_PASSPHRASE, mNewPassphrase);
-												requestJObj.put(PARAM_HMAC, getHashString(challenge + passphrase + mAction + mNewPassphrase));
-												String requestStr = requestJObj.toString();
-												requestBytes = requestStr.getBytes();
-											} catch (JSONException e) {
-												mHandler.post(new MessageSetter("...error building request: " + e.getMessage()));
-											}
-										} catch (NoSuchAlgorithmException e) {
-											mHandler.post(new MessageSetter("...error generating hash: " + e.getMessage()));
-										} catch (UnsupportedEncodingException e) {
-											mHandler.post(new MessageSetter("...error generating hash: " + e.getMessage()));
-										}
-										if (requestBytes != null) {
-											try {
-												outStream.write(requestBytes);
-												if (ACTION_PASSPHRASE.equals(mAction))
-													mHandler.post(new PassphraseSetter(mAddress, mNewPassphrase));
-												pass = true;
-											} catch (IOException e) {
-												mHandler.post(new MessageSetter("...error writing to output stream: " + e.getMessage()));
-											}
-										}
-									} else
-										mHandler.post(new MessageSetter("...error receiving challenge from Tap Lock Server."));
-									if (pass) {
-										// check for error messages
-										String error = null;
-										try {
-											readBytes = inStream.read(buffer);
-										} catch (IOException e) {
-											readBytes = -1;
-											error = e.getMessage();
-										}
-										if (readBytes != -1) {
-											responseStr = new String(buffer, 0, readBytes);
-											try {
-												responseJObj = new JSONObject(responseStr);
-												if (responseJObj.has(PARAM_ERROR)) {
-													pass = false;
-													error = responseJObj.getString(PARAM_ERROR);
-												}
-											} catch (JSONException e) {
-												responseJObj = null;
-											}
-											if (error != null)
-												mHandler.post(new MessageSetter("error: " + error));
-										} else
-											mHandler.post(new MessageSetter("... error reading input stream: " + error));
-									}
-									break;
+								if (connection != null) {
+									setConnection(connection);
+									exchange = exchange(connection, passphrase);
+									if (exchange != EXCHANGE_UNSENT)
+										break;
+									// no challenge, so the channel may belong to something else now
+									if (mCachedChannel)
+										mChannels.invalidate(mAddress);
+									connection.close();
+									setConnection(null);
 								}
 							}
 						}
 					}
+					if (!connected && !mRequestCanceled)
+						mRetryPolicy.failed(mAddress);
+					if (connectionAttempt == attempts)
+						mHandler.post(new MessageSetter("...unable to connect to " + name + ". Is it in range? Is it bluetooth enabled? Please close this."));
 				}
-				if (connectionAttempt == MAX_CONNECTION_ATTEMPTS)
-					mHandler.post(new MessageSetter("...unable to connect to " + name + ". Is it in range? Is it bluetooth enabled? Please close this."));
+				// a request that was sent without a reply may still have been carried out
+				pass = (exchange == EXCHANGE_OK) || (exchange == EXCHANGE_UNANSWERED);
 			}
-			shutdown(pass);
+			finish(pass);
 		}
 
-		// convenience method for shutting down thread
-		public void shutdown() {
-			shutdown(true);
-		}
-		
-		public void cancelRequest() {
-			mRequestCanceled = true;
+		/**
+		 * Connect mSocket on the server's cached channel, falling back to an SDP
+		 * search for the Tap Lock service, mSocket is left null if neither connects.
+		 * An insecure connect always searches.
+		 */
+		private void connect(BluetoothDevice device, boolean insecure) {
+			int channel = insecure ? -1 : mChannels.get(mAddress);
+			if (channel > 0) {
+				mSocket = ChannelCache.createRfcommSocket(device, channel);
+				if (mSocket != null) {
+					try {
+						mSocket.connect();
+						mCachedChannel = true;
+						return;
+					} catch (IOException e) {
+						mChannels.invalidate(mAddress);
+						closeSocket();
+					}
+				}
+			}
+			mCachedChannel = false;
+			try {
+				if (insecure)
+					mSocket = device.createInsecureRfcommSocketToServiceRecord(sTapLockUUID);
+				else
+					mSocket = device.createRfcommSocketToServiceRecord(sTapLockUUID);
+				mSocket.connect();
+				mChannels.put(mAddress, mSocket);
+			} catch (IOException e) {
+				closeSocket();
+			}
 		}
 
-		public void shutdown(boolean pass) {
-			if (inStream != null) {
+		private synchronized void closeSocket() {
+			if (mSocket != null) {
 				try {
-					inStream.close();
+					mSocket.close();
 				} catch (IOException e) {
 					Log.e(TAG, e.toString());
 				}
-				inStream = null;
+				mSocket = null;
 			}
-			if (outStream != null) {
+		}
+
+		/**
+		 * Send the request on the connection, answering the challenge from its last
+		 * reply, or on a new connection a ticket or the connection's own challenge.
+		 * @return one of the EXCHANGE_* results
+		 */
+		private int exchange(ConnectionManager.Connection connection, String passphrase) {
+			MessageFramer framer = connection.getFramer();
+			String ticket = null;
+			if (connection.getChallenge() == null) {
+				// answer the challenge from the last reply straight away, rather than waiting for a new one
+				ticket = takeTicket(mAddress);
+				if (ticket != null) {
+					String requestStr = getRequest(passphrase, ticket, PROTOCOL_VERSION_TICKET, true);
+					framer.setMode(MessageFramer.MODE_FRAMED);
+					if ((requestStr == null) || !writeRequest(framer, requestStr))
+						ticket = null;
+					// this connection's own challenge still arrives first, unframed
+					framer.setMode(MessageFramer.MODE_LEGACY);
+				}
+				String responseStr = null;
 				try {
-					outStream.close();
+					responseStr = framer.read();
 				} catch (IOException e) {
-					Log.e(TAG, e.toString());
+					mHandler.post(new MessageSetter("...error reading input stream: " + e.getMessage()));
 				}
-				outStream = null;
-			}
-			if (mSocket != null) {
+				if (responseStr == null)
+					return ticket != null ? EXCHANGE_UNANSWERED : EXCHANGE_UNSENT;
 				try {
-					mSocket.close();
-				} catch (IOException e) {
-					Log.e(TAG, e.toString());
+					JSONObject responseJObj = new JSONObject(responseStr);
+					// servers that frame their messages say so in the first challenge
+					int serverVersion = responseJObj.optInt(PARAM_VERSION, PROTOCOL_VERSION_LEGACY);
+					if (serverVersion >= PROTOCOL_VERSION_FRAMED)
+						framer.setMode(MessageFramer.MODE_FRAMED);
+					connection.setServerIdleTimeout(responseJObj.optLong(PARAM_IDLE_TIMEOUT, 0));
+					if (responseJObj.has(PARAM_CHALLENGE))
+						connection.setChallenge(responseJObj.getString(PARAM_CHALLENGE), serverVersion);
+				} catch (JSONException e) {
+					mHandler.post(new MessageSetter("...error reading response: " + responseStr + ", " + e.getMessage()));
+				}
+				if (connection.getChallenge() == null) {
+					mHandler.post(new MessageSetter("...error receiving challenge from Tap Lock Server."));
+					return ticket != null ? EXCHANGE_UNANSWERED : EXCHANGE_FAILED;
+				}
+			}
+			int serverVersion = connection.getServerVersion();
+			// the challenge is only good once, a connection is kept after this only if the reply has the next one
+			String challenge = connection.takeChallenge();
+			// with a ticket the request's already sent, and its reply is next
+			if (ticket == null) {
+				String requestStr = getRequest(passphrase, challenge, serverVersion, false);
+				if (requestStr == null)
+					return EXCHANGE_FAILED;
+				if (!writeRequest(framer, requestStr))
+					return EXCHANGE_UNSENT;
+				// a kept connection's challenge is also the ticket, which mustn't be offered again
+				dropTicket(mAddress, challenge);
+			}
+			// check for error messages
+			JSONObject responseJObj;
+			try {
+				responseJObj = readResponse(framer);
+				if ((ticket != null) && (responseJObj != null) && ERROR_TICKET_EXPIRED.equals(responseJObj.optString(PARAM_ERROR, null))) {
+					// the server didn't take the ticket, answer the challenge in its reply instead
+					String requestStr = getRequest(passphrase, responseJObj.optString(PARAM_CHALLENGE, ""), serverVersion, false);
+					if (requestStr == null)
+						return EXCHANGE_FAILED;
+					if (!writeRequest(framer, requestStr))
+						return EXCHANGE_FAILED;
+					responseJObj = readResponse(framer);
+				}
+			} catch (IOException e) {
+				mHandler.post(new MessageSetter("... error reading input stream: " + e.getMessage()));
+				return EXCHANGE_UNANSWERED;
+			}
+			if (responseJObj == null)
+				return EXCHANGE_UNANSWERED;
+			if (responseJObj.has(PARAM_CHALLENGE)) {
+				String nextChallenge = responseJObj.optString(PARAM_CHALLENGE);
+				connection.setChallenge(nextChallenge, serverVersion);
+				if (serverVersion >= PROTOCOL_VERSION_TICKET)
+					putTicket(mAddress, nextChallenge);
+			}
+			if (responseJObj.has(PARAM_ERROR)) {
+				mHandler.post(new MessageSetter("error: " + responseJObj.optString(PARAM_ERROR)));
+				return EXCHANGE_FAILED;
+			}
+			return EXCHANGE_OK;
+		}
+
+		private String getRequest(String passphrase, String challenge, int serverVersion, boolean ticket) {
+			try {
+				JSONObject requestJObj = new JSONObject();
+				requestJObj.put(PARAM_ACTION, mAction);
+				if (ACTION_PASSPHRASE.equals(mAction))
+					requestJObj.put(PARAM_PASSPHRASE, mNewPassphrase);
+				if (ticket)
+					requestJObj.put(PARAM_TICKET, challenge);
+				if (serverVersion >= PROTOCOL_VERSION_HMAC) {
+					requestJObj.put(PARAM_VERSION, PROTOCOL_VERSION_HMAC);
+					requestJObj.put(PARAM_HMAC, getHmacString(passphrase, challenge, mAction, mNewPassphrase));
+				} else
+					requestJObj.put(PARAM_HMAC, getHashString(challenge + passphrase + mAction + mNewPassphrase));
+				return requestJObj.toString();
+			} catch (JSONException e) {
+				mHandler.post(new MessageSetter("...error building request: " + e.getMessage()));
+			} catch (NoSuchAlgorithmException e) {
+				mHandler.post(new MessageSetter("...error generating hash: " + e.getMessage()));
+			} catch (UnsupportedEncodingException e) {
+				mHandler.post(new MessageSetter("...error generating hash: " + e.getMessage()));
+			} catch (InvalidKeyException e) {
+				mHandler.post(new MessageSetter("...error generating hash: " + e.getMessage()));
+			}
+			return null;
+		}
+
+		private boolean writeRequest(MessageFramer framer, String requestStr) {
+			try {
+				framer.write(requestStr);
+				if (ACTION_PASSPHRASE.equals(mAction)) {
+					// the server has the new passphrase, so it's used from now on
+					mDevices.setPassphrase(mAddress, mNewPassphrase);
+					mHandler.post(new PassphraseSetter(mAddress, mNewPassphrase));
 				}
+				return true;
+			} catch (IOException e) {
+				mHandler.post(new MessageSetter("...error writing to output stream: " + e.getMessage()));
+			}
+			return false;
+		}
+
+		/**
+		 * @return the reply, or null if it isn't JSON
+		 */
+		private JSONObject readResponse(MessageFramer framer) throws IOException {
+			String responseStr = framer.read();
+			if (responseStr == null)
+				throw new IOException("connection closed");
+			try {
+				return new JSONObject(responseStr);
+			} catch (JSONException e) {
+				return null;
+			}
+		}
+
+		public void cancelRequest() {
+			mRequestCanceled = true;
+			// wake it from any backoff
+			interrupt();
+		}
+
+		private synchronized void setConnection(ConnectionManager.Connection connection) {
+			mConnection = connection;
+			// the connection owns the socket now
+			if (connection != null)
 				mSocket = null;
+		}
+
+		// stop the thread, closing any connection it's using
+		public void shutdown() {
+			interrupt();
+			synchronized (this) {
+				mShutdown = true;
+				if (mConnection != null) {
+					mConnection.close();
+					mConnection = null;
+				}
+				closeSocket();
 			}
-			mConnectThread = null;
-			mHandler.post(new StateFinishedSetter(pass));
+			finish(true);
 		}
-	}
 
-	@Override
-	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-		if (key.equals(KEY_DEVICES)) {
-			mDevices.clear();
-			Set<String> devices = sharedPreferences.getStringSet(KEY_DEVICES, null);
-			if (devices != null) {
-				for (String device : devices) {
-					try {
-						mDevices.add(new JSONObject(device));
-					} catch (JSONException e) {
-						Log.e(TAG, e.toString());
-					}
+		// keep the connection for the next request, unless it was canceled
+		private void finish(boolean pass) {
+			boolean report;
+			synchronized (this) {
+				if (mConnection != null) {
+					if (mRequestCanceled)
+						mConnection.close();
+					else
+						mConnections.release(mConnection);
+					mConnection = null;
 				}
+				closeSocket();
+				// only the first finish shows on the widgets, a shut down request just clears them
+				report = !mFinished && !mShutdown;
+				if (!mFinished) {
+					mFinished = true;
+					mHandler.post(new WidgetStatusSetter(mAddress, mShutdown ? null : (pass ? WIDGET_PASS : WIDGET_FAIL)));
+				}
+			}
+			synchronized (mThreadLock) {
+				if (report && (mAction != null))
+					mResults.put(mAddress, pass);
+				if (mConnectThread == this)
+					mConnectThread = null;
 			}
+			if (mLockAllRequest != null)
+				mLockAllRequest.finished(this, pass);
+			else
+				mHandler.post(new StateFinishedSetter(pass));
 		}
 	}
 
+	@Override
+	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+		if (key.equals(KEY_CONNECTION_IDLE))
+			mConnections.setIdleTimeout(sharedPreferences.getInt(KEY_CONNECTION_IDLE, DEFAULT_CONNECTION_IDLE) * 1000L);
+	}
+
 	class MessageSetter implements Runnable {
 		
 		String mMessage = null;
@@ -712,6 +1216,58 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 		}
 	}
 
+	class AttemptSetter implements Runnable {
+
+		String mAddress = null;
+		int mAttempt = 0;
+		int mAttempts = 0;
+		boolean mConnected = false;
+		long mDuration = 0;
+		long mDelay = 0;
+
+		public AttemptSetter(String address, int attempt, int attempts, boolean connected, long duration, long delay) {
+			mAddress = address;
+			mAttempt = attempt;
+			mAttempts = attempts;
+			mConnected = connected;
+			mDuration = duration;
+			mDelay = delay;
+		}
+
+		@Override
+		public void run() {
+			if (mUIInterface != null) {
+				try {
+					mUIInterface.setConnectionAttempt(mAddress, mAttempt, mAttempts, mConnected, mDuration, mDelay);
+				} catch (RemoteException e) {
+					Log.e(TAG, e.getMessage());
+				}
+			}
+		}
+	}
+
+	class LockResultSetter implements Runnable {
+
+		String mAddress = null;
+		boolean mPass = false;
+
+		public LockResultSetter(String address, boolean pass) {
+			mAddress = address;
+			mPass = pass;
+		}
+
+		@Override
+		public void run() {
+			if (mUIInterface != null) {
+				try {
+					mUIInterface.setLockResult(mAddress, mPass);
+				} catch (RemoteException e) {
+					Log.e(TAG, e.getMessage());
+				}
+			}
+		}
+	}
+
 	class StateFinishedSetter implements Runnable {
 
 		boolean mPass = false;
@@ -728,8 +1284,24 @@ public class TapLockService extends Service implements OnSharedPreferenceChangeL
 				} catch (RemoteException e) {
 					Log.e(TAG, e.getMessage());
 				}
-			} else
+			} else if (mConnections.isEmpty() && mWidgetStatus.isEmpty())
 				stopSelf();
 		}
 	}
+
+	class WidgetStatusSetter implements Runnable {
+
+		String mAddress = null;
+		String mStatus = null;
+
+		public WidgetStatusSetter(String address, String status) {
+			mAddress = address;
+			mStatus = status;
+		}
+
+		@Override
+		public void run() {
+			setWidgetStatus(mAddress, mStatus);
+		}
+	}
 }
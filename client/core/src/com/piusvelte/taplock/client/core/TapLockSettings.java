@@ -22,30 +22,35 @@ package com.piusvelte.taplock.client.core;
 import static com.piusvelte.taplock.client.core.TapLock.PRO;
 import static com.piusvelte.taplock.client.core.TapLock.GOOGLE_AD_ID;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_LOCK;
+import static com.piusvelte.taplock.client.core.TapLock.ACTION_LOCK_ALL;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_PASSPHRASE;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_REMOVE;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_TAG;
+import static com.piusvelte.taplock.client.core.TapLock.ACTION_TAG_LOCK_ALL;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_TOGGLE;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_UNLOCK;
+import static com.piusvelte.taplock.client.core.TapLock.ACTION_UPGRADE_TAG;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_DOWNLOAD_SDCARD;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_DOWNLOAD_EMAIL;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_COPY_DEVICE_URI;
 import static com.piusvelte.taplock.client.core.TapLock.KEY_ADDRESS;
 import static com.piusvelte.taplock.client.core.TapLock.KEY_NAME;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_PASSPHRASE;
 import static com.piusvelte.taplock.client.core.TapLock.DEFAULT_PASSPHRASE;
 import static com.piusvelte.taplock.client.core.TapLock.EXTRA_INFO;
 import static com.piusvelte.taplock.client.core.TapLock.EXTRA_DEVICE_NAME;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_DEVICES;
+import static com.piusvelte.taplock.client.core.TapLock.EXTRA_LOCK_ALL;
 import static com.piusvelte.taplock.client.core.TapLock.KEY_PREFS;
 import static com.piusvelte.taplock.client.core.TapLock.KEY_SERVER_VERSION;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_CONNECTION_IDLE;
+import static com.piusvelte.taplock.client.core.TapLock.DEFAULT_CONNECTION_IDLE;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_HEADLESS_WIDGET;
+import static com.piusvelte.taplock.client.core.TapLock.KEY_INSECURE_FALLBACK;
 import static com.piusvelte.taplock.client.core.TapLock.SERVER_VERSION;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Set;
 
@@ -59,6 +64,7 @@ import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.app.PendingIntent;
 import android.app.ProgressDialog;
+import android.app.backup.BackupManager;
 import android.appwidget.AppWidgetManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -71,12 +77,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.res.AssetManager;
 import android.net.Uri;
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
-import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.Ndef;
@@ -99,18 +103,32 @@ import android.widget.ListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.Toast;
 
-public class TapLockSettings extends ListActivity implements ServiceConnection, OnSharedPreferenceChangeListener {
+public class TapLockSettings extends ListActivity implements ServiceConnection, DeviceRepository.OnDevicesChangedListener {
 	private static final String TAG = "TapLockSettings";
 	private ProgressDialog mProgressDialog;
 	private AlertDialog mDialog;
-	private ArrayList<JSONObject> mDevices = new ArrayList<JSONObject>();
+	private DeviceRepository mRepository;
+	private ArrayList<TapLockDevice> mDevices = new ArrayList<TapLockDevice>();
 	private ArrayList<JSONObject> mUnpairedDevices = new ArrayList<JSONObject>();
 	private boolean mShowTapLockSettingsInfo = true;
+	private boolean mResumed = false;
+	private final Runnable mResumeWithDevices = new Runnable() {
+
+		@Override
+		public void run() {
+			// the next resume carries on if this one's over
+			if (mResumed)
+				resumeWithDevices();
+		}
+	};
 	private static final int REMOVE_ID = Menu.FIRST;
 
 	// NFC
 	private NfcAdapter mNfcAdapter = null;
 	private boolean mInWriteMode = false;
+	// only rewrite an old text tag for the device
+	private boolean mUpgradeTag = false;
+	private boolean mLockAllTag = false;
 
 	private ITapLockService mServiceInterface;
 	private ITapLockUI.Stub mUIInterface = new ITapLockUI.Stub() {
@@ -187,9 +205,9 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 
 		@Override
 		public void setPassphrase(String address, String passphrase) throws RemoteException {
+			// the service stores the new passphrase
 			if (address == null)
 				Toast.makeText(getApplicationContext(), "failed to set passphrase on TapLockServer", Toast.LENGTH_SHORT).show();
-			storeDevices();
 		}
 
 		@Override
@@ -197,6 +215,16 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 			addDevice();
 		}
 
+		@Override
+		public void setConnectionAttempt(String address, int attempt, int attempts, boolean connected, long duration, long delay) throws RemoteException {
+			Log.d(TAG, address + " attempt " + (attempt + 1) + " of " + attempts + (connected ? " connected" : " failed") + " in " + duration + "ms, next in " + delay + "ms");
+		}
+
+		@Override
+		public void setLockResult(String address, boolean pass) throws RemoteException {
+			Log.d(TAG, address + (pass ? " locked" : " failed to lock"));
+		}
+
 	};
 
 	@Override
@@ -211,6 +239,7 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 		}
 		//NFC
 		mNfcAdapter = NfcAdapter.getDefaultAdapter(getApplicationContext());
+		mRepository = DeviceRepository.getInstance(this);
 
 	}
 
@@ -223,6 +252,12 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 	@Override
 	protected void onResume() {
 		super.onResume();
+		mResumed = true;
+		// on a cold start the devices may still be loading, carry on once they're in
+		mRepository.whenLoaded(mResumeWithDevices);
+	}
+
+	private void resumeWithDevices() {
 		Intent intent = getIntent();
 		if (mInWriteMode) {
 			if (intent != null) {
@@ -231,62 +266,48 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 					Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
 					String name = intent.getStringExtra(EXTRA_DEVICE_NAME);
 					if ((tag != null) && (name != null)) {
-						// write the device and address
-						String lang = "en";
-						// don't write the passphrase!
-						byte[] textBytes = name.getBytes();
-						byte[] langBytes = null;
-						int langLength = 0;
-						try {
-							langBytes = lang.getBytes("US-ASCII");
-							langLength = langBytes.length;
-						} catch (UnsupportedEncodingException e) {
-							Log.e(TAG, e.toString());
-						}
-						int textLength = textBytes.length;
-						byte[] payload = new byte[1 + langLength + textLength];
-
-						// set status byte (see NDEF spec for actual bits)
-						payload[0] = (byte) langLength;
-
-						// copy langbytes and textbytes into payload
-						if (langBytes != null) {
-							System.arraycopy(langBytes, 0, payload, 1, langLength);
-						}
-						System.arraycopy(textBytes, 0, payload, 1 + langLength, textLength);
-						NdefRecord record = new NdefRecord(NdefRecord.TNF_WELL_KNOWN, 
-								NdefRecord.RTD_TEXT, 
-								new byte[0], 
-								payload);
-						NdefMessage message = new NdefMessage(new NdefRecord[]{record, NdefRecord.createApplicationRecord(getPackageName())});
+						TapLockDevice device = mRepository.getByName(name);
 						// Get an instance of Ndef for the tag.
 						Ndef ndef = Ndef.get(tag);
-						if (ndef != null) {
-							try {
-								ndef.connect();
-								if (ndef.isWritable()) {
-									ndef.writeNdefMessage(message);
-								}
-								ndef.close();
-								Toast.makeText(this, "tag written", Toast.LENGTH_LONG).show();
-							} catch (IOException e) {
-								Log.e(TAG, e.toString());
-							} catch (FormatException e) {
-								Log.e(TAG, e.toString());
-							}
-						} else {
-							NdefFormatable format = NdefFormatable.get(tag);
-							if (format != null) {
+						TapLockTag oldTag = ((ndef != null) && mUpgradeTag) ? TapLockTag.parse(ndef.getCachedNdefMessage()) : null;
+						if (device == null)
+							Toast.makeText(this, String.format(getString(R.string.msg_device_not_conf), name), Toast.LENGTH_LONG).show();
+						else if (mUpgradeTag && ((oldTag == null) || !oldTag.isLegacy() || !name.equals(oldTag.getName())))
+							Toast.makeText(this, "not an old tag for " + name, Toast.LENGTH_LONG).show();
+						else {
+							// write the address and channel, don't write the passphrase!
+							NdefMessage message;
+							if (mLockAllTag)
+								message = TapLockTag.createLockAllMessage(getPackageName());
+							else
+								message = TapLockTag.createMessage(getPackageName(), device.getAddress(), (new ChannelCache(this)).get(device.getAddress()));
+							if (ndef != null) {
 								try {
-									format.connect();
-									format.format(message);
-									format.close();
-									Toast.makeText(getApplicationContext(), "tag written", Toast.LENGTH_LONG);
+									ndef.connect();
+									if (ndef.isWritable()) {
+										ndef.writeNdefMessage(message);
+									}
+									ndef.close();
+									Toast.makeText(this, "tag written", Toast.LENGTH_LONG).show();
 								} catch (IOException e) {
 									Log.e(TAG, e.toString());
 								} catch (FormatException e) {
 									Log.e(TAG, e.toString());
 								}
+							} else {
+								NdefFormatable format = NdefFormatable.get(tag);
+								if (format != null) {
+									try {
+										format.connect();
+										format.format(message);
+										format.close();
+										Toast.makeText(getApplicationContext(), "tag written", Toast.LENGTH_LONG).show();
+									} catch (IOException e) {
+										Log.e(TAG, e.toString());
+									} catch (FormatException e) {
+										Log.e(TAG, e.toString());
+									}
+								}
 							}
 						}
 						mNfcAdapter.disableForegroundDispatch(this);
@@ -294,14 +315,21 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 				}
 			}
 			mInWriteMode = false;
+			mUpgradeTag = false;
+			mLockAllTag = false;
 		} else {
 			SharedPreferences sp = getSharedPreferences(KEY_PREFS, MODE_PRIVATE);
-			onSharedPreferenceChanged(sp, KEY_DEVICES);
+			mRepository.addListener(this);
+			onDevicesChanged();
 			// check if configuring a widget
 			if (intent != null) {
 				Bundle extras = intent.getExtras();
 				if (extras != null) {
-					final String[] displayNames = TapLock.getDeviceNames(mDevices);
+					// the last choice locks every device
+					String[] deviceNames = TapLock.getDeviceNames(mDevices);
+					final String[] displayNames = new String[deviceNames.length + 1];
+					System.arraycopy(deviceNames, 0, displayNames, 0, deviceNames.length);
+					displayNames[deviceNames.length] = "lock all";
 					final int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
 					if (appWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
 						mDialog = new AlertDialog.Builder(TapLockSettings.this)
@@ -316,14 +344,14 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 								setResult(RESULT_OK, resultValue);
 
 								// broadcast the new widget to update
-								JSONObject deviceJObj = mDevices.get(which);
+								Intent widgetIntent = TapLock.getPackageIntent(TapLockSettings.this, TapLockWidget.class).setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE).putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+								if (which < mDevices.size())
+									widgetIntent.putExtra(EXTRA_DEVICE_NAME, mDevices.get(which).getName());
+								else
+									widgetIntent.putExtra(EXTRA_LOCK_ALL, true);
 								dialog.cancel();
 								TapLockSettings.this.finish();
-								try {
-									sendBroadcast(TapLock.getPackageIntent(TapLockSettings.this, TapLockWidget.class).setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE).putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId).putExtra(EXTRA_DEVICE_NAME, deviceJObj.getString(KEY_NAME)));
-								} catch (JSONException e) {
-									Log.e(TAG, e.toString());
-								}
+								sendBroadcast(widgetIntent);
 							}
 						})
 						.create();
@@ -402,7 +430,9 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 	@Override
 	protected void onPause() {
 		super.onPause();
+		mResumed = false;
 		if (!mInWriteMode) {
+			mRepository.removeListener(this);
 			if (mServiceInterface != null) {
 				try {
 					mServiceInterface.stop();
@@ -427,44 +457,31 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 			public void onClick(DialogInterface dialog, int which) {
 				String action = getResources().getStringArray(R.array.actions_values)[which];
 				int deviceIdx = (int) id;
-				JSONObject deviceJObj = mDevices.get(deviceIdx);
+				TapLockDevice device = mDevices.get(deviceIdx);
 				dialog.cancel();
-				if (ACTION_UNLOCK.equals(action) || ACTION_LOCK.equals(action) || ACTION_TOGGLE.equals(action)) {
-					String name = "uknown";
-					try {
-						name = deviceJObj.getString(KEY_NAME);
-					} catch (JSONException e) {
-						e.printStackTrace();
-					}
-					startActivity(TapLock.getPackageIntent(getApplicationContext(), TapLockToggle.class).setAction(action).putExtra(EXTRA_DEVICE_NAME, name));
-				} else if (ACTION_TAG.equals(action)) {
+				if (ACTION_UNLOCK.equals(action) || ACTION_LOCK.equals(action) || ACTION_TOGGLE.equals(action))
+					startActivity(TapLock.getPackageIntent(getApplicationContext(), TapLockToggle.class).setAction(action).putExtra(EXTRA_DEVICE_NAME, device.getName()));
+				else if (ACTION_LOCK_ALL.equals(action))
+					startActivity(TapLock.getPackageIntent(getApplicationContext(), TapLockToggle.class).setAction(action));
+				else if (ACTION_TAG.equals(action) || ACTION_UPGRADE_TAG.equals(action) || ACTION_TAG_LOCK_ALL.equals(action)) {
 					// write the device to a tag
 					mInWriteMode = true;
-					try {
-						mNfcAdapter.enableForegroundDispatch(TapLockSettings.this,
-								PendingIntent.getActivity(TapLockSettings.this, 0, new Intent(TapLockSettings.this, TapLockSettings.this.getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP).putExtra(EXTRA_DEVICE_NAME, deviceJObj.getString(KEY_NAME)), 0),
-								new IntentFilter[] {new IntentFilter(NfcAdapter.ACTION_TAG_DISCOVERED)},
-								null);
-					} catch (JSONException e) {
-						Log.e(TAG, e.getMessage());
-					}
+					mUpgradeTag = ACTION_UPGRADE_TAG.equals(action);
+					mLockAllTag = ACTION_TAG_LOCK_ALL.equals(action);
+					mNfcAdapter.enableForegroundDispatch(TapLockSettings.this,
+							PendingIntent.getActivity(TapLockSettings.this, 0, new Intent(TapLockSettings.this, TapLockSettings.this.getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP).putExtra(EXTRA_DEVICE_NAME, device.getName()), 0),
+							new IntentFilter[] {new IntentFilter(NfcAdapter.ACTION_TAG_DISCOVERED)},
+							null);
 					Toast.makeText(TapLockSettings.this, "Touch tag", Toast.LENGTH_LONG).show();
-				} else if (ACTION_REMOVE.equals(action)) {
-					mDevices.remove(deviceIdx);
-					storeDevices();
-				} else if (ACTION_PASSPHRASE.equals(action))
+				} else if (ACTION_REMOVE.equals(action))
+					mRepository.remove(device.getAddress());
+				else if (ACTION_PASSPHRASE.equals(action))
 					setPassphrase(deviceIdx);
 				else if (ACTION_COPY_DEVICE_URI.equals(action)) {
 					ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
-					ClipData clip;
-					try {
-						clip = ClipData.newPlainText(getString(R.string.app_name), String.format(getString(R.string.device_uri), deviceJObj.get(EXTRA_DEVICE_NAME)));
-						clipboard.setPrimaryClip(clip);
-						Toast.makeText(TapLockSettings.this, "copied to clipboard!", Toast.LENGTH_SHORT).show();
-					} catch (JSONException e) {
-						Log.e(TAG, e.getMessage());
-						Toast.makeText(TapLockSettings.this, getString(R.string.msg_oops), Toast.LENGTH_SHORT).show();
-					}
+					ClipData clip = ClipData.newPlainText(getString(R.string.app_name), String.format(getString(R.string.device_uri), device.getName()));
+					clipboard.setPrimaryClip(clip);
+					Toast.makeText(TapLockSettings.this, "copied to clipboard!", Toast.LENGTH_SHORT).show();
 				}
 			}
 		})
@@ -472,6 +489,74 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 		mDialog.show();
 	}
 
+	private void showSettings() {
+		mDialog = new AlertDialog.Builder(TapLockSettings.this)
+		.setTitle(R.string.button_settings)
+		.setItems(R.array.settings_entries, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				String key = getResources().getStringArray(R.array.settings_values)[which];
+				dialog.cancel();
+				if (KEY_CONNECTION_IDLE.equals(key))
+					setConnectionIdle();
+				else if (KEY_HEADLESS_WIDGET.equals(key))
+					setBooleanSetting(key, true, R.string.ttl_headless_widget, R.array.headless_widget_entries);
+				else if (KEY_INSECURE_FALLBACK.equals(key))
+					setBooleanSetting(key, false, R.string.ttl_insecure_fallback, R.array.insecure_fallback_entries);
+			}
+		})
+		.create();
+		mDialog.show();
+	}
+
+	private void setConnectionIdle() {
+		final SharedPreferences sp = getSharedPreferences(KEY_PREFS, MODE_PRIVATE);
+		final String[] values = getResources().getStringArray(R.array.connection_idle_values);
+		String current = Integer.toString(sp.getInt(KEY_CONNECTION_IDLE, DEFAULT_CONNECTION_IDLE));
+		int checked = -1;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].equals(current))
+				checked = i;
+		}
+		mDialog = new AlertDialog.Builder(TapLockSettings.this)
+		.setTitle(R.string.ttl_connection_idle)
+		.setSingleChoiceItems(R.array.connection_idle_entries, checked, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				// the service picks this up as it's written
+				sp.edit().putInt(KEY_CONNECTION_IDLE, Integer.parseInt(values[which])).commit();
+				(new BackupManager(TapLockSettings.this)).dataChanged();
+				dialog.cancel();
+			}
+		})
+		.create();
+		mDialog.show();
+	}
+
+	/**
+	 * @param entries describes the setting on, then off
+	 */
+	private void setBooleanSetting(final String key, boolean defaultValue, int title, int entries) {
+		final SharedPreferences sp = getSharedPreferences(KEY_PREFS, MODE_PRIVATE);
+		mDialog = new AlertDialog.Builder(TapLockSettings.this)
+		.setTitle(title)
+		.setSingleChoiceItems(entries, sp.getBoolean(key, defaultValue) ? 0 : 1, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				sp.edit().putBoolean(key, which == 0).commit();
+				(new BackupManager(TapLockSettings.this)).dataChanged();
+				if (KEY_HEADLESS_WIDGET.equals(key)) {
+					// the widgets' intents are set when they're built
+					int[] appWidgetIds = AppWidgetManager.getInstance(TapLockSettings.this).getAppWidgetIds(new ComponentName(TapLockSettings.this, TapLock.getPackageClass(TapLockSettings.this, TapLockWidget.class)));
+					sendBroadcast(TapLock.getPackageIntent(TapLockSettings.this, TapLockWidget.class).setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE).putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, appWidgetIds));
+				}
+				dialog.cancel();
+			}
+		})
+		.create();
+		mDialog.show();
+	}
+
 	@Override
 	public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
 		super.onCreateContextMenu(menu, view, menuInfo);
@@ -484,8 +569,7 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 		case REMOVE_ID:
 			// remove device
 			int deviceIdx = (int) ((AdapterContextMenuInfo) item.getMenuInfo()).id;
-			mDevices.remove(deviceIdx);
-			storeDevices();
+			mRepository.remove(mDevices.get(deviceIdx).getAddress());
 			return true;
 		}
 		return super.onContextItemSelected(item);
@@ -503,6 +587,8 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 		int itemId = item.getItemId();
 		if (itemId == R.id.button_add_device)
 			addDevice();
+		else if (itemId == R.id.button_settings)
+			showSettings();
 		else if (itemId == R.id.button_about) {
 			mDialog = new AlertDialog.Builder(TapLockSettings.this)
 			.setTitle(R.string.button_about)
@@ -674,13 +760,8 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 
 	protected void setPassphrase(final int deviceIdx) {
 		final EditText fld_passphrase = new EditText(TapLockSettings.this);
-		// parse the existing passphrase
-		JSONObject deviceJObj = mDevices.get(deviceIdx);
-		try {
-			fld_passphrase.setText(deviceJObj.getString(KEY_PASSPHRASE));
-		} catch (JSONException e) {
-			Log.e(TAG, e.getMessage());
-		}
+		final TapLockDevice device = mDevices.get(deviceIdx);
+		fld_passphrase.setText(device.getPassphrase());
 		mDialog = new AlertDialog.Builder(TapLockSettings.this)
 		.setTitle("set passphrase")
 		.setView(fld_passphrase)
@@ -690,23 +771,15 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 			public void onClick(DialogInterface dialog, int which) {
 				dialog.cancel();
 				String passphrase = fld_passphrase.getText().toString();
-				JSONObject deviceJObj = mDevices.remove(deviceIdx);
-				try {
-					deviceJObj.put(KEY_PASSPHRASE, passphrase);
-				} catch (JSONException e) {
-					Log.e(TAG, e.getMessage());
-				}
-				mDevices.add(deviceIdx, deviceJObj);
+				// the current passphrase signs the request, the service stores the new one once it's sent
 				if (mServiceInterface != null) {
 					try {
-						mServiceInterface.write(deviceJObj.getString(KEY_ADDRESS), ACTION_PASSPHRASE, passphrase);
+						mServiceInterface.write(device.getAddress(), ACTION_PASSPHRASE, passphrase);
 					} catch (RemoteException e) {
 						Log.e(TAG, e.getMessage());
-					} catch (JSONException e) {
-						Log.e(TAG, e.getMessage());
 					}
 				} else
-					storeDevices();
+					mRepository.setPassphrase(device.getAddress(), passphrase);
 			}
 
 		})
@@ -716,28 +789,14 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 
 	private void addNewDevice(String name, String address) {
 		// duplicate checking
-		boolean isDuplicate = false;
-		for (JSONObject deviceJObj : mDevices) {
-			try {
-				if (deviceJObj.getString(KEY_ADDRESS).equals(address)) {
-					isDuplicate = true;
-					name = deviceJObj.getString(KEY_NAME);
-					break;
-				}
-			} catch (JSONException e) {
-				Log.e(TAG, e.getMessage());
-			}
-		}
-		if (isDuplicate)
-			Toast.makeText(getApplicationContext(), String.format(getString(R.string.msg_deviceexists), name), Toast.LENGTH_SHORT).show();
+		TapLockDevice existing = mRepository.getByAddress(address);
+		if (existing != null)
+			Toast.makeText(getApplicationContext(), String.format(getString(R.string.msg_deviceexists), existing.getName()), Toast.LENGTH_SHORT).show();
 		else {
 			// new device
-			JSONObject deviceJObj = TapLock.createDevice(name, address, DEFAULT_PASSPHRASE);
-			mDevices.add(deviceJObj);
-			storeDevices();
+			mRepository.add(new TapLockDevice(name, address, DEFAULT_PASSPHRASE));
 			// instead of setting the passphrase for new devices, show info
-			// setPassphrase(mDevices.size() - 1);
-			if (mDevices.size() == 1) {
+			if (mRepository.size() == 1) {
 				// first device added
 				Intent i = TapLock.getPackageIntent(TapLockSettings.this, TapLockInfo.class);
 				i.putExtra(EXTRA_INFO, getString(R.string.info_newdevice));
@@ -764,26 +823,8 @@ public class TapLockSettings extends ListActivity implements ServiceConnection,
 	}
 
 	@Override
-	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-		if (key.equals(KEY_DEVICES)) {
-			mDevices.clear();
-			Set<String> devices = sharedPreferences.getStringSet(KEY_DEVICES, null);
-			if (devices != null) {
-				for (String device : devices) {
-					try {
-						mDevices.add(new JSONObject(device));
-					} catch (JSONException e) {
-						Log.e(TAG, e.toString());
-					}
-				}
-			}
-			String[] deviceNames = TapLock.getDeviceNames(mDevices);
-			setListAdapter(new ArrayAdapter<String>(TapLockSettings.this, android.R.layout.simple_list_item_1, deviceNames));
-		}
-	}
-	
-	private void storeDevices() {
-		TapLock.storeDevices(this, getSharedPreferences(KEY_PREFS, MODE_PRIVATE), mDevices);
+	public void onDevicesChanged() {
+		mDevices = mRepository.getDevices();
 		String[] deviceNames = TapLock.getDeviceNames(mDevices);
 		setListAdapter(new ArrayAdapter<String>(TapLockSettings.this, android.R.layout.simple_list_item_1, deviceNames));
 	}
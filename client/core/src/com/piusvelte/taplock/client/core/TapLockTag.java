@@ -0,0 +1,188 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import java.io.UnsupportedEncodingException;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.util.Log;
+
+/**
+ * What a tag names, read from either tag format. Tags are written as a small
+ * binary record under {@link #MIME_TYPE}: a version byte, a flags byte, the 6
+ * byte Bluetooth address, then the RFCOMM channel when the flags say it's
+ * there. Older tags hold the device name as an
+ * RTD_TEXT record, which has to be looked up by name, they're still read, and
+ * {@link TapLock#ACTION_UPGRADE_TAG} rewrites them. A lock all tag sets
+ * its flag, with an empty address.
+ */
+public class TapLockTag {
+	private static final String TAG = "TapLockTag";
+	public static final String MIME_TYPE = "application/vnd.piusvelte.taplock";
+	private static final int VERSION = 1;
+	private static final int FLAG_CHANNEL = 0x01;
+	// 0x02 is unused, the client learns the protocol version from the server's challenge
+	private static final int FLAG_LOCK_ALL = 0x04;
+	private static final int ADDRESS_LENGTH = 6;
+	private final String mName;
+	private final String mAddress;
+	private final int mChannel;
+	private final boolean mLockAll;
+
+	private TapLockTag(String name, String address, int channel, boolean lockAll) {
+		mName = name;
+		mAddress = address;
+		mChannel = channel;
+		mLockAll = lockAll;
+	}
+
+	/**
+	 * @return the device name from a text tag, or null
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @return the address from a binary tag, or null
+	 */
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * @return the server's RFCOMM channel, or -1 if the tag doesn't have it
+	 */
+	public int getChannel() {
+		return mChannel;
+	}
+
+	public boolean isLegacy() {
+		return mName != null;
+	}
+
+	public boolean isLockAll() {
+		return mLockAll;
+	}
+
+	/**
+	 * @return the tag from the first record of the message, or null if it's not one of ours
+	 */
+	public static TapLockTag parse(NdefMessage message) {
+		if (message == null)
+			return null;
+		NdefRecord[] records = message.getRecords();
+		if (records.length == 0)
+			return null;
+		NdefRecord record = records[0];
+		byte[] payload = record.getPayload();
+		if (record.getTnf() == NdefRecord.TNF_MIME_MEDIA) {
+			if (!MIME_TYPE.equals(new String(record.getType())))
+				return null;
+			if ((payload.length < 2 + ADDRESS_LENGTH) || (payload[0] != VERSION)) {
+				Log.e(TAG, "unsupported tag");
+				return null;
+			}
+			int flags = payload[1];
+			if ((flags & FLAG_LOCK_ALL) != 0)
+				return new TapLockTag(null, null, -1, true);
+			int i = 2;
+			StringBuilder address = new StringBuilder(17);
+			for (int b = 0; b < ADDRESS_LENGTH; b++, i++) {
+				if (b > 0)
+					address.append(':');
+				address.append(String.format("%02X", payload[i] & 0xFF));
+			}
+			int channel = -1;
+			if (((flags & FLAG_CHANNEL) != 0) && (i < payload.length))
+				channel = payload[i] & 0xFF;
+			return new TapLockTag(null, address.toString(), channel, false);
+		} else if ((record.getTnf() == NdefRecord.TNF_WELL_KNOWN) && (payload.length > 0)) {
+			/*
+			 * payload[0] contains the "Status Byte Encodings" field, per the
+			 * NFC Forum "Text Record Type Definition" section 3.2.1.
+			 *
+			 * bit7 is the Text Encoding Field.
+			 *
+			 * if (Bit_7 == 0): The text is encoded in UTF-8 if (Bit_7 == 1):
+			 * The text is encoded in UTF16
+			 *
+			 * Bit_6 is reserved for future use and must be set to zero.
+			 *
+			 * Bits 5 to 0 are the length of the IANA language code.
+			 */
+			String textEncoding = ((payload[0] & 0200) == 0) ? "UTF-8" : "UTF-16";
+			int languageCodeLength = payload[0] & 0077;
+			try {
+				return new TapLockTag(new String(payload, languageCodeLength + 1, payload.length - languageCodeLength - 1, textEncoding), null, -1, false);
+			} catch (UnsupportedEncodingException e) {
+				// should never happen unless we get a malformed tag.
+				Log.e(TAG, e.toString());
+			} catch (IndexOutOfBoundsException e) {
+				Log.e(TAG, e.toString());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param channel the server's RFCOMM channel, or -1 to leave it out
+	 * @return the tag's message, with an application record to open TapLock
+	 */
+	public static NdefMessage createMessage(String packageName, String address, int channel) {
+		String[] octets = address.split(":");
+		if (octets.length != ADDRESS_LENGTH)
+			throw new IllegalArgumentException("bad address " + address);
+		int flags = 0;
+		int length = 2 + ADDRESS_LENGTH;
+		if ((channel > 0) && (channel < 256)) {
+			flags |= FLAG_CHANNEL;
+			length++;
+		}
+		byte[] payload = new byte[length];
+		payload[0] = VERSION;
+		payload[1] = (byte) flags;
+		int i = 2;
+		for (String octet : octets)
+			payload[i++] = (byte) Integer.parseInt(octet, 16);
+		if ((flags & FLAG_CHANNEL) != 0)
+			payload[i] = (byte) channel;
+		return createMessage(packageName, payload);
+	}
+
+	/**
+	 * @return a tag that locks every device
+	 */
+	public static NdefMessage createLockAllMessage(String packageName) {
+		byte[] payload = new byte[2 + ADDRESS_LENGTH];
+		payload[0] = VERSION;
+		payload[1] = FLAG_LOCK_ALL;
+		return createMessage(packageName, payload);
+	}
+
+	private static NdefMessage createMessage(String packageName, byte[] payload) {
+		NdefRecord record = new NdefRecord(NdefRecord.TNF_MIME_MEDIA,
+				MIME_TYPE.getBytes(),
+				new byte[0],
+				payload);
+		return new NdefMessage(new NdefRecord[]{record, NdefRecord.createApplicationRecord(packageName)});
+	}
+}
@@ -20,20 +20,14 @@
 package com.piusvelte.taplock.client.core;
 
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_LOCK;
+import static com.piusvelte.taplock.client.core.TapLock.ACTION_LOCK_ALL;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_TOGGLE;
 import static com.piusvelte.taplock.client.core.TapLock.ACTION_UNLOCK;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_ADDRESS;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_NAME;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_DEVICES;
-import static com.piusvelte.taplock.client.core.TapLock.KEY_PREFS;
+import static com.piusvelte.taplock.client.core.TapLock.EXTRA_DEVICE_ADDRESS;
 import static com.piusvelte.taplock.client.core.TapLock.EXTRA_DEVICE_NAME;
-
-import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.Set;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import static com.piusvelte.taplock.client.core.TapLock.REQUEST_FAILED;
+import static com.piusvelte.taplock.client.core.TapLock.REQUEST_NONE;
+import static com.piusvelte.taplock.client.core.TapLock.REQUEST_PASSED;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
@@ -42,9 +36,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
 import android.nfc.NdefMessage;
-import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -55,11 +47,48 @@ import android.widget.Toast;
 
 public class TapLockToggle extends Activity implements ServiceConnection {
 	private static final String TAG = "TapLockToggle";
-	private ArrayList<JSONObject> mDevices = new ArrayList<JSONObject>();
+	private static final String STATE_ADDRESS = "address";
+	private static final String STATE_ACTION = "action";
+	private static final String STATE_MESSAGE = "message";
+	private static final String STATE_RESOLVING = "resolving";
 	private ProgressDialog mProgressDialog;
 	private String mProgressMessage = "";
+	// the request sent to the service from onCreate
+	private String mAddress = null;
+	private String mAction = null;
+	// the request waits for the devices to load before it's sent
+	private boolean mResolving = false;
+	private boolean mDestroyed = false;
 
 	private ITapLockService mServiceInterface;
+	// attach to the request, it may have finished already
+	private final Runnable mAttach = new Runnable() {
+
+		@Override
+		public void run() {
+			ITapLockService service = mServiceInterface;
+			if ((service == null) || mDestroyed)
+				return;
+			if ((mAddress != null) || ACTION_LOCK_ALL.equals(mAction)) {
+				try {
+					int state = service.getRequestState(mAddress);
+					if (state == REQUEST_PASSED)
+						finish();
+					else if (state == REQUEST_FAILED)
+						mUIInterface.setMessage(getString(R.string.msg_request_failed));
+					else if (state == REQUEST_NONE) {
+						if (mAddress == null)
+							service.lockAll();
+						else
+							service.write(mAddress, mAction, null);
+					}
+				} catch (RemoteException e) {
+					Log.e(TAG, e.toString());
+				}
+			} else
+				finish();
+		}
+	};
 	private ITapLockUI.Stub mUIInterface = new ITapLockUI.Stub() {
 
 		@Override
@@ -96,12 +125,54 @@ public class TapLockToggle extends Activity implements ServiceConnection {
 		public void setBluetoothEnabled() throws RemoteException {
 		}
 
+		@Override
+		public void setConnectionAttempt(String address, int attempt, int attempts, boolean connected, long duration, long delay) throws RemoteException {
+			if (connected)
+				setMessage("...connected in " + duration + "ms");
+			else if (delay > 0)
+				setMessage("...no answer after " + duration + "ms, trying again in " + delay + "ms");
+		}
+
+		@Override
+		public void setLockResult(String address, boolean pass) throws RemoteException {
+			DeviceRepository devices = DeviceRepository.getInstance(TapLockToggle.this);
+			// locking them means they're loaded, but don't wait on the disk here if they aren't
+			TapLockDevice device = devices.isLoaded() ? devices.getByAddress(address) : null;
+			setMessage(((device != null) ? device.getName() : address) + (pass ? " locked" : " failed to lock"));
+		}
+
 	};
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.toggle);
+		// connect while the dialog shows and the service binds
+		if ((savedInstanceState == null) || savedInstanceState.getBoolean(STATE_RESOLVING))
+			startRequest(getIntent());
+		else {
+			// recreated, attach to the request that's already started
+			mAddress = savedInstanceState.getString(STATE_ADDRESS);
+			mAction = savedInstanceState.getString(STATE_ACTION);
+			mProgressMessage = savedInstanceState.getString(STATE_MESSAGE);
+			if (mProgressMessage == null)
+				mProgressMessage = "";
+		}
+	}
+
+	@Override
+	protected void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putString(STATE_ADDRESS, mAddress);
+		outState.putString(STATE_ACTION, mAction);
+		outState.putString(STATE_MESSAGE, mProgressMessage);
+		outState.putBoolean(STATE_RESOLVING, mResolving);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mDestroyed = true;
 	}
 
 	@Override
@@ -131,18 +202,6 @@ public class TapLockToggle extends Activity implements ServiceConnection {
 			}
 		});
 		mProgressDialog.show();
-		mDevices.clear();
-		final SharedPreferences sp = getSharedPreferences(KEY_PREFS, MODE_PRIVATE);
-		Set<String> devices = sp.getStringSet(KEY_DEVICES, null);
-		if (devices != null) {
-			for (String device : devices) {
-				try {
-					mDevices.add(new JSONObject(device));
-				} catch (JSONException e) {
-					Log.e(TAG, e.toString());
-				}
-			}
-		}
 		// start the service before binding so that the service stays around for faster future connections
 		startService(TapLock.getPackageIntent(this, TapLockService.class));
 		bindService(TapLock.getPackageIntent(this, TapLockService.class), this, BIND_AUTO_CREATE);
@@ -173,59 +232,8 @@ public class TapLockToggle extends Activity implements ServiceConnection {
 				Log.e(TAG, e.toString());
 			}
 		}
-		Intent intent = getIntent();
-		if (intent != null) {
-			String action = intent.getAction();
-			if (NfcAdapter.ACTION_NDEF_DISCOVERED.equals(action) && intent.hasExtra(NfcAdapter.EXTRA_NDEF_MESSAGES)) {
-				Log.d(TAG, "service connected, NDEF_DISCOVERED");
-				Parcelable[] rawMsgs = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
-				NdefMessage message;
-				if (rawMsgs != null) {
-					// process the first message
-					message = (NdefMessage) rawMsgs[0];
-					// process the first record
-					NdefRecord record = message.getRecords()[0];
-					if (record.getTnf() == NdefRecord.TNF_WELL_KNOWN) {
-						try {
-							byte[] payload = record.getPayload();
-							/*
-							 * payload[0] contains the "Status Byte Encodings" field, per the
-							 * NFC Forum "Text Record Type Definition" section 3.2.1.
-							 *
-							 * bit7 is the Text Encoding Field.
-							 *
-							 * if (Bit_7 == 0): The text is encoded in UTF-8 if (Bit_7 == 1):
-							 * The text is encoded in UTF16
-							 *
-							 * Bit_6 is reserved for future use and must be set to zero.
-							 *
-							 * Bits 5 to 0 are the length of the IANA language code.
-							 */
-							String textEncoding = ((payload[0] & 0200) == 0) ? "UTF-8" : "UTF-16";
-							int languageCodeLength = payload[0] & 0077;
-							String taggedDeviceName = new String(payload, languageCodeLength + 1, payload.length - languageCodeLength - 1, textEncoding);
-							manageDevice(taggedDeviceName, ACTION_TOGGLE);
-						} catch (UnsupportedEncodingException e) {
-							// should never happen unless we get a malformed tag.
-							Log.e(TAG, e.toString());
-							finish();
-						}
-					} else
-						finish();
-				} else
-					finish();
-			} else if (intent.getData() != null) {
-				String taggedDeviceName = intent.getData().getHost();
-				if (taggedDeviceName != null)
-					manageDevice(taggedDeviceName, ACTION_TOGGLE);
-				else
-					finish();
-			} else if (ACTION_UNLOCK.equals(action) || ACTION_LOCK.equals(action) || ACTION_TOGGLE.equals(action))
-				manageDevice(intent.getStringExtra(EXTRA_DEVICE_NAME), action);
-			else
-				finish();
-		} else
-			finish();
+		// after the request's resolved, and any command the service was waiting to run
+		DeviceRepository.getInstance(this).whenLoaded(mAttach);
 	}
 
 	@Override
@@ -233,27 +241,107 @@ public class TapLockToggle extends Activity implements ServiceConnection {
 		mServiceInterface = null;
 	}
 	
-	private void manageDevice(String name, String action) {
-		String address = null;
-		for (JSONObject deviceJObj : mDevices) {
-			try {
-				if (deviceJObj.getString(KEY_NAME).equals(name)) {
-					address = deviceJObj.getString(KEY_ADDRESS);
-					break;
-				}
-			} catch (JSONException e) {
-				Log.e(TAG, e.toString());
-			}
+	/**
+	 * Resolve the device from the tag, uri, or extras, and send its request
+	 * straight to the service.
+	 */
+	private void startRequest(Intent intent) {
+		if (intent == null) {
+			finish();
+			return;
 		}
-		if (address != null) {
-			try {
-				mServiceInterface.write(address, action, null);
-			} catch (RemoteException e) {
-				Log.e(TAG, e.toString());
+		String action = intent.getAction();
+		if (NfcAdapter.ACTION_NDEF_DISCOVERED.equals(action) && intent.hasExtra(NfcAdapter.EXTRA_NDEF_MESSAGES)) {
+			Log.d(TAG, "NDEF_DISCOVERED");
+			Parcelable[] rawMsgs = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
+			// process the first message
+			TapLockTag tag = ((rawMsgs != null) && (rawMsgs.length > 0)) ? TapLockTag.parse((NdefMessage) rawMsgs[0]) : null;
+			if (tag == null)
+				finish();
+			else if (tag.isLockAll())
+				lockAll();
+			else if (tag.isLegacy())
+				manageDevice(tag.getName(), ACTION_TOGGLE);
+			else {
+				// the tag's channel saves an SDP search, if the server hasn't been seen yet
+				(new ChannelCache(this)).suggest(tag.getAddress(), tag.getChannel());
+				final String address = tag.getAddress();
+				whenLoaded(new Runnable() {
+
+					@Override
+					public void run() {
+						manageDevice(DeviceRepository.getInstance(TapLockToggle.this).getByAddress(address), address, ACTION_TOGGLE);
+					}
+				});
+			}
+		} else if (intent.getData() != null) {
+			String taggedDeviceName = intent.getData().getHost();
+			if (taggedDeviceName != null)
+				manageDevice(taggedDeviceName, ACTION_TOGGLE);
+			else
+				finish();
+		} else if (ACTION_UNLOCK.equals(action) || ACTION_LOCK.equals(action) || ACTION_TOGGLE.equals(action))
+			manageDevice(intent.getStringExtra(EXTRA_DEVICE_NAME), action);
+		else if (ACTION_LOCK_ALL.equals(action))
+			lockAll();
+		else
+			finish();
+	}
+
+	private void lockAll() {
+		mAddress = null;
+		mAction = ACTION_LOCK_ALL;
+		startService(TapLock.getPackageIntent(this, TapLockService.class).setAction(ACTION_LOCK_ALL));
+	}
+
+	private void manageDevice(final String name, final String action) {
+		whenLoaded(new Runnable() {
+
+			@Override
+			public void run() {
+				manageDevice(DeviceRepository.getInstance(TapLockToggle.this).getByName(name), name, action);
+			}
+		});
+	}
+
+	/**
+	 * Resolve the request once the devices are loaded, rather than wait for them
+	 * on the main thread. If the activity's recreated first, the new one starts over.
+	 */
+	private void whenLoaded(final Runnable resolve) {
+		mResolving = true;
+		DeviceRepository.getInstance(this).whenLoaded(new Runnable() {
+
+			@Override
+			public void run() {
+				if (mDestroyed)
+					return;
+				mResolving = false;
+				resolve.run();
+			}
+		});
+	}
+
+	/**
+	 * @param label names the device if it isn't configured
+	 */
+	private void manageDevice(TapLockDevice device, String label, String action) {
+		if (device != null) {
+			mAddress = device.getAddress();
+			mAction = action;
+			if (mServiceInterface != null) {
+				// bound while the devices loaded, send it now so the attach sees it pending
+				try {
+					mServiceInterface.write(mAddress, mAction, null);
+					return;
+				} catch (RemoteException e) {
+					Log.e(TAG, e.toString());
+				}
 			}
+			startService(TapLock.getPackageIntent(this, TapLockService.class).setAction(action).putExtra(EXTRA_DEVICE_ADDRESS, mAddress));
 		} else {
-			Toast.makeText(getApplicationContext(), String.format(getString(R.string.msg_device_not_conf), name), Toast.LENGTH_LONG).show();
+			Toast.makeText(getApplicationContext(), String.format(getString(R.string.msg_device_not_conf), label), Toast.LENGTH_LONG).show();
 			finish();
 		}
 	}
-}
\ No newline at end of file
+}
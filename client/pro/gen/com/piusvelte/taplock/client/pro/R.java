@@ -11,11 +11,17 @@ public final class R {
     public static final class array {
         public static final int actions_entries=0x7f050000;
         public static final int actions_values=0x7f050001;
+        public static final int connection_idle_entries=0x7f050009;
+        public static final int connection_idle_values=0x7f05000a;
         public static final int connection_messages=0x7f050004;
         public static final int download_entries=0x7f050002;
         public static final int download_values=0x7f050003;
+        public static final int headless_widget_entries=0x7f05000b;
+        public static final int insecure_fallback_entries=0x7f05000c;
         public static final int installer_entries=0x7f050005;
         public static final int installer_values=0x7f050006;
+        public static final int settings_entries=0x7f050007;
+        public static final int settings_values=0x7f050008;
     }
     public static final class attr {
         /** <p>Must be a color value, in the form of "<code>#<i>rgb</i></code>", "<code>#<i>argb</i></code>",
@@ -76,6 +82,7 @@ containing a value of this type.
         public static final int ad=0x7f0a0002;
         public static final int button_about=0x7f0a0007;
         public static final int button_add_device=0x7f0a0006;
+        public static final int button_settings=0x7f0a0008;
         public static final int close=0x7f0a0001;
         public static final int device_name=0x7f0a0004;
         public static final int info=0x7f0a0000;
@@ -99,6 +106,7 @@ containing a value of this type.
         public static final int button_add_device=0x7f070001;
         public static final int button_getserver=0x7f070019;
         public static final int button_license=0x7f070011;
+        public static final int button_settings=0x7f070021;
         public static final int chk_sec=0x7f070002;
         public static final int close=0x7f070015;
         public static final int device_uri=0x7f07001e;
@@ -116,13 +124,17 @@ containing a value of this type.
         public static final int msg_oops=0x7f07001c;
         public static final int msg_pickdownloader=0x7f07001b;
         public static final int msg_pickinstaller=0x7f07001a;
+        public static final int msg_request_failed=0x7f070025;
         public static final int msg_scanning=0x7f070004;
         public static final int msg_sdcardunavailable=0x7f07001d;
         public static final int no_devices=0x7f070005;
         public static final int ok=0x7f070014;
         public static final int title_toggle=0x7f070013;
+        public static final int ttl_connection_idle=0x7f070022;
         public static final int ttl_enablebt=0x7f070009;
         public static final int ttl_hasupdate=0x7f07000f;
+        public static final int ttl_headless_widget=0x7f070023;
+        public static final int ttl_insecure_fallback=0x7f070024;
         public static final int widget_device_name=0x7f070007;
         public static final int widget_device_state=0x7f070008;
     }
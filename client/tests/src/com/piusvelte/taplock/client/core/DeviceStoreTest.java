@@ -0,0 +1,135 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+public class DeviceStoreTest extends AndroidTestCase {
+	private static final String FIRST = "00:11:22:33:44:55";
+	private static final String SECOND = "66:77:88:99:AA:BB";
+	private static final String THIRD = "CC:DD:EE:FF:00:11";
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(getContext().getFilesDir(), DeviceStore.FILE_NAME);
+		mFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testTornRecordIsCutOff() throws Exception {
+		storeTwoDevices();
+		long length = mFile.length();
+		// a crash part way through appending a record
+		FileOutputStream fos = new FileOutputStream(mFile, true);
+		try {
+			fos.write(new byte[]{1, 0, 40, 0, 17});
+		} finally {
+			fos.close();
+		}
+		DeviceStore store = new DeviceStore(getContext());
+		assertAddresses(load(store), FIRST, SECOND);
+		store.put(new TapLockDevice("third", THIRD, "passphrase"));
+		flush(store);
+		assertTrue(mFile.length() > length);
+		assertAddresses(load(new DeviceStore(getContext())), FIRST, SECOND, THIRD);
+	}
+
+	public void testBadRecordEndsTheJournal() throws Exception {
+		storeTwoDevices();
+		// break the CRC of the last record
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			file.seek(file.length() - 1);
+			int b = file.read();
+			file.seek(file.length() - 1);
+			file.write(b ^ 0xFF);
+		} finally {
+			file.close();
+		}
+		DeviceStore store = new DeviceStore(getContext());
+		assertAddresses(load(store), FIRST);
+		store.put(new TapLockDevice("third", THIRD, "passphrase"));
+		flush(store);
+		assertAddresses(load(new DeviceStore(getContext())), FIRST, THIRD);
+	}
+
+	public void testRemoveIsReplayed() throws Exception {
+		storeTwoDevices();
+		DeviceStore store = new DeviceStore(getContext());
+		load(store);
+		store.remove(FIRST);
+		flush(store);
+		List<TapLockDevice> devices = load(new DeviceStore(getContext()));
+		assertAddresses(devices, SECOND);
+		TapLockDevice device = devices.get(0);
+		assertEquals("second", device.getName());
+		assertEquals("passphrase", device.getPassphrase());
+		assertEquals(1, device.getWidgets().length);
+		assertEquals(42, device.getWidgets()[0]);
+	}
+
+	private void storeTwoDevices() throws InterruptedException {
+		DeviceStore store = new DeviceStore(getContext());
+		assertTrue(load(store).isEmpty());
+		store.put(new TapLockDevice("first", FIRST, "passphrase"));
+		store.put(new TapLockDevice("second", SECOND, "passphrase", new int[]{42}));
+		flush(store);
+	}
+
+	// nothing's queued yet, so the writer thread hasn't touched the store
+	private static List<TapLockDevice> load(DeviceStore store) {
+		return new ArrayList<TapLockDevice>(store.load());
+	}
+
+	private static void flush(DeviceStore store) throws InterruptedException {
+		final CountDownLatch flushed = new CountDownLatch(1);
+		store.afterFlush(new Runnable() {
+
+			@Override
+			public void run() {
+				flushed.countDown();
+			}
+		});
+		assertTrue(flushed.await(5, TimeUnit.SECONDS));
+	}
+
+	private static void assertAddresses(Collection<TapLockDevice> devices, String... addresses) {
+		assertEquals(addresses.length, devices.size());
+		int i = 0;
+		for (TapLockDevice device : devices)
+			assertEquals(addresses[i++], device.getAddress());
+	}
+}
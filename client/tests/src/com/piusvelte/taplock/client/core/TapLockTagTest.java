@@ -0,0 +1,104 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.client.core;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.test.AndroidTestCase;
+
+public class TapLockTagTest extends AndroidTestCase {
+	private static final String PACKAGE_NAME = "com.piusvelte.taplock.client.pro";
+	private static final String ADDRESS = "00:1A:2B:3C:4D:FF";
+
+	public void testAddressAndChannel() {
+		TapLockTag tag = TapLockTag.parse(TapLockTag.createMessage(PACKAGE_NAME, ADDRESS, 12));
+		assertNotNull(tag);
+		assertFalse(tag.isLegacy());
+		assertFalse(tag.isLockAll());
+		assertEquals(ADDRESS, tag.getAddress());
+		assertEquals(12, tag.getChannel());
+	}
+
+	public void testAddressOnly() {
+		TapLockTag tag = TapLockTag.parse(TapLockTag.createMessage(PACKAGE_NAME, ADDRESS, -1));
+		assertNotNull(tag);
+		assertEquals(ADDRESS, tag.getAddress());
+		assertEquals(-1, tag.getChannel());
+	}
+
+	public void testUnusedFlagIsIgnored() {
+		// flags for a channel and the unused 0x02, with a byte after the channel
+		byte[] payload = new byte[]{1, 0x03, 0x00, 0x1A, 0x2B, 0x3C, 0x4D, (byte) 0xFF, 12, 3};
+		NdefRecord record = new NdefRecord(NdefRecord.TNF_MIME_MEDIA, TapLockTag.MIME_TYPE.getBytes(), new byte[0], payload);
+		TapLockTag tag = TapLockTag.parse(new NdefMessage(new NdefRecord[]{record}));
+		assertNotNull(tag);
+		assertEquals(ADDRESS, tag.getAddress());
+		assertEquals(12, tag.getChannel());
+	}
+
+	public void testLowerCaseAddressIsNormalized() {
+		TapLockTag tag = TapLockTag.parse(TapLockTag.createMessage(PACKAGE_NAME, ADDRESS.toLowerCase(), 1));
+		assertNotNull(tag);
+		assertEquals(ADDRESS, tag.getAddress());
+	}
+
+	public void testLockAll() {
+		TapLockTag tag = TapLockTag.parse(TapLockTag.createLockAllMessage(PACKAGE_NAME));
+		assertNotNull(tag);
+		assertTrue(tag.isLockAll());
+		assertNull(tag.getAddress());
+	}
+
+	public void testApplicationRecordFollows() {
+		NdefRecord[] records = TapLockTag.createMessage(PACKAGE_NAME, ADDRESS, 1).getRecords();
+		assertEquals(2, records.length);
+		assertEquals(NdefRecord.TNF_EXTERNAL_TYPE, records[1].getTnf());
+		assertEquals(PACKAGE_NAME, new String(records[1].getPayload()));
+	}
+
+	public void testBadAddress() {
+		try {
+			TapLockTag.createMessage(PACKAGE_NAME, "00:11:22", 1);
+			fail("short address accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testLegacyTextTag() throws Exception {
+		byte[] language = "en".getBytes("US-ASCII");
+		byte[] text = "Office".getBytes("UTF-8");
+		byte[] payload = new byte[1 + language.length + text.length];
+		payload[0] = (byte) language.length;
+		System.arraycopy(language, 0, payload, 1, language.length);
+		System.arraycopy(text, 0, payload, 1 + language.length, text.length);
+		NdefRecord record = new NdefRecord(NdefRecord.TNF_WELL_KNOWN, NdefRecord.RTD_TEXT, new byte[0], payload);
+		TapLockTag tag = TapLockTag.parse(new NdefMessage(new NdefRecord[]{record}));
+		assertNotNull(tag);
+		assertTrue(tag.isLegacy());
+		assertEquals("Office", tag.getName());
+		assertNull(tag.getAddress());
+	}
+
+	public void testOtherMimeType() {
+		NdefRecord record = new NdefRecord(NdefRecord.TNF_MIME_MEDIA, "text/plain".getBytes(), new byte[0], new byte[8]);
+		assertNull(TapLockTag.parse(new NdefMessage(new NdefRecord[]{record})));
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Points user.home at a scratch directory, so the keystore, properties and log
+ * the benchmarks touch stay out of the real APP_PATH. Must be called before
+ * anything loads {@link TapLockServer}.
+ */
+public class BenchmarkHome {
+	private static File sHome = null;
+
+	public static synchronized File create() throws IOException {
+		if (sHome == null) {
+			File home = File.createTempFile("taplock", "bench");
+			home.delete();
+			if (!home.mkdirs())
+				throw new IOException("couldn't create " + home);
+			(new File(home, ".taplock")).mkdir();
+			System.setProperty("user.home", home.getAbsolutePath());
+			sHome = home;
+		}
+		return sHome;
+	}
+
+	public static synchronized void delete() {
+		if (sHome != null) {
+			delete(sHome);
+			sHome = null;
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
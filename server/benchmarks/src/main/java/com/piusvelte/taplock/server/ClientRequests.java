@@ -0,0 +1,71 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Builds requests the way the phone does, for the benchmarks that play the client.
+ */
+public class ClientRequests {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	public static String getHmacString(String passphrase, String challenge, String action, String newPassphrase) throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
+		byte[] key = passphrase.getBytes("UTF-8");
+		if (key.length == 0)
+			key = new byte[1];
+		Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+		mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+		mac.update(challenge.getBytes("UTF-8"));
+		mac.update((byte) 0);
+		mac.update(action.getBytes("UTF-8"));
+		mac.update((byte) 0);
+		mac.update(newPassphrase.getBytes("UTF-8"));
+		mac.update((byte) 0);
+		byte[] hash = mac.doFinal();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0F];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * A protocol version 3 request, authenticated with an HMAC over the challenge.
+	 */
+	@SuppressWarnings("unchecked")
+	public static String getRequest(String passphrase, String challenge, String action, String newPassphrase) throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
+		JSONObject requestJObj = new JSONObject();
+		requestJObj.put(TapLockServer.PARAM_ACTION, action);
+		requestJObj.put(TapLockServer.PARAM_PASSPHRASE, newPassphrase);
+		requestJObj.put(TapLockServer.PARAM_VERSION, TapLockServer.PROTOCOL_VERSION_HMAC);
+		requestJObj.put(TapLockServer.PARAM_HMAC, getHmacString(passphrase, challenge, action, newPassphrase));
+		return requestJObj.toJSONString();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Unlock latency with a socket per unlock, as the server used to connect to
+ * the credential provider, against {@link CredentialProviderClient}.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CredentialProviderBenchmark {
+	private static final String USERNAME = "taplock";
+	private static final String PASSWORD = "password";
+	private StandInCredentialProvider mOldProvider;
+	private StandInCredentialProvider mProvider;
+	private CredentialProviderClient mClient;
+
+	@Setup
+	public void setup() throws IOException {
+		mOldProvider = new StandInCredentialProvider(false);
+		mProvider = new StandInCredentialProvider(true);
+		mClient = new CredentialProviderClient(TapLockServer.S_LOCALHOST, mProvider.getPort());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mClient.close();
+		mProvider.close();
+		mOldProvider.close();
+	}
+
+	@Benchmark
+	public String socketPerUnlock() throws IOException {
+		Socket socket = new Socket(TapLockServer.S_LOCALHOST, mOldProvider.getPort());
+		try {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			byte[] buffer = new byte[1];
+			if (in.read(buffer) == -1)
+				return null;
+			byte[] usernameBytes = USERNAME.getBytes(Charset.forName("UTF-8"));
+			byte[] passwordBytes = PASSWORD.getBytes(Charset.forName("UTF-8"));
+			byte[] credentials = new byte[TapLockServer.S_CREDBUF];
+			System.arraycopy(usernameBytes, 0, credentials, 0, usernameBytes.length);
+			System.arraycopy(passwordBytes, 0, credentials, TapLockServer.S_USERBUF, passwordBytes.length);
+			out.write(credentials);
+			Arrays.fill(credentials, (byte) 0);
+			int read = in.read(credentials);
+			return read == -1 ? null : new String(credentials, 0, read);
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Benchmark
+	public String persistent() {
+		return mClient.unlock(USERNAME, PASSWORD);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.KeyStore;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decrypting the stored Windows password on unlock, through
+ * {@link TapLockServer#decryptString(String)} and its {@link KeyMaterialCache},
+ * against loading the keystore every time as the server used to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecryptBenchmark {
+	private static final String PASSWORD = "password";
+	private String mKeystore;
+	private String mEncPassword;
+
+	@Setup
+	public void setup() throws Exception {
+		// before TapLockServer picks its APP_PATH
+		File home = BenchmarkHome.create();
+		Security.addProvider(new BouncyCastleProvider());
+		mKeystore = new File(new File(home, ".taplock"), "taplock.bks").getAbsolutePath();
+		mEncPassword = TapLockServer.encryptString(PASSWORD);
+		if (mEncPassword == null)
+			throw new IllegalStateException("couldn't create keystore");
+		if (!PASSWORD.equals(TapLockServer.decryptString(mEncPassword)))
+			throw new IllegalStateException("decrypt failed");
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkHome.delete();
+	}
+
+	@Benchmark
+	public String decryptString() {
+		return TapLockServer.decryptString(mEncPassword);
+	}
+
+	@Benchmark
+	public String decryptUncached() throws Exception {
+		KeyStore ks = KeyStore.getInstance("BKS");
+		FileInputStream in = new FileInputStream(mKeystore);
+		try {
+			ks.load(in, TapLockServer.sPassphrase.toCharArray());
+		} finally {
+			in.close();
+		}
+		SecretKey sk = (SecretKey) ks.getKey("taplock", TapLockServer.sPassphrase.toCharArray());
+		Cipher cipher = Cipher.getInstance("AES");
+		cipher.init(Cipher.DECRYPT_MODE, sk);
+		return new String(cipher.doFinal(Base64.decodeBase64(mEncPassword)), "UTF-8");
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request authentication: the legacy {@link TapLockServer#getHashString(String)}
+ * the server computes for old clients, against {@link HmacVerifier}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+	private static final String CHALLENGE = "5f0c6b1e9a3d47c28e1b04f6a9d2c735";
+	private final HmacVerifier mHmacVerifier = new HmacVerifier();
+	private String mHmac;
+
+	@Setup
+	public void setup() throws Exception {
+		mHmac = ClientRequests.getHmacString(TapLockServer.sPassphrase, CHALLENGE, TapLockServer.ACTION_TOGGLE, "");
+	}
+
+	@Benchmark
+	public String getHashString() throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		return TapLockServer.getHashString(CHALLENGE + TapLockServer.sPassphrase + TapLockServer.ACTION_TOGGLE + "");
+	}
+
+	@Benchmark
+	public boolean hmacVerify() {
+		return mHmacVerifier.verify(TapLockServer.sPassphrase, CHALLENGE, TapLockServer.ACTION_TOGGLE, "", mHmac);
+	}
+}
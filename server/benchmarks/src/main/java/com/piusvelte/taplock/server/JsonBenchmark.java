@@ -0,0 +1,73 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * json_simple work done by a session for each request: parsing what the phone
+ * sent, and encoding the response with the next challenge.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+	private static final String CHALLENGE = "5f0c6b1e9a3d47c28e1b04f6a9d2c735";
+	// sessions keep one parser and one response object
+	private final JSONParser mJsonParser = new JSONParser();
+	private final JSONObject mResponseJObj = new JSONObject();
+	private String mRequest;
+
+	@Setup
+	public void setup() throws Exception {
+		mRequest = ClientRequests.getRequest(TapLockServer.sPassphrase, CHALLENGE, TapLockServer.ACTION_TOGGLE, "");
+	}
+
+	@Benchmark
+	public Object parseRequest() throws ParseException {
+		return mJsonParser.parse(mRequest);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Benchmark
+	public String encodeResponse() {
+		mResponseJObj.clear();
+		mResponseJObj.put(TapLockServer.PARAM_CHALLENGE, CHALLENGE);
+		mResponseJObj.put(TapLockServer.PARAM_VERSION, TapLockServer.PROTOCOL_VERSION);
+		return mResponseJObj.toJSONString();
+	}
+}
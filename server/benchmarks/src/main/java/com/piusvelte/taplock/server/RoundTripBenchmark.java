@@ -0,0 +1,124 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full challenge, request, response exchange with a {@link ConnectionThread}
+ * over a {@link PipeTransport}, either on a new connection each time or on one
+ * that stays open. The client and the server share the JVM, so the allocation
+ * rate covers both ends.
+ * The request is a passphrase change to the current passphrase, which on Linux
+ * authenticates and answers like any other action without touching the desktop.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Server {
+		PipeTransport mTransport;
+		ConnectionThread mConnectionThread;
+
+		@Setup
+		public void setup() throws IOException {
+			BenchmarkHome.create();
+			mTransport = new PipeTransport();
+			mConnectionThread = new ConnectionThread(mTransport, TapLockServer.sMaxSessions);
+			mConnectionThread.start();
+		}
+
+		@TearDown
+		public void tearDown() {
+			mConnectionThread.shutdown();
+			BenchmarkHome.delete();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		private final JSONParser mJsonParser = new JSONParser();
+		TransportSession mSession;
+		MessageFramer mFramer;
+		String mChallenge;
+
+		@Setup
+		public void setup(Server server) throws Exception {
+			mSession = server.mTransport.connect("00:00:00:00:00:00");
+			mFramer = new MessageFramer(mSession.getInputStream(), mSession.getOutputStream(), MessageFramer.MODE_LEGACY);
+			mChallenge = readChallenge(mFramer.read());
+			mFramer.setMode(MessageFramer.MODE_FRAMED);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			mSession.close();
+		}
+
+		String readChallenge(String response) throws Exception {
+			if (response == null)
+				throw new IOException("connection closed");
+			JSONObject responseJObj = (JSONObject) mJsonParser.parse(response);
+			if (responseJObj.containsKey(TapLockServer.PARAM_ERROR))
+				throw new IllegalStateException((String) responseJObj.get(TapLockServer.PARAM_ERROR));
+			return (String) responseJObj.get(TapLockServer.PARAM_CHALLENGE);
+		}
+	}
+
+	@Benchmark
+	public String newConnection(Server server, Client client) throws Exception {
+		TransportSession session = server.mTransport.connect("00:00:00:00:00:01");
+		try {
+			MessageFramer framer = new MessageFramer(session.getInputStream(), session.getOutputStream(), MessageFramer.MODE_LEGACY);
+			String challenge = client.readChallenge(framer.read());
+			framer.setMode(MessageFramer.MODE_FRAMED);
+			framer.write(ClientRequests.getRequest(TapLockServer.sPassphrase, challenge, TapLockServer.ACTION_PASSPHRASE, TapLockServer.sPassphrase));
+			return client.readChallenge(framer.read());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Benchmark
+	public String openConnection(Client client) throws Exception {
+		client.mFramer.write(ClientRequests.getRequest(TapLockServer.sPassphrase, client.mChallenge, TapLockServer.ACTION_PASSPHRASE, TapLockServer.sPassphrase));
+		client.mChallenge = client.readChallenge(client.mFramer.read());
+		return client.mChallenge;
+	}
+}
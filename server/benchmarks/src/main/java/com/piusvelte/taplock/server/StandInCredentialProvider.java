@@ -0,0 +1,95 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Speaks the Windows credential provider's byte protocol, so the benchmarks
+ * run anywhere. Sends a version byte on connect and answers each 64 byte block with "0".
+ * The old provider closed the connection after each answer.
+ */
+public class StandInCredentialProvider implements Runnable {
+	private final ServerSocket mServerSocket;
+	private final boolean mKeepAlive;
+	private volatile Socket mClient = null;
+
+	public StandInCredentialProvider(boolean keepAlive) throws IOException {
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName(TapLockServer.S_LOCALHOST));
+		mKeepAlive = keepAlive;
+		Thread t = new Thread(this, "StandInCredentialProvider");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+		return mServerSocket.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		byte[] credentials = new byte[TapLockServer.S_CREDBUF];
+		while (!mServerSocket.isClosed()) {
+			try {
+				Socket client = mServerSocket.accept();
+				mClient = client;
+				client.setTcpNoDelay(true);
+				InputStream in = client.getInputStream();
+				OutputStream out = client.getOutputStream();
+				out.write('1');
+				out.flush();
+				boolean open = true;
+				while (open) {
+					int read = 0;
+					int chunk = 0;
+					while ((read < credentials.length) && ((chunk = in.read(credentials, read, credentials.length - read)) > 0))
+						read += chunk;
+					if (read == credentials.length) {
+						out.write(TapLockServer.CREDENTIAL_PROVIDER_SUCCESS.charAt(0));
+						out.flush();
+						open = mKeepAlive;
+					} else
+						open = false;
+				}
+				client.close();
+			} catch (IOException e) {
+				// dropped by the benchmark, or closed
+			}
+		}
+	}
+
+	/**
+	 * Drop the current connection, as a restarted provider would.
+	 */
+	public void dropClient() throws IOException {
+		Socket client = mClient;
+		if (client != null)
+			client.close();
+	}
+
+	public void close() throws IOException {
+		mServerSocket.close();
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Drives simulated phones against a Tap Lock Server and writes a JSON report of
+ * throughput, handshake latency and errors. Arguments are key=value:
+ *   transport=pipe|emulator  pipe runs the server in this JVM over memory,
+ *                            emulator over the bluecove-emu RFCOMM stack
+ *   url=btspp://...          with emulator, a server already running on the
+ *                            emulator, otherwise one is started in this JVM
+ *   phones=8                 concurrent phones
+ *   warmup=5 duration=30     seconds
+ *   interval=0               milliseconds each phone waits between actions
+ *   tickets=0                milliseconds a phone keeps the next challenge to
+ *                            answer on its next connection, 0 for the full handshake
+ *   action=passphrase        passphrase, lock, unlock or toggle
+ *   passphrase=TapLock
+ *   maxsessions=8            sessions for a server started in this JVM
+ *   report=file              defaults to standard out, the server logs to standard error
+ * The default action sets the passphrase to itself, which goes through the
+ * whole request path without locking anything.
+ */
+public class LoadGenerator {
+	private static final String TRANSPORT_PIPE = "pipe";
+	private static final String TRANSPORT_EMULATOR = "emulator";
+
+	public static void main(String[] args) throws Exception {
+		// the server logs to the console before it has a file, keep that off the report
+		PrintStream reportStream = System.out;
+		System.setOut(System.err);
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split == -1) {
+				System.err.println("expected key=value: " + arg);
+				System.exit(1);
+			}
+			options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		String transport = getOption(options, "transport", TRANSPORT_PIPE);
+		String url = getOption(options, "url", null);
+		int phones = Integer.parseInt(getOption(options, "phones", "8"));
+		int warmup = Integer.parseInt(getOption(options, "warmup", "5"));
+		int duration = Integer.parseInt(getOption(options, "duration", "30"));
+		long interval = Long.parseLong(getOption(options, "interval", "0"));
+		long tickets = Long.parseLong(getOption(options, "tickets", "0"));
+		String action = getAction(getOption(options, "action", "passphrase"));
+		String passphrase = getOption(options, "passphrase", TapLockServer.sPassphrase);
+		int maxSessions = Integer.parseInt(getOption(options, "maxsessions", Integer.toString(TapLockServer.sMaxSessions)));
+		String reportPath = getOption(options, "report", null);
+		if (action == null) {
+			System.err.println("unknown action: " + options.get("action"));
+			System.exit(1);
+		}
+
+		ConnectionThread server = null;
+		SimulatedPhone.Connector connector;
+		if (TRANSPORT_PIPE.equals(transport)) {
+			final PipeTransport pipe = new PipeTransport();
+			server = startServer(pipe, passphrase, maxSessions);
+			connector = new SimulatedPhone.Connector() {
+				@Override
+				public TransportSession connect(String address) throws IOException {
+					return pipe.connect(address);
+				}
+			};
+		} else if (TRANSPORT_EMULATOR.equals(transport)) {
+			if (url == null) {
+				EmulatorTransport emulator = new EmulatorTransport();
+				server = startServer(emulator, passphrase, maxSessions);
+				while ((url = emulator.getConnectionURL()) == null)
+					Thread.sleep(50);
+			}
+			final String serverUrl = url;
+			connector = new SimulatedPhone.Connector() {
+				@Override
+				public TransportSession connect(String address) throws IOException {
+					// the emulator gives each phone thread its own address
+					return new RfcommTransport.StreamConnectionSession(EmulatorTransport.connect(serverUrl));
+				}
+			};
+		} else {
+			System.err.println("unknown transport: " + transport);
+			System.exit(1);
+			return;
+		}
+
+		LoadReport report = new LoadReport();
+		Thread[] threads = new Thread[phones];
+		for (int i = 0; i < phones; i++) {
+			String address = String.format("00:00:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+			threads[i] = new Thread(new SimulatedPhone(connector, report, address, passphrase, action, interval, tickets), "Phone-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		Thread.sleep(warmup * 1000L);
+		report.startMeasuring();
+		Thread.sleep(duration * 1000L);
+		report.finish();
+		for (Thread thread : threads)
+			thread.join(TapLockServer.sCommandTimeout);
+		if (server != null)
+			server.shutdown();
+
+		JSONObject reportJObj = report.toJSON();
+		reportJObj.put("transport", transport);
+		reportJObj.put("phones", phones);
+		reportJObj.put("action", action);
+		reportJObj.put("interval", interval);
+		reportJObj.put("ticketTimeout", tickets);
+		writeReport(reportJObj, reportPath, reportStream);
+		TapLockServer.sLogger.stop();
+		System.exit(0);
+	}
+
+	private static String getOption(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	private static String getAction(String name) {
+		if ("passphrase".equals(name))
+			return TapLockServer.ACTION_PASSPHRASE;
+		else if ("lock".equals(name))
+			return TapLockServer.ACTION_LOCK;
+		else if ("unlock".equals(name))
+			return TapLockServer.ACTION_UNLOCK;
+		else if ("toggle".equals(name))
+			return TapLockServer.ACTION_TOGGLE;
+		return null;
+	}
+
+	private static ConnectionThread startServer(Transport transport, String passphrase, int maxSessions) {
+		TapLockServer.sPassphrase = passphrase;
+		ConnectionThread server = new ConnectionThread(transport, maxSessions);
+		server.start();
+		return server;
+	}
+
+	private static void writeReport(JSONObject reportJObj, String reportPath, PrintStream reportStream) throws IOException {
+		if (reportPath == null)
+			reportStream.println(reportJObj.toJSONString());
+		else {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(reportPath), "UTF-8");
+			try {
+				writer.write(reportJObj.toJSONString());
+			} finally {
+				writer.close();
+			}
+		}
+	}
+}
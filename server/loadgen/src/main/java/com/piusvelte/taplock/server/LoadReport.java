@@ -0,0 +1,139 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Collects the handshakes of every phone. Handshakes that start before the
+ * measurement window, during warmup, aren't counted.
+ */
+public class LoadReport {
+	public static final int RESULT_OK = 0;
+	public static final int RESULT_CONNECT_FAILED = 1;
+	public static final int RESULT_NO_CHALLENGE = 2;
+	public static final int RESULT_WRITE_FAILED = 3;
+	public static final int RESULT_NO_REPLY = 4;
+	public static final int RESULT_SERVER_ERROR = 5;
+	private static final String[] RESULT_NAMES = new String[]{"ok", "connect", "challenge", "write", "reply", "server"};
+	// distinct error messages kept, past this they're only counted by result
+	private static final int MAX_MESSAGES = 64;
+	private final AtomicLongArray mResults = new AtomicLongArray(RESULT_NAMES.length);
+	private final ConcurrentHashMap<String, AtomicLong> mMessages = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong mTicketsRedeemed = new AtomicLong();
+	private final AtomicLong mTicketsExpired = new AtomicLong();
+	private final LatencyHistogram mLatency = new LatencyHistogram("handshake");
+	private volatile long mMeasureStart = Long.MAX_VALUE;
+	private volatile long mMeasureEnd = Long.MAX_VALUE;
+	private volatile boolean mFinished = false;
+
+	public void startMeasuring() {
+		mMeasureStart = System.nanoTime();
+	}
+
+	public void finish() {
+		mMeasureEnd = System.nanoTime();
+		mFinished = true;
+	}
+
+	public boolean isFinished() {
+		return mFinished;
+	}
+
+	/**
+	 * @param start {@link System#nanoTime()} when the handshake started
+	 */
+	public void record(long start, int result) {
+		long end = System.nanoTime();
+		if ((start < mMeasureStart) || (end > mMeasureEnd))
+			return;
+		mResults.incrementAndGet(result);
+		if (result == RESULT_OK)
+			mLatency.record(end - start);
+	}
+
+	public void ticket(boolean redeemed) {
+		if (System.nanoTime() < mMeasureStart)
+			return;
+		if (redeemed)
+			mTicketsRedeemed.incrementAndGet();
+		else
+			mTicketsExpired.incrementAndGet();
+	}
+
+	public void error(String message) {
+		if (System.nanoTime() < mMeasureStart)
+			return;
+		AtomicLong count = mMessages.get(message);
+		if (count == null) {
+			if (mMessages.size() >= MAX_MESSAGES)
+				return;
+			count = new AtomicLong();
+			AtomicLong existing = mMessages.putIfAbsent(message, count);
+			if (existing != null)
+				count = existing;
+		}
+		count.incrementAndGet();
+	}
+
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		JSONObject reportJObj = new JSONObject();
+		double seconds = (mMeasureEnd - mMeasureStart) / (double) TimeUnit.SECONDS.toNanos(1);
+		long handshakes = 0;
+		JSONObject resultsJObj = new JSONObject();
+		for (int i = 0; i < RESULT_NAMES.length; i++) {
+			long count = mResults.get(i);
+			handshakes += count;
+			resultsJObj.put(RESULT_NAMES[i], count);
+		}
+		long succeeded = mResults.get(RESULT_OK);
+		reportJObj.put("seconds", seconds);
+		reportJObj.put("handshakes", handshakes);
+		reportJObj.put("succeeded", succeeded);
+		reportJObj.put("failed", handshakes - succeeded);
+		reportJObj.put("throughputPerSecond", seconds > 0 ? succeeded / seconds : 0);
+		reportJObj.put("errorRate", handshakes > 0 ? (handshakes - succeeded) / (double) handshakes : 0);
+		reportJObj.put("results", resultsJObj);
+		JSONObject ticketsJObj = new JSONObject();
+		ticketsJObj.put("redeemed", mTicketsRedeemed.get());
+		ticketsJObj.put("expired", mTicketsExpired.get());
+		reportJObj.put("tickets", ticketsJObj);
+		JSONObject latencyJObj = new JSONObject();
+		latencyJObj.put("mean", mLatency.getMeanMicros());
+		latencyJObj.put("p50", mLatency.getP50Micros());
+		latencyJObj.put("p90", mLatency.getP90Micros());
+		latencyJObj.put("p99", mLatency.getP99Micros());
+		latencyJObj.put("p999", mLatency.getP999Micros());
+		latencyJObj.put("max", mLatency.getMaxMicros());
+		reportJObj.put("latencyMicros", latencyJObj);
+		JSONObject messagesJObj = new JSONObject();
+		for (Map.Entry<String, AtomicLong> message : mMessages.entrySet())
+			messagesJObj.put(message.getKey(), message.getValue().get());
+		reportJObj.put("errors", messagesJObj);
+		return reportJObj;
+	}
+}
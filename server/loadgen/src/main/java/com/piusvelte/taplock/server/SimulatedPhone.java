@@ -0,0 +1,280 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * One phone, doing what the client's ConnectThread does for each action:
+ * connect, read the challenge, write the authenticated request, read the reply
+ * with the error or the next challenge, and disconnect. With tickets on, the
+ * next challenge is answered straight after connecting instead.
+ */
+public class SimulatedPhone implements Runnable {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	/**
+	 * Opens the phone's end of a connection to the server.
+	 */
+	public interface Connector {
+		TransportSession connect(String address) throws IOException;
+	}
+
+	private final Connector mConnector;
+	private final LoadReport mReport;
+	private final String mAddress;
+	private final String mPassphrase;
+	private final String mAction;
+	private final String mNewPassphrase;
+	private final long mInterval;
+	private final long mTicketTimeout;
+	private String mTicket = null;
+	private long mTicketExpiresAt = 0;
+	private final JSONParser mJsonParser = new JSONParser();
+	private Mac mHmac = null;
+
+	/**
+	 * @param interval milliseconds to wait between actions, 0 to go back to back
+	 * @param ticketTimeout milliseconds to keep the next challenge from a reply as a ticket for the next connection, 0 for the full handshake every time
+	 */
+	public SimulatedPhone(Connector connector, LoadReport report, String address, String passphrase, String action, long interval, long ticketTimeout) {
+		mConnector = connector;
+		mReport = report;
+		mAddress = address;
+		mPassphrase = passphrase;
+		mAction = action;
+		// a passphrase change to the same passphrase leaves the server as it was
+		mNewPassphrase = TapLockServer.ACTION_PASSPHRASE.equals(action) ? passphrase : "";
+		mInterval = interval;
+		mTicketTimeout = TimeUnit.MILLISECONDS.toNanos(ticketTimeout);
+	}
+
+	@Override
+	public void run() {
+		while (!mReport.isFinished()) {
+			long start = System.nanoTime();
+			int result = handshake();
+			mReport.record(start, result);
+			if (mInterval > 0) {
+				try {
+					Thread.sleep(mInterval);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return one of the LoadReport.RESULT_ values
+	 */
+	private int handshake() {
+		TransportSession session;
+		try {
+			session = mConnector.connect(mAddress);
+		} catch (IOException e) {
+			mReport.error("connect: " + e.getMessage());
+			return LoadReport.RESULT_CONNECT_FAILED;
+		}
+		InputStream inStream = null;
+		OutputStream outStream = null;
+		try {
+			try {
+				inStream = session.getInputStream();
+				outStream = session.getOutputStream();
+			} catch (IOException e) {
+				mReport.error("streams: " + e.getMessage());
+				return LoadReport.RESULT_CONNECT_FAILED;
+			}
+			MessageFramer framer = new MessageFramer(inStream, outStream, MessageFramer.MODE_LEGACY);
+			// answer the challenge from the last reply straight away, rather than waiting for a new one
+			String ticket = takeTicket();
+			if (ticket != null) {
+				framer.setMode(MessageFramer.MODE_FRAMED);
+				if (!write(framer, getRequest(ticket, TapLockServer.PROTOCOL_VERSION_TICKET, true)))
+					return LoadReport.RESULT_WRITE_FAILED;
+				// this connection's own challenge still arrives first, unframed
+				framer.setMode(MessageFramer.MODE_LEGACY);
+			}
+			JSONObject responseJObj = read(framer);
+			if ((responseJObj == null) || !responseJObj.containsKey(TapLockServer.PARAM_CHALLENGE))
+				return LoadReport.RESULT_NO_CHALLENGE;
+			String challenge = (String) responseJObj.get(TapLockServer.PARAM_CHALLENGE);
+			int serverVersion = TapLockServer.PROTOCOL_VERSION_LEGACY;
+			Object version = responseJObj.get(TapLockServer.PARAM_VERSION);
+			if (version instanceof Number)
+				serverVersion = ((Number) version).intValue();
+			if (serverVersion >= TapLockServer.PROTOCOL_VERSION_FRAMED)
+				framer.setMode(MessageFramer.MODE_FRAMED);
+			if ((ticket == null) && !write(framer, getRequest(challenge, serverVersion, false)))
+				return LoadReport.RESULT_WRITE_FAILED;
+			responseJObj = read(framer);
+			if (responseJObj == null)
+				return LoadReport.RESULT_NO_REPLY;
+			if (ticket != null) {
+				boolean expired = TapLockServer.ERROR_TICKET_EXPIRED.equals(responseJObj.get(TapLockServer.PARAM_ERROR));
+				mReport.ticket(!expired);
+				if (expired) {
+					// the server didn't take the ticket, answer the challenge in its reply instead
+					if (!write(framer, getRequest((String) responseJObj.get(TapLockServer.PARAM_CHALLENGE), serverVersion, false)))
+						return LoadReport.RESULT_WRITE_FAILED;
+					responseJObj = read(framer);
+					if (responseJObj == null)
+						return LoadReport.RESULT_NO_REPLY;
+				}
+			}
+			if ((mTicketTimeout > 0) && (serverVersion >= TapLockServer.PROTOCOL_VERSION_TICKET) && responseJObj.containsKey(TapLockServer.PARAM_CHALLENGE)) {
+				mTicket = (String) responseJObj.get(TapLockServer.PARAM_CHALLENGE);
+				mTicketExpiresAt = System.nanoTime() + mTicketTimeout;
+			}
+			if (responseJObj.containsKey(TapLockServer.PARAM_ERROR)) {
+				mReport.error("server: " + responseJObj.get(TapLockServer.PARAM_ERROR));
+				return LoadReport.RESULT_SERVER_ERROR;
+			}
+			return LoadReport.RESULT_OK;
+		} finally {
+			// like the client, close the streams too, an rfcomm connection stays up while they're open
+			close(inStream);
+			close(outStream);
+			try {
+				session.close();
+			} catch (IOException e) {
+				mReport.error("close: " + e.getMessage());
+			}
+		}
+	}
+
+	private void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				mReport.error("close: " + e.getMessage());
+			}
+		}
+	}
+
+	private String takeTicket() {
+		String ticket = mTicket;
+		mTicket = null;
+		return (ticket != null) && (mTicketExpiresAt - System.nanoTime() > 0) ? ticket : null;
+	}
+
+	/**
+	 * @return the request, or null if it couldn't be signed
+	 */
+	@SuppressWarnings("unchecked")
+	private String getRequest(String challenge, int serverVersion, boolean ticket) {
+		JSONObject requestJObj = new JSONObject();
+		requestJObj.put(TapLockServer.PARAM_ACTION, mAction);
+		if (TapLockServer.ACTION_PASSPHRASE.equals(mAction))
+			requestJObj.put(TapLockServer.PARAM_PASSPHRASE, mNewPassphrase);
+		if (ticket)
+			requestJObj.put(TapLockServer.PARAM_TICKET, challenge);
+		try {
+			if (serverVersion >= TapLockServer.PROTOCOL_VERSION_HMAC) {
+				requestJObj.put(TapLockServer.PARAM_VERSION, TapLockServer.PROTOCOL_VERSION_HMAC);
+				requestJObj.put(TapLockServer.PARAM_HMAC, getHmacString(challenge));
+			} else
+				requestJObj.put(TapLockServer.PARAM_HMAC, TapLockServer.getHashString(challenge + mPassphrase + mAction + mNewPassphrase));
+			return requestJObj.toJSONString();
+		} catch (NoSuchAlgorithmException e) {
+			mReport.error("hash: " + e.getMessage());
+		} catch (InvalidKeyException e) {
+			mReport.error("hash: " + e.getMessage());
+		} catch (UnsupportedEncodingException e) {
+			mReport.error("hash: " + e.getMessage());
+		}
+		return null;
+	}
+
+	private boolean write(MessageFramer framer, String requestStr) {
+		if (requestStr == null)
+			return false;
+		try {
+			framer.write(requestStr);
+			return true;
+		} catch (IOException e) {
+			mReport.error("write: " + e.getMessage());
+		}
+		return false;
+	}
+
+	private JSONObject read(MessageFramer framer) {
+		String responseStr;
+		try {
+			responseStr = framer.read();
+		} catch (IOException e) {
+			mReport.error("read: " + e.getMessage());
+			return null;
+		}
+		if (responseStr == null) {
+			mReport.error("read: connection closed");
+			return null;
+		}
+		try {
+			return (JSONObject) mJsonParser.parse(responseStr);
+		} catch (ParseException e) {
+			mReport.error("parse: " + e.getMessage());
+		} catch (ClassCastException e) {
+			mReport.error("parse: not an object");
+		}
+		return null;
+	}
+
+	private String getHmacString(String challenge) throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
+		if (mHmac == null) {
+			byte[] key = mPassphrase.getBytes("UTF-8");
+			// HMAC allows an empty key, SecretKeySpec doesn't, and a zero-padded key is the same
+			if (key.length == 0)
+				key = new byte[1];
+			mHmac = Mac.getInstance(HMAC_ALGORITHM);
+			mHmac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+		}
+		mHmac.update(challenge.getBytes("UTF-8"));
+		mHmac.update((byte) 0);
+		mHmac.update(mAction.getBytes("UTF-8"));
+		mHmac.update((byte) 0);
+		mHmac.update(mNewPassphrase.getBytes("UTF-8"));
+		mHmac.update((byte) 0);
+		byte[] hash = mHmac.doFinal();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0F];
+		}
+		return new String(hex);
+	}
+}
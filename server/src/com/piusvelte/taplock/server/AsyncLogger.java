@@ -0,0 +1,287 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes log records off the calling threads. Callers put a record holding the
+ * format and its arguments into a bounded ring, without locking, and a single
+ * writer thread formats them and writes them out in batches. The writer parks
+ * while the ring is empty, and a caller that finds it parked wakes it. Until a
+ * file is set, records go to the console. The file is rotated when it passes a
+ * size limit. If the ring is full, records are dropped and counted rather than
+ * making the caller wait.
+ */
+public class AsyncLogger implements Runnable {
+	private static final int DEFAULT_CAPACITY = 1024;
+	private static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+	private static final int DEFAULT_MAX_FILES = 3;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private final AtomicReferenceArray<Record> mRing;
+	private final int mMask;
+	private final AtomicLong mTail = new AtomicLong();
+	private volatile long mHead = 0;
+	private final AtomicLong mDropped = new AtomicLong();
+	private final long mMaxFileSize;
+	private final int mMaxFiles;
+	private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private final Date mDate = new Date();
+	private final StringBuilder mLine = new StringBuilder(256);
+	private final PrintStream mConsole = System.out;
+	private volatile File mFile = null;
+	private File mOpenFile = null;
+	private Writer mWriter = null;
+	private long mFileSize = 0;
+	private final Thread mWriterThread;
+	private volatile boolean mRunning = true;
+	// the writer is parked, or about to, waiting for a record
+	private volatile boolean mParked = false;
+
+	private static class Record {
+		final long time;
+		final String thread;
+		final String format;
+		final Object arg0;
+		final Object arg1;
+		final int argCount;
+
+		Record(String format, int argCount, Object arg0, Object arg1) {
+			time = System.currentTimeMillis();
+			thread = Thread.currentThread().getName();
+			this.format = format;
+			this.argCount = argCount;
+			this.arg0 = arg0;
+			this.arg1 = arg1;
+		}
+	}
+
+	public AsyncLogger() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+	}
+
+	/**
+	 * @param capacity records held before new ones are dropped, rounded up to a power of two
+	 * @param maxFileSize bytes written before the file is rotated
+	 * @param maxFiles rotated files kept, as name.1 to name.maxFiles
+	 */
+	public AsyncLogger(int capacity, long maxFileSize, int maxFiles) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mRing = new AtomicReferenceArray<Record>(size);
+		mMask = size - 1;
+		mMaxFileSize = maxFileSize;
+		mMaxFiles = Math.max(1, maxFiles);
+		mWriterThread = new Thread(this, "TapLockLog");
+		mWriterThread.setDaemon(true);
+		mWriterThread.start();
+	}
+
+	/**
+	 * Write to file from now on, appending if it exists.
+	 */
+	public void setFile(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * @param message logged as is
+	 */
+	public void log(String message) {
+		enqueue(new Record(message, 0, null, null));
+	}
+
+	/**
+	 * Each "{}" in format is replaced by the next argument when the record is
+	 * written, so the caller doesn't build the string.
+	 */
+	public void log(String format, Object arg0) {
+		enqueue(new Record(format, 1, arg0, null));
+	}
+
+	public void log(String format, Object arg0, Object arg1) {
+		enqueue(new Record(format, 2, arg0, arg1));
+	}
+
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	private void enqueue(Record record) {
+		long tail;
+		do {
+			tail = mTail.get();
+			if ((tail - mHead) >= mRing.length()) {
+				mDropped.incrementAndGet();
+				return;
+			}
+		} while (!mTail.compareAndSet(tail, tail + 1));
+		// a full store, ordered before reading mParked, pairs with the writer's check after setting it
+		mRing.set((int) (tail & mMask), record);
+		if (mParked)
+			LockSupport.unpark(mWriterThread);
+	}
+
+	/**
+	 * Write out what's queued, then stop the writer.
+	 */
+	public void stop() {
+		mRunning = false;
+		LockSupport.unpark(mWriterThread);
+		try {
+			mWriterThread.join(TimeUnit.SECONDS.toMillis(2));
+		} catch (InterruptedException e) {
+			// exiting anyway
+		}
+	}
+
+	@Override
+	public void run() {
+		boolean running = true;
+		while (running) {
+			// read the flag first, so a stop is only acted on after a final drain
+			running = mRunning;
+			if ((drain() == 0) && running) {
+				mParked = true;
+				// a record set before mParked was, whose caller didn't see it, is caught here
+				if ((mRing.get((int) (mHead & mMask)) == null) && (mDropped.get() == 0) && mRunning)
+					LockSupport.park(this);
+				mParked = false;
+			}
+		}
+		closeFile();
+		mConsole.flush();
+	}
+
+	private int drain() {
+		int written = 0;
+		long head = mHead;
+		Record record;
+		while ((record = mRing.get((int) (head & mMask))) != null) {
+			mRing.lazySet((int) (head & mMask), null);
+			mHead = ++head;
+			write(record);
+			written++;
+		}
+		long dropped = mDropped.getAndSet(0);
+		if (dropped > 0)
+			write(new Record("log full, dropped {} records", 1, dropped, null));
+		if (written > 0)
+			flush();
+		return written;
+	}
+
+	private void write(Record record) {
+		mLine.setLength(0);
+		mDate.setTime(record.time);
+		mLine.append(mDateFormat.format(mDate)).append(" [").append(record.thread).append("] ");
+		format(mLine, record);
+		mLine.append(LINE_SEPARATOR);
+		File file = mFile;
+		if (file != null) {
+			try {
+				openFile(file);
+				if (mFileSize >= mMaxFileSize)
+					rotate(file);
+				String line = mLine.toString();
+				mWriter.write(line);
+				mFileSize += line.length();
+				return;
+			} catch (IOException e) {
+				closeFile();
+				mConsole.println("log write: " + e.getMessage());
+			}
+		}
+		mConsole.print(mLine);
+	}
+
+	private static void format(StringBuilder line, Record record) {
+		String format = record.format;
+		if (record.argCount == 0) {
+			line.append(format);
+			return;
+		}
+		int start = 0;
+		for (int arg = 0; arg < record.argCount; arg++) {
+			int placeholder = format.indexOf("{}", start);
+			if (placeholder == -1)
+				break;
+			line.append(format, start, placeholder).append(arg == 0 ? record.arg0 : record.arg1);
+			start = placeholder + 2;
+		}
+		line.append(format, start, format.length());
+	}
+
+	private void openFile(File file) throws IOException {
+		if ((mWriter != null) && file.equals(mOpenFile))
+			return;
+		closeFile();
+		mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF_8));
+		mOpenFile = file;
+		mFileSize = file.length();
+	}
+
+	private void rotate(File file) throws IOException {
+		closeFile();
+		String path = file.getPath();
+		new File(path + "." + mMaxFiles).delete();
+		for (int i = mMaxFiles - 1; i > 0; i--)
+			new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+		file.renameTo(new File(path + ".1"));
+		openFile(file);
+	}
+
+	private void flush() {
+		if (mWriter != null) {
+			try {
+				mWriter.flush();
+			} catch (IOException e) {
+				closeFile();
+				mConsole.println("log flush: " + e.getMessage());
+			}
+		} else
+			mConsole.flush();
+	}
+
+	private void closeFile() {
+		if (mWriter != null) {
+			try {
+				mWriter.close();
+			} catch (IOException e) {
+				mConsole.println("log close: " + e.getMessage());
+			}
+		}
+		mWriter = null;
+		mOpenFile = null;
+	}
+}
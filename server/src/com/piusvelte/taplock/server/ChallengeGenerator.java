@@ -0,0 +1,163 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands out random challenges. A background thread keeps a ring of hex encoded
+ * nonces filled from SecureRandom, so issuing one is a single atomic swap and
+ * never waits on the entropy pool. If the ring runs dry a nonce is made inline.
+ * <p>
+ * Issued challenges are remembered, up to a bound, until they're consumed, so a
+ * challenge can only be answered once.
+ */
+public class ChallengeGenerator implements Runnable {
+	private static final int NONCE_BYTES = 16;
+	private static final int FILL_BATCH = 64;
+	private static final int DEFAULT_POOL_SIZE = 256;
+	private static final int DEFAULT_ISSUED_SIZE = 4096;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private final SecureRandom mRandom = new SecureRandom();
+	private final AtomicReferenceArray<String> mPool;
+	private final int mMask;
+	private final int mRefillThreshold;
+	private final AtomicLong mNext = new AtomicLong();
+	private final AtomicInteger mTakenSinceRefill = new AtomicInteger();
+	private final ConcurrentHashMap<String, Boolean> mIssued;
+	private final AtomicReferenceArray<String> mIssuedOrder;
+	private final int mIssuedMask;
+	private volatile Thread mFiller = null;
+
+	public ChallengeGenerator() {
+		this(DEFAULT_POOL_SIZE, DEFAULT_ISSUED_SIZE);
+	}
+
+	/**
+	 * @param poolSize nonces kept ready, rounded up to a power of two
+	 * @param maxIssued challenges remembered before the oldest are forgotten, rounded up to a power of two
+	 */
+	public ChallengeGenerator(int poolSize, int maxIssued) {
+		int size = powerOfTwo(poolSize);
+		mPool = new AtomicReferenceArray<String>(size);
+		mMask = size - 1;
+		mRefillThreshold = Math.max(1, size / 4);
+		size = powerOfTwo(maxIssued);
+		mIssued = new ConcurrentHashMap<String, Boolean>(size * 2);
+		mIssuedOrder = new AtomicReferenceArray<String>(size);
+		mIssuedMask = size - 1;
+	}
+
+	private static int powerOfTwo(int n) {
+		return Integer.highestOneBit(Math.max(2, n) - 1) << 1;
+	}
+
+	public synchronized void start() {
+		if (mFiller != null)
+			return;
+		Thread filler = new Thread(this, "TapLockChallenges");
+		filler.setDaemon(true);
+		mFiller = filler;
+		filler.start();
+	}
+
+	public synchronized void stop() {
+		Thread filler = mFiller;
+		mFiller = null;
+		if (filler != null)
+			LockSupport.unpark(filler);
+	}
+
+	@Override
+	public void run() {
+		byte[] bytes = new byte[NONCE_BYTES * FILL_BATCH];
+		int offset = bytes.length;
+		char[] hex = new char[NONCE_BYTES * 2];
+		Thread filler = Thread.currentThread();
+		while (mFiller == filler) {
+			boolean filled = false;
+			for (int i = 0, l = mPool.length(); (i < l) && (mFiller == filler); i++) {
+				if (mPool.get(i) == null) {
+					// draw from the random source in batches, it's cheaper per byte
+					if (offset == bytes.length) {
+						mRandom.nextBytes(bytes);
+						offset = 0;
+					}
+					String nonce = toHex(bytes, offset, hex);
+					offset += NONCE_BYTES;
+					// String caches its hash, so working it out here keeps it off the issuing thread
+					nonce.hashCode();
+					mPool.set(i, nonce);
+					filled = true;
+				}
+			}
+			if (!filled) {
+				mTakenSinceRefill.set(0);
+				// sleep until enough of the pool has been taken, the timeout covers a missed unpark
+				LockSupport.parkNanos(this, 1000000000L);
+			}
+		}
+	}
+
+	/**
+	 * @return a new challenge, remembered until it's consumed
+	 */
+	public String issue() {
+		long next = mNext.getAndIncrement();
+		String challenge = mPool.getAndSet((int) (next & mMask), null);
+		if (challenge == null) {
+			byte[] bytes = new byte[NONCE_BYTES];
+			mRandom.nextBytes(bytes);
+			challenge = toHex(bytes, 0, new char[NONCE_BYTES * 2]);
+		} else if (mTakenSinceRefill.incrementAndGet() == mRefillThreshold) {
+			Thread filler = mFiller;
+			if (filler != null)
+				LockSupport.unpark(filler);
+		}
+		mIssued.put(challenge, Boolean.TRUE);
+		// only the most recent challenges can be answered
+		String forgotten = mIssuedOrder.getAndSet((int) (next & mIssuedMask), challenge);
+		if (forgotten != null)
+			mIssued.remove(forgotten);
+		return challenge;
+	}
+
+	/**
+	 * @return true the first time an issued challenge is consumed, false if it
+	 * was never issued, was already used, or has been forgotten
+	 */
+	public boolean consume(String challenge) {
+		return (challenge != null) && (mIssued.remove(challenge) != null);
+	}
+
+	private static String toHex(byte[] bytes, int offset, char[] hex) {
+		for (int i = 0; i < NONCE_BYTES; i++) {
+			byte b = bytes[offset + i];
+			hex[i * 2] = HEX_DIGITS[(b >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs lock and unlock commands off the session threads. A bounded pool waits
+ * on the child processes, their output is drained on separate threads so a
+ * chatty command can't block, and a command that outlives its timeout is
+ * destroyed. Callers get a future for the exit code and decide how long to wait.
+ */
+public class CommandExecutor {
+	public static final int EXIT_TIMED_OUT = -1;
+	private static final int QUEUE_SIZE = 16;
+	private final long mTimeout;
+	private final ThreadPoolExecutor mCommands;
+	private final ExecutorService mDrainers;
+	private final ScheduledExecutorService mWatchdog;
+
+	/**
+	 * @param maxCommands commands run at once, more are queued up to a bound and then rejected
+	 * @param timeout milliseconds a command may run before it's destroyed
+	 */
+	public CommandExecutor(int maxCommands, long timeout) {
+		mTimeout = timeout;
+		maxCommands = Math.max(1, maxCommands);
+		mCommands = new ThreadPoolExecutor(maxCommands, maxCommands, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new DaemonThreadFactory("TapLockCommand-"));
+		mCommands.allowCoreThreadTimeOut(true);
+		mDrainers = Executors.newCachedThreadPool(new DaemonThreadFactory("TapLockCommandOutput-"));
+		mWatchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("TapLockCommandWatchdog-"));
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String mPrefix;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			mPrefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, mPrefix + mCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * @return the command's exit code, or {@link #EXIT_TIMED_OUT}, or null if the executor is full
+	 */
+	public Future<Integer> execute(String command) {
+		return execute(command, mTimeout);
+	}
+
+	public Future<Integer> execute(final String command, final long timeout) {
+		try {
+			return mCommands.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return run(command, timeout);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			TapLockServer.writeLog("execute: " + e.getMessage());
+		}
+		return null;
+	}
+
+	private int run(final String command, long timeout) throws IOException, InterruptedException {
+		TapLockServer.debugLog("command: {}", command);
+		// split the way Runtime.exec(String) does
+		List<String> args = new ArrayList<String>();
+		StringTokenizer st = new StringTokenizer(command);
+		while (st.hasMoreTokens())
+			args.add(st.nextToken());
+		ProcessBuilder pb = new ProcessBuilder(args);
+		pb.redirectErrorStream(true);
+		long start = System.nanoTime();
+		final Process p = pb.start();
+		mDrainers.execute(new Runnable() {
+			@Override
+			public void run() {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null)
+						TapLockServer.debugLog("{}: {}", command, line);
+				} catch (IOException e) {
+					TapLockServer.writeLog("reader.readLine: " + e.getMessage());
+				} finally {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						TapLockServer.writeLog("reader.close: " + e.getMessage());
+					}
+				}
+			}
+		});
+		final boolean[] timedOut = new boolean[1];
+		ScheduledFuture<?> watchdog = mWatchdog.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (timedOut) {
+					timedOut[0] = true;
+				}
+				TapLockServer.writeLog("command timed out: " + command);
+				p.destroy();
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		int exitValue;
+		try {
+			exitValue = p.waitFor();
+		} catch (InterruptedException e) {
+			p.destroy();
+			throw e;
+		} finally {
+			watchdog.cancel(false);
+		}
+		TapLockServer.sMetrics.getCommandExec().recordSince(start);
+		synchronized (timedOut) {
+			if (timedOut[0]) {
+				TapLockServer.sMetrics.commandTimeout();
+				return EXIT_TIMED_OUT;
+			}
+		}
+		if (exitValue != 0) {
+			TapLockServer.writeLog("command exited " + exitValue + ": " + command);
+			TapLockServer.sMetrics.commandFailure();
+		}
+		return exitValue;
+	}
+
+	public void shutdown() {
+		mCommands.shutdownNow();
+		mWatchdog.shutdownNow();
+		mDrainers.shutdownNow();
+	}
+}
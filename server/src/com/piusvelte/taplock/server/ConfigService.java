@@ -0,0 +1,312 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps taplock.properties in memory as an immutable snapshot, so reading a
+ * setting never touches the disk. Edits made to the file by hand are picked up
+ * by a {@link WatchService}. Changes made through {@link #set(String, String)}
+ * are applied to the snapshot immediately and written back shortly after, with
+ * bursts of changes coalesced into one write of a temp file that's renamed over
+ * the original.
+ */
+public class ConfigService {
+	private static final long WRITE_DELAY_MILLIS = 250;
+	private final File mFile;
+	private final AtomicReference<Map<String, String>> mSnapshot = new AtomicReference<Map<String, String>>(Collections.<String, String>emptyMap());
+	private final AtomicBoolean mWriteScheduled = new AtomicBoolean(false);
+	// the snapshot last loaded from or written to the file, only touched holding this
+	private Map<String, String> mFileSnapshot = null;
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "TapLockConfigWriter");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private WatchService mWatchService = null;
+	private Thread mWatchThread = null;
+
+	public interface Listener {
+		/**
+		 * Called after the file was changed outside of this service and reloaded.
+		 */
+		void onConfigReloaded(ConfigService config);
+	}
+
+	public ConfigService(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Load the file and start watching it for changes.
+	 */
+	public void start() {
+		Map<String, String> loaded = load();
+		synchronized (this) {
+			if (loaded != null)
+				mSnapshot.set(loaded);
+			mFileSnapshot = mSnapshot.get();
+		}
+		try {
+			mWatchService = FileSystems.getDefault().newWatchService();
+			Path dir = mFile.getAbsoluteFile().getParentFile().toPath();
+			dir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			TapLockServer.writeLog("config watch: " + e.getMessage());
+			mWatchService = null;
+		}
+		if (mWatchService != null) {
+			mWatchThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watch();
+				}
+			}, "TapLockConfigWatcher");
+			mWatchThread.setDaemon(true);
+			mWatchThread.start();
+		}
+	}
+
+	/**
+	 * Stop watching and write out any pending change.
+	 */
+	public void stop() {
+		if (mWatchService != null) {
+			try {
+				mWatchService.close();
+			} catch (IOException e) {
+				TapLockServer.writeLog("config watch close: " + e.getMessage());
+			}
+			mWatchService = null;
+		}
+		mWriter.shutdown();
+		try {
+			mWriter.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			TapLockServer.writeLog("config writer: " + e.getMessage());
+		}
+		flush();
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public boolean contains(String key) {
+		return mSnapshot.get().containsKey(key);
+	}
+
+	public String get(String key) {
+		return mSnapshot.get().get(key);
+	}
+
+	public String get(String key, String defaultValue) {
+		String value = mSnapshot.get().get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = mSnapshot.get().get(key);
+		return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = mSnapshot.get().get(key);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				TapLockServer.writeLog(key + ": " + e.getMessage());
+			}
+		}
+		return defaultValue;
+	}
+
+	public void set(String key, String value) {
+		Map<String, String> current;
+		Map<String, String> updated;
+		do {
+			current = mSnapshot.get();
+			if (value.equals(current.get(key)))
+				return;
+			updated = new HashMap<String, String>(current);
+			updated.put(key, value);
+		} while (!mSnapshot.compareAndSet(current, Collections.unmodifiableMap(updated)));
+		// flush() clears this before it reads the snapshot, so either that write has this change or another is scheduled
+		if (mWriteScheduled.compareAndSet(false, true))
+			scheduleWrite();
+	}
+
+	private void scheduleWrite() {
+		try {
+			mWriter.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			// shutting down, stop() writes it
+			TapLockServer.writeLog("config schedule: " + e.getMessage());
+		}
+	}
+
+	private synchronized void flush() {
+		mWriteScheduled.set(false);
+		Map<String, String> snapshot = mSnapshot.get();
+		if ((snapshot != mFileSnapshot) && write(snapshot))
+			mFileSnapshot = snapshot;
+	}
+
+	/**
+	 * @return the file's settings, or null if it couldn't be read
+	 */
+	private Map<String, String> load() {
+		Properties prop = new Properties();
+		if (mFile.exists()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(mFile);
+				prop.load(in);
+			} catch (IOException e) {
+				TapLockServer.writeLog("prop load: " + e.getMessage());
+				return null;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						TapLockServer.writeLog("prop close: " + e.getMessage());
+					}
+				}
+			}
+		}
+		Map<String, String> loaded = new HashMap<String, String>();
+		for (String key : prop.stringPropertyNames())
+			loaded.put(key, prop.getProperty(key));
+		return Collections.unmodifiableMap(loaded);
+	}
+
+	/**
+	 * @return true if the settings were saved
+	 */
+	private boolean write(Map<String, String> snapshot) {
+		Properties prop = new Properties();
+		prop.putAll(snapshot);
+		File tmp = new File(mFile.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			prop.store(out, null);
+			out.close();
+			out = null;
+			try {
+				Files.move(tmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} catch (IOException e) {
+			TapLockServer.writeLog("prop store: " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					TapLockServer.writeLog("prop close: " + e.getMessage());
+				}
+			}
+		}
+		return false;
+	}
+
+	private void watch() {
+		WatchService watchService = mWatchService;
+		String name = mFile.getName();
+		while (watchService != null) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException e) {
+				break;
+			} catch (ClosedWatchServiceException e) {
+				break;
+			}
+			boolean changed = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				Object context = event.context();
+				if ((context instanceof Path) && name.equals(((Path) context).getFileName().toString()))
+					changed = true;
+			}
+			key.reset();
+			if (changed)
+				reload();
+		}
+	}
+
+	private void reload() {
+		synchronized (this) {
+			Map<String, String> previous = mSnapshot.get();
+			// a change that isn't written yet is newer than the file
+			if (previous != mFileSnapshot)
+				return;
+			Map<String, String> loaded = load();
+			// our own writes come back as events too, only report real changes,
+			// and a set() that got in after previous was read wins, it's written next
+			if ((loaded == null) || previous.equals(loaded) || !mSnapshot.compareAndSet(previous, loaded))
+				return;
+			mFileSnapshot = loaded;
+		}
+		TapLockServer.writeLog("config reloaded");
+		for (Listener listener : mListeners)
+			listener.onConfigReloaded(this);
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Serves a single client connection. Each accepted connection gets its own
+ * session, so streams and the JSON parser are never shared between clients.
+ */
+public class ConnectionSession implements Runnable {
+	private static final long COMMAND_WAIT = 1000L;
+	private final ConnectionThread mConnectionThread;
+	private final TransportSession mConnection;
+	private volatile InputStream mInStream = null;
+	private volatile OutputStream mOutStream = null;
+	private boolean mClosed = false;
+	private final JSONParser jsonParser = new JSONParser();
+	private final HmacVerifier mHmacVerifier = new HmacVerifier();
+	private final long mAcceptedAt;
+
+	public ConnectionSession(ConnectionThread connectionThread, TransportSession connection) {
+		mAcceptedAt = System.nanoTime();
+		mConnectionThread = connectionThread;
+		mConnection = connection;
+	}
+
+	@Override
+	public void run() {
+		try {
+			serve();
+		} finally {
+			close();
+			mConnectionThread.sessionFinished(this);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void serve() {
+		TapLockServer.debugLog("new connection: {}", mConnection.getRemoteAddress());
+		try {
+			mInStream = mConnection.getInputStream();
+			mOutStream = mConnection.getOutputStream();
+		} catch (IOException e) {
+			TapLockServer.writeLog("inStream and outStream open: " + e.getMessage());
+		}
+		if ((mInStream != null) && (mOutStream != null)) {
+			// send the challenge
+			ChallengeGenerator challenges = mConnectionThread.getChallengeGenerator();
+			String challenge = challenges.issue();
+			TapLockServer.debugLog("init challenge: {}", challenge);
+			JSONObject responseJObj = new JSONObject();
+			responseJObj.put(TapLockServer.PARAM_CHALLENGE, challenge);
+			// advertise framing, old clients ignore unknown keys, and only offer tickets if they're kept
+			responseJObj.put(TapLockServer.PARAM_VERSION, mConnectionThread.getTicketCache().isEnabled() ? TapLockServer.PROTOCOL_VERSION : TapLockServer.PROTOCOL_VERSION_HMAC);
+			// let clients that keep the connection open close it before the server does
+			responseJObj.put(TapLockServer.PARAM_IDLE_TIMEOUT, mConnectionThread.getIdleTimeout());
+			String responseStr = responseJObj.toJSONString();
+			MessageFramer framer = new MessageFramer(mInStream, mOutStream);
+			ServerMetrics metrics = TapLockServer.sMetrics;
+			try {
+				framer.write(responseStr);
+			} catch (IOException e) {
+				TapLockServer.writeLog("outStream.write: " + e.getMessage());
+			}
+			metrics.getAcceptToChallenge().recordSince(mAcceptedAt);
+			long challengeSentAt = System.nanoTime();
+			// prepare to receive data
+			String requestStr = readRequest(framer);
+			while (requestStr != null) {
+				metrics.getChallengeToRequest().recordSince(challengeSentAt);
+				metrics.request();
+				responseJObj.clear();
+				TapLockServer.debugLog("request: {}", requestStr);
+				JSONObject requestJObj = null;
+				try {
+					requestJObj = (JSONObject) jsonParser.parse(requestStr);
+				} catch (ParseException e) {
+					TapLockServer.writeLog("jsonParser.parse: " + e.getMessage());
+				}
+				if (requestJObj != null) {
+					if ((requestJObj != null) && requestJObj.containsKey(TapLockServer.PARAM_ACTION) && requestJObj.containsKey(TapLockServer.PARAM_HMAC)) {
+						String requestAction = (String) requestJObj.get(TapLockServer.PARAM_ACTION);
+						TapLockServer.debugLog("action: {}", requestAction);
+						String requestPassphrase = (String) requestJObj.get(TapLockServer.PARAM_PASSPHRASE);
+						if (requestPassphrase == null)
+							requestPassphrase = "";
+						String requestHMAC = (String) requestJObj.get(TapLockServer.PARAM_HMAC);
+						String originalAction = requestAction;
+						boolean authenticated = false;
+						Object requestVersion = requestJObj.get(TapLockServer.PARAM_VERSION);
+						Object requestTicket = requestJObj.get(TapLockServer.PARAM_TICKET);
+						String requestChallenge = challenge;
+						boolean ticketExpired = false;
+						long verifyStart = System.nanoTime();
+						if (requestTicket != null) {
+							// answered a challenge from an earlier connection, without waiting for this one's
+							requestChallenge = requestTicket.toString();
+							if (mConnectionThread.getTicketCache().redeem(mConnection.getRemoteAddress(), requestChallenge) && challenges.consume(requestChallenge)) {
+								metrics.ticketRedeemed();
+								// this connection's challenge went unanswered, retire it
+								challenges.consume(challenge);
+							} else {
+								TapLockServer.debugLog("ticket expired: {}", requestChallenge);
+								metrics.ticketExpired();
+								ticketExpired = true;
+								requestChallenge = null;
+							}
+						} else if (!challenges.consume(challenge)) {
+							TapLockServer.writeLog("challenge already used or expired");
+							metrics.replayedChallenge();
+							requestChallenge = null;
+						}
+						if (requestChallenge != null) {
+							if ((requestVersion instanceof Number) && (((Number) requestVersion).intValue() >= TapLockServer.PROTOCOL_VERSION_HMAC))
+								authenticated = mHmacVerifier.verify(TapLockServer.sPassphrase, requestChallenge, requestAction, requestPassphrase, requestHMAC);
+							else {
+								// older clients hash the passphrase along with the request
+								String validHMAC = null;
+								try {
+									validHMAC = TapLockServer.getHashString(requestChallenge + TapLockServer.sPassphrase + requestAction + requestPassphrase);
+								} catch (NoSuchAlgorithmException e) {
+									TapLockServer.writeLog("getHashString: " + e.getMessage());
+								} catch (UnsupportedEncodingException e) {
+									TapLockServer.writeLog("getHashString: " + e.getMessage());
+								}
+								authenticated = requestHMAC.equals(validHMAC);
+							}
+						}
+						metrics.getHmacVerify().recordSince(verifyStart);
+						if (authenticated) {
+							if (TapLockServer.ACTION_PASSPHRASE.equals(requestAction))
+								TapLockServer.setPassphrase(requestPassphrase);
+							else {
+								if (TapLockServer.OS == TapLockServer.OS_WIN) {
+									if (TapLockServer.ACTION_LOCK.equals(requestAction))
+										putError(responseJObj, runCommand("rundll32.exe user32.dll, LockWorkStation"));
+									else {
+										// either unlock or toggle
+										String password = "";
+										ConfigService config = TapLockServer.sConfig;
+										if ((config != null) && config.contains(TapLockServer.sPasswordKey))
+											password = TapLockServer.decryptString(config.get(TapLockServer.sPasswordKey));
+										String cpResult = TapLockServer.sCredentialProvider.unlock(System.getProperty("user.name"), password);
+										if (cpResult != null) {
+											TapLockServer.debugLog("credential provider result: {}", cpResult);
+											// the provider should return "0" if no errors
+											if (!TapLockServer.CREDENTIAL_PROVIDER_SUCCESS.equals(cpResult))
+												responseJObj.put(TapLockServer.PARAM_ERROR, "Authentication error, is the Windows password set in Tap Lock Server?");
+										} else
+											putError(responseJObj, runCommand("rundll32.exe user32.dll, LockWorkStation"));
+									}
+								} else if (TapLockServer.OS == TapLockServer.OS_NIX) {
+									if (TapLockServer.ACTION_TOGGLE.equals(requestAction))
+										requestAction = TapLockServer.getToggleAction();
+									String command = null;
+									if (TapLockServer.ACTION_LOCK.equals(requestAction))
+										command = "gnome-screensaver-command -a";
+									else if (TapLockServer.ACTION_UNLOCK.equals(requestAction))
+										command = "gnome-screensaver-command -d";
+									if (command != null) {
+										String error = runCommand(command);
+										if (error == null)
+											TapLockServer.lockStateChanged(requestAction);
+										else
+											responseJObj.put(TapLockServer.PARAM_ERROR, error);
+									}
+								}
+							}
+						} else if (ticketExpired) {
+							// the client retries with the challenge in this response
+							responseJObj.put(TapLockServer.PARAM_ERROR, TapLockServer.ERROR_TICKET_EXPIRED);
+						} else {
+							TapLockServer.writeLog("authentication failed");
+							metrics.authFailure();
+							responseJObj.put(TapLockServer.PARAM_ERROR, "authentication failed");
+						}
+						metrics.actionOutcome(originalAction, !responseJObj.containsKey(TapLockServer.PARAM_ERROR));
+					} else {
+						TapLockServer.writeLog("invalid request");
+						metrics.invalidRequest();
+						responseJObj.put(TapLockServer.PARAM_ERROR, "invalid request");
+					}
+				} else {
+					TapLockServer.writeLog("failed to parse request");
+					metrics.parseError();
+					responseJObj.put(TapLockServer.PARAM_ERROR, "failed to parse request");
+				}
+				// send the new challenge
+				challenge = challenges.issue();
+				TapLockServer.debugLog("next challenge: {}", challenge);
+				responseJObj.put(TapLockServer.PARAM_CHALLENGE, challenge);
+				responseStr = responseJObj.toJSONString();
+				// the client may answer it on its next connection instead, and may reconnect as soon as it's written
+				mConnectionThread.getTicketCache().put(mConnection.getRemoteAddress(), challenge);
+				try {
+					framer.write(responseStr);
+				} catch (IOException e) {
+					TapLockServer.writeLog("outStream.write: " + e.getMessage());
+				}
+				challengeSentAt = System.nanoTime();
+				requestStr = readRequest(framer);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void putError(JSONObject responseJObj, String error) {
+		if (error != null)
+			responseJObj.put(TapLockServer.PARAM_ERROR, error);
+	}
+
+	private String readRequest(MessageFramer framer) {
+		ScheduledFuture<?> idleClose = mConnectionThread.scheduleIdleClose(this);
+		try {
+			return framer.read();
+		} catch (IOException e) {
+			TapLockServer.writeLog("inStream.read: " + e.getMessage());
+		} finally {
+			if (idleClose != null)
+				idleClose.cancel(false);
+		}
+		return null;
+	}
+
+	/**
+	 * Hand the command to the executor and wait briefly for it, so a failure
+	 * can be reported while a hung command doesn't hold up the reply.
+	 * @return an error for the client, or null
+	 */
+	private String runCommand(String command) {
+		Future<Integer> result = mConnectionThread.getCommandExecutor().execute(command);
+		if (result == null)
+			return "server busy, try again";
+		try {
+			int exitValue = result.get(COMMAND_WAIT, TimeUnit.MILLISECONDS);
+			if (exitValue == CommandExecutor.EXIT_TIMED_OUT)
+				return "command timed out";
+			else if (exitValue != 0)
+				return "command failed";
+		} catch (TimeoutException e) {
+			// still running, acknowledge anyway
+			TapLockServer.debugLog("command still running: {}", command);
+		} catch (InterruptedException e) {
+			TapLockServer.writeLog("command result: " + e.getMessage());
+		} catch (ExecutionException e) {
+			TapLockServer.writeLog("command result: " + e.getCause().getMessage());
+			return "command failed";
+		}
+		return null;
+	}
+
+	public synchronized void close() {
+		if (mClosed)
+			return;
+		mClosed = true;
+		if (mInStream != null) {
+			try {
+				mInStream.close();
+			} catch (IOException e) {
+				TapLockServer.writeLog("inStream.close: " + e.getMessage());
+			}
+		}
+		if (mOutStream != null) {
+			try {
+				mOutStream.close();
+			} catch (IOException e) {
+				TapLockServer.writeLog("outStream.close: " + e.getMessage());
+			}
+		}
+		try {
+			mConnection.close();
+		} catch (IOException e) {
+			TapLockServer.writeLog("connection.close: " + e.getMessage());
+		}
+	}
+}
@@ -19,344 +19,206 @@
  */
 package com.piusvelte.taplock.server;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.security.NoSuchAlgorithmException;
-import java.util.Properties;
-
-import javax.bluetooth.DiscoveryAgent;
-import javax.bluetooth.LocalDevice;
-import javax.bluetooth.UUID;
-import javax.microedition.io.Connector;
-import javax.microedition.io.StreamConnection;
-import javax.microedition.io.StreamConnectionNotifier;
-
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConnectionThread extends Thread {
-	private static final String sSPD = "TapLock";
-	private static final UUID sTapLockUUID = new UUID("0000110100001000800000805F9B34FB", false);
-	private LocalDevice local = null;
-	private StreamConnectionNotifier notifier;
-	private StreamConnection btConnection = null;
-	private InputStream btInStream = null;
-	private OutputStream btOutStream = null;
+	private final Transport mTransport;
+	private volatile boolean mRunning = false;
+	private final int mMaxSessions;
+	private final Semaphore mSessionPermits;
+	private final Set<ConnectionSession> mSessions = new HashSet<ConnectionSession>();
+	private ExecutorService mSessionExecutor = null;
+	private final ChallengeGenerator mChallenges = new ChallengeGenerator();
+	private final CommandExecutor mCommands;
+	private final TicketCache mTickets;
+	private final int mIdleTimeout;
+	private final ScheduledExecutorService mIdleWatchdog;
 
 	public ConnectionThread() {
+		this(new RfcommTransport(), TapLockServer.sMaxSessions);
+	}
+
+	public ConnectionThread(Transport transport, int maxSessions) {
+		mTransport = transport;
+		mMaxSessions = Math.max(1, maxSessions);
+		mSessionPermits = new Semaphore(mMaxSessions);
+		mCommands = new CommandExecutor(mMaxSessions, TapLockServer.sCommandTimeout);
+		mTickets = new TicketCache(TapLockServer.sTicketTimeout);
+		mIdleTimeout = TapLockServer.sIdleTimeout;
+		mIdleWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TapLockIdleWatchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
 		TapLockServer.writeLog("ConnectionThread started");
-		// retrieve the local Bluetooth device object
-		// setup the server to listen for connection
 		try {
-			local = LocalDevice.getLocalDevice();
-			local.setDiscoverable(DiscoveryAgent.GIAC);
-			//			String url = "btspp://localhost:" + mRemoteAuthServerUUID.toString() + ";master=false;encrypt=false;authenticate=false;name=" + sSPD;
-			String url = "btspp://localhost:" + sTapLockUUID.toString() + ";name=" + sSPD;
-			notifier = (StreamConnectionNotifier) Connector.open(url);
+			mTransport.open();
 		} catch (Exception e) {
 			// no bluetooth present
-			TapLockServer.writeLog("notifier init: " + e.getMessage());
+			TapLockServer.writeLog("transport open: " + e.getMessage());
 			TapLockServer.shutdown();
 			return;
 		}
-		JSONParser jsonParser = new JSONParser();
-		while (notifier != null) {
-			TapLockServer.writeLog("waiting for connection...");
+		TapLockServer.writeLog("transport: " + mTransport.getName());
+		mRunning = true;
+		mChallenges.start();
+		mSessionExecutor = createSessionExecutor(mMaxSessions);
+		while (mRunning) {
+			// don't accept more clients than can be served, the rest wait in the transport's backlog
 			try {
-				btConnection = notifier.acceptAndOpen();
+				mSessionPermits.acquire();
+			} catch (InterruptedException e) {
+				TapLockServer.writeLog("session permit: " + e.getMessage());
+				break;
+			}
+			TapLockServer.debugLog("waiting for connection...");
+			TransportSession transportSession = null;
+			try {
+				transportSession = mTransport.accept();
 			} catch (IOException e) {
-				TapLockServer.writeLog("notifier.acceptAndOpen: " + e.getMessage());
-				btConnection = null;
+				if (mRunning)
+					TapLockServer.writeLog("transport.accept: " + e.getMessage());
 			}
-			if (btConnection != null) {
-				TapLockServer.writeLog("new connection...");
-				try {
-					btInStream = btConnection.openInputStream();
-					btOutStream = btConnection.openOutputStream();
-				} catch (IOException e) {
-					TapLockServer.writeLog("inStream and outStream open: " + e.getMessage());
-				}
-				if ((btInStream != null) && (btOutStream != null)) {
-					// send the challenge
-					String challenge = Long.toString(System.currentTimeMillis());
-					TapLockServer.writeLog("init challenge: " + challenge);
-					JSONObject responseJObj = new JSONObject();
-					responseJObj.put(TapLockServer.PARAM_CHALLENGE, challenge);
-					String responseStr = responseJObj.toJSONString();
-					try {
-						btOutStream.write(responseStr.getBytes());
-					} catch (IOException e) {
-						TapLockServer.writeLog("outStream.write: " + e.getMessage());
-					}
-					// prepare to receive data
-					byte[] btBuffer = new byte[1024];
-					int btReadBytes = -1;
-					try {
-						btReadBytes = btInStream.read(btBuffer);
-					} catch (IOException e) {
-						TapLockServer.writeLog("inStream.read: " + e.getMessage());
-					}
-					while (btReadBytes != -1) {
-						responseJObj.clear();
-						String requestStr = new String(btBuffer, 0, btReadBytes);
-						TapLockServer.writeLog("request: " + requestStr);
-						JSONObject requestJObj = null;
-						try {
-							requestJObj = (JSONObject) jsonParser.parse(requestStr);
-						} catch (ParseException e) {
-							TapLockServer.writeLog("jsonParser.parse: " + e.getMessage());
-						}
-						if (requestJObj != null) {
-							if ((requestJObj != null) && requestJObj.containsKey(TapLockServer.PARAM_ACTION) && requestJObj.containsKey(TapLockServer.PARAM_HMAC)) {
-								String requestAction = (String) requestJObj.get(TapLockServer.PARAM_ACTION);
-								TapLockServer.writeLog("action: " + requestAction);
-								String requestPassphrase = (String) requestJObj.get(TapLockServer.PARAM_PASSPHRASE);
-								if (requestPassphrase == null)
-									requestPassphrase = "";
-								String requestHMAC = (String) requestJObj.get(TapLockServer.PARAM_HMAC);
-								String validHMAC = null;
-								try {
-									validHMAC = TapLockServer.getHashString(challenge + TapLockServer.sPassphrase + requestAction + requestPassphrase);
-								} catch (NoSuchAlgorithmException e) {
-									TapLockServer.writeLog("getHashString: " + e.getMessage());
-								} catch (UnsupportedEncodingException e) {
-									TapLockServer.writeLog("getHashString: " + e.getMessage());
-								}
-								if (requestHMAC.equals(validHMAC)) {
-									if (TapLockServer.ACTION_PASSPHRASE.equals(requestAction))
-										TapLockServer.setPassphrase(requestPassphrase);
-									else {
-										if (TapLockServer.OS == TapLockServer.OS_WIN) {
-											if (TapLockServer.ACTION_LOCK.equals(requestAction))
-												runCommand("rundll32.exe user32.dll, LockWorkStation");
-											else {
-												// either unlock or toggle
-												String password = "";
-												Properties prop = new Properties();
-												try {
-													prop.load(new FileInputStream(TapLockServer.sProperties));
-													if (prop.containsKey(TapLockServer.sPasswordKey))
-														password = TapLockServer.decryptString(prop.getProperty(TapLockServer.sPasswordKey));
-												} catch (FileNotFoundException e) {
-													TapLockServer.writeLog("prop load: " + e.getMessage());
-												} catch (IOException e) {
-													TapLockServer.writeLog("prop load: " + e.getMessage());
-												}
-												Socket cpSocket = null;
-												try {
-													cpSocket = new Socket(TapLockServer.S_LOCALHOST, TapLockServer.SERVER_PORT);
-												} catch (UnknownHostException e) {
-													TapLockServer.writeLog("socket: " + e.getMessage());
-												} catch (IOException e) {
-													TapLockServer.writeLog("socket: " + e.getMessage());
-												}
-												if (cpSocket != null) {
-													InputStream cpInStream = null;
-													OutputStream cpOutStream = null;
-													try {
-														cpInStream = cpSocket.getInputStream();
-														cpOutStream = cpSocket.getOutputStream();
-													} catch (IOException e) {
-														TapLockServer.writeLog("in/out stream: " + e.getMessage());
-													}
-													if ((cpInStream != null) && (cpOutStream != null)) {
-														// get the version
-														byte[] cpBuffer = new byte[1];
-														int cpReadBytes = -1;
-														try {
-															cpReadBytes = cpInStream.read(cpBuffer);
-														} catch (IOException e) {
-															TapLockServer.writeLog("instream read: " + e.getMessage());
-														}
-														if (cpReadBytes != -1) {
-															TapLockServer.writeLog("credential provider version: " + new String(cpBuffer, 0, cpReadBytes));
-															// pack the credentials
-															byte[] usernameBytes = System.getProperty("user.name").getBytes(Charset.forName("UTF-8"));
-															byte[] passwordBytes = password.getBytes(Charset.forName("UTF-8"));
-															byte[] credentialsBuf = new byte[TapLockServer.S_CREDBUF];
-															for (int i = 0, l = usernameBytes.length; (i < l) && (i < TapLockServer.S_USERBUF); i++)
-																credentialsBuf[i] = usernameBytes[i];
-															for (int i = 0, l = passwordBytes.length; (i < l) && (i < TapLockServer.S_PASSBUF); i++)
-																credentialsBuf[i + TapLockServer.S_USERBUF] = passwordBytes[i];
-															try {
-																cpOutStream.write(credentialsBuf);
-															} catch (IOException e) {
-																TapLockServer.writeLog("cpOutStream write: " + e.getMessage());
-															}
-															cpReadBytes = -1;
-															try {
-																cpReadBytes = cpInStream.read(credentialsBuf);
-															} catch (IOException e) {
-																TapLockServer.writeLog("cpInStream read: " + e.getMessage());
-															}
-															// the socket should return "0" if no errors
-															if (cpReadBytes != -1) {
-																String cpResult = new String(credentialsBuf, 0, cpReadBytes);
-																TapLockServer.writeLog("credential provider result: " + cpResult);
-																if (!TapLockServer.CREDENTIAL_PROVIDER_SUCCESS.equals(cpResult))
-																	responseJObj.put(TapLockServer.PARAM_ERROR, "Authentication error, is the Windows password set in Tap Lock Server?");
-															}
-															try {
-																cpOutStream.close();
-															} catch (IOException e) {
-																TapLockServer.writeLog("output close: " + e.getMessage());
-															}
-															try {
-																cpInStream.close();
-															} catch (IOException e) {
-																TapLockServer.writeLog("in close: " + e.getMessage());
-															}
-															try {
-																cpSocket.close();
-															} catch (IOException e) {
-																TapLockServer.writeLog("socket close: " + e.getMessage());
-															}
-														}
-													}
-												} else
-													runCommand("rundll32.exe user32.dll, LockWorkStation");
-											}
-										} else if (TapLockServer.OS == TapLockServer.OS_NIX) {
-											if (TapLockServer.ACTION_TOGGLE.equals(requestAction))
-												requestAction = TapLockServer.getToggleAction();
-											String command = null;
-											if (TapLockServer.ACTION_LOCK.equals(requestAction))
-												command = "gnome-screensaver-command -a";
-											else if (TapLockServer.ACTION_UNLOCK.equals(requestAction))
-												command = "gnome-screensaver-command -d";
-											if (command != null)
-												runCommand(command);
-										}
-									}
-								} else {
-									TapLockServer.writeLog("authentication failed");
-									responseJObj.put(TapLockServer.PARAM_ERROR, "authentication failed");
-								}
-							} else {
-								TapLockServer.writeLog("invalid request");
-								responseJObj.put(TapLockServer.PARAM_ERROR, "invalid request");
-							}
-						} else {
-							TapLockServer.writeLog("failed to parse request");
-							responseJObj.put(TapLockServer.PARAM_ERROR, "failed to parse request");
-						}
-						// send the new challenge
-						challenge = Long.toString(System.currentTimeMillis());
-						TapLockServer.writeLog("next challenge: " + challenge);
-						responseJObj.put(TapLockServer.PARAM_CHALLENGE, challenge);
-						responseStr = responseJObj.toJSONString();
-						try {
-							btOutStream.write(responseStr.getBytes());
-						} catch (IOException e) {
-							TapLockServer.writeLog("outStream.write: " + e.getMessage());
-						}
-						try {
-							btReadBytes = btInStream.read(btBuffer);
-						} catch (IOException e) {
-							TapLockServer.writeLog("inStream.read: " + e.getMessage());
-						}
-					}
-					if (btInStream != null) {
-						try {
-							btInStream.close();
-						} catch (IOException e) {
-							TapLockServer.writeLog("inStream.close: " + e.getMessage());
-						}
-					}
-					if (btOutStream != null) {
-						try {
-							btOutStream.close();
-						} catch (IOException e) {
-							TapLockServer.writeLog("outStream.close: " + e.getMessage());
-						}
-					}
+			if (transportSession != null) {
+				TapLockServer.sMetrics.sessionAccepted();
+				ConnectionSession session = new ConnectionSession(this, transportSession);
+				synchronized (mSessions) {
+					mSessions.add(session);
 				}
-				if (btConnection != null) {
-					try {
-						btConnection.close();
-					} catch (IOException e) {
-						TapLockServer.writeLog("connection.close: " + e.getMessage());
-					}
-					btConnection = null;
+				try {
+					mSessionExecutor.execute(session);
+				} catch (RejectedExecutionException e) {
+					TapLockServer.writeLog("session execute: " + e.getMessage());
+					session.close();
+					sessionFinished(session);
 				}
-			}
+			} else
+				mSessionPermits.release();
 		}
 	}
 
-	private void runCommand(String command) {
-		TapLockServer.writeLog("command: " + command);
-		Process p = null;
-		try {
-			p = Runtime.getRuntime().exec(command);
-		} catch (IOException e) {
-			TapLockServer.writeLog("Runtime.getRuntime().exec: " + e.getMessage());
+	protected void sessionFinished(ConnectionSession session) {
+		boolean removed;
+		synchronized (mSessions) {
+			removed = mSessions.remove(session);
 		}
-		if (p != null) {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream())); 
-			String line = null;
-			try {
-				line = reader.readLine();
-			} catch (IOException e) {
-				TapLockServer.writeLog("reader.readLine: " + e.getMessage());
-			} 
-			while (line != null) { 
-				TapLockServer.writeLog(line);
-				try {
-					line = reader.readLine();
-				} catch (IOException e) {
-					TapLockServer.writeLog("reader.readLine: " + e.getMessage());
-				} 
-			}
+		if (removed) {
+			TapLockServer.sMetrics.sessionFinished();
+			mSessionPermits.release();
 		}
 	}
 
-	public void shutdown() {
-		if (notifier != null) {
-			try {
-				notifier.close();
-			} catch (IOException e) {
-				TapLockServer.writeLog("notifier.close: " + e.getMessage());
-			}
-			notifier = null;
+	protected ChallengeGenerator getChallengeGenerator() {
+		return mChallenges;
+	}
+
+	protected CommandExecutor getCommandExecutor() {
+		return mCommands;
+	}
+
+	protected TicketCache getTicketCache() {
+		return mTickets;
+	}
+
+	/**
+	 * @return how long a session may wait for a request, in milliseconds, or 0 for ever
+	 */
+	protected int getIdleTimeout() {
+		return Math.max(0, mIdleTimeout);
+	}
+
+	/**
+	 * Close the session if it's still waiting for a request after the idle
+	 * timeout, so a client that keeps its connection open doesn't hold a permit.
+	 * @return the pending close, to cancel once a request arrives, or null
+	 */
+	protected ScheduledFuture<?> scheduleIdleClose(final ConnectionSession session) {
+		if (mIdleTimeout <= 0)
+			return null;
+		try {
+			return mIdleWatchdog.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					TapLockServer.debugLog("closing idle session");
+					session.close();
+				}
+			}, mIdleTimeout, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down, the session is being closed anyway
+			return null;
 		}
-		if (btInStream != null) {
-			try {
-				btInStream.close();
-			} catch (IOException e) {
-				TapLockServer.writeLog("inStream.close: " + e.getMessage());
-			}
+	}
+
+	/**
+	 * Sessions run on virtual threads when the JVM has them, otherwise on a pool
+	 * sized to the session cap.
+	 */
+	private static ExecutorService createSessionExecutor(int maxSessions) {
+		try {
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService) factory.invoke(null);
+			TapLockServer.writeLog("sessions on virtual threads, max " + maxSessions);
+			return executor;
+		} catch (Exception e) {
+			// pre-21 JVM, or virtual threads not enabled
 		}
-		if (btOutStream != null) {
-			try {
-				btOutStream.close();
-			} catch (IOException e) {
-				TapLockServer.writeLog("outStream.close: " + e.getMessage());
+		TapLockServer.writeLog("sessions on thread pool, max " + maxSessions);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxSessions, maxSessions, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TapLockSession-" + mCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
 			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	public void shutdown() {
+		mRunning = false;
+		try {
+			mTransport.close();
+		} catch (IOException e) {
+			TapLockServer.writeLog("transport.close: " + e.getMessage());
 		}
-		if (btConnection != null) {
-			try {
-				btConnection.close();
-			} catch (IOException e) {
-				TapLockServer.writeLog("connection.close: " + e.getMessage());
-			}
-			btConnection = null;
+		interrupt();
+		ConnectionSession[] sessions;
+		synchronized (mSessions) {
+			sessions = mSessions.toArray(new ConnectionSession[mSessions.size()]);
 		}
-		if (local != null)
-			local = null;
+		for (ConnectionSession session : sessions)
+			session.close();
+		if (mSessionExecutor != null)
+			mSessionExecutor.shutdownNow();
+		mChallenges.stop();
+		mCommands.shutdown();
+		mIdleWatchdog.shutdownNow();
+		mTickets.clear();
 	}
 }
@@ -0,0 +1,153 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Talks to the Windows credential provider over one long-lived socket. The
+ * provider sends its version once per connection, then answers each 64 byte
+ * credential block with a single result byte. The connection is opened on the
+ * first unlock and again after a failure, and unlocks are serialized over it.
+ */
+public class CredentialProviderClient {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int CONNECT_TIMEOUT = 2000;
+	private static final int READ_TIMEOUT = 10000;
+	private final String mHost;
+	private final int mPort;
+	private final byte[] mCredentials = new byte[TapLockServer.S_CREDBUF];
+	private Socket mSocket = null;
+	private InputStream mInStream = null;
+	private OutputStream mOutStream = null;
+	private String mVersion = null;
+
+	public CredentialProviderClient(String host, int port) {
+		mHost = host;
+		mPort = port;
+	}
+
+	/**
+	 * @return the provider's result, {@link TapLockServer#CREDENTIAL_PROVIDER_SUCCESS} on success,
+	 * or null if the provider can't be reached
+	 */
+	public synchronized String unlock(String username, String password) {
+		if (username == null)
+			username = "";
+		if (password == null)
+			password = "";
+		long start = System.nanoTime();
+		String result = exchange(username, password);
+		TapLockServer.sMetrics.getCredentialProvider().recordSince(start);
+		if (result == null)
+			TapLockServer.sMetrics.credentialProviderFailure();
+		return result;
+	}
+
+	private String exchange(String username, String password) {
+		// a kept connection may have been dropped by the provider, so it gets one retry on a new one
+		for (int attempt = 0; attempt < 2; attempt++) {
+			boolean reused = mSocket != null;
+			try {
+				connect();
+				packCredentials(username, password);
+				try {
+					mOutStream.write(mCredentials);
+					mOutStream.flush();
+				} finally {
+					Arrays.fill(mCredentials, (byte) 0);
+				}
+				int result = mInStream.read();
+				if (result == -1)
+					throw new EOFException("credential provider closed the connection");
+				return Character.toString((char) result);
+			} catch (IOException e) {
+				TapLockServer.writeLog("credential provider: " + e.getMessage());
+				close();
+				if (!reused)
+					break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the version the provider sent on the current connection, or null if not connected
+	 */
+	public synchronized String getVersion() {
+		return mVersion;
+	}
+
+	public synchronized void close() {
+		if (mSocket != null) {
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				TapLockServer.writeLog("credential provider close: " + e.getMessage());
+			}
+		}
+		mSocket = null;
+		mInStream = null;
+		mOutStream = null;
+		mVersion = null;
+	}
+
+	private void connect() throws IOException {
+		if (mSocket != null)
+			return;
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+			InputStream inStream = socket.getInputStream();
+			int version = inStream.read();
+			if (version == -1)
+				throw new EOFException("credential provider closed the connection");
+			mVersion = Character.toString((char) version);
+			TapLockServer.writeLog("credential provider version: " + mVersion);
+			mInStream = inStream;
+			mOutStream = socket.getOutputStream();
+			mSocket = socket;
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ce) {
+				TapLockServer.writeLog("credential provider close: " + ce.getMessage());
+			}
+			throw e;
+		}
+	}
+
+	private void packCredentials(String username, String password) {
+		byte[] usernameBytes = username.getBytes(UTF_8);
+		byte[] passwordBytes = password.getBytes(UTF_8);
+		System.arraycopy(usernameBytes, 0, mCredentials, 0, Math.min(usernameBytes.length, TapLockServer.S_USERBUF));
+		System.arraycopy(passwordBytes, 0, mCredentials, TapLockServer.S_USERBUF, Math.min(passwordBytes.length, TapLockServer.S_PASSBUF));
+		Arrays.fill(passwordBytes, (byte) 0);
+	}
+}
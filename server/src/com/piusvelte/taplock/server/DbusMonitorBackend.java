@@ -0,0 +1,176 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Follows the GNOME screensaver's ActiveChanged signal through one long-lived
+ * dbus-monitor process, which is restarted if it exits. The state at startup
+ * comes from a single gnome-screensaver-command -q. A monitor that won't start,
+ * or exits straight away, as it does without a session bus, is retried with a
+ * growing delay, and after several such failures the backend gives up, leaving
+ * the tracker to follow the server's own actions like a
+ * {@link LockStateTracker.ManualBackend}.
+ */
+public class DbusMonitorBackend implements LockStateTracker.Backend, Runnable {
+	private static final String[] MONITOR_COMMAND = new String[] {"dbus-monitor", "--session", "type='signal',interface='org.gnome.ScreenSaver',member='ActiveChanged'"};
+	private static final String[] QUERY_COMMAND = new String[] {"gnome-screensaver-command", "-q"};
+	private static final String SIGNAL_MEMBER = "member=ActiveChanged";
+	private static final long RESTART_DELAY = 5000L;
+	// a monitor that exits sooner than this didn't really start
+	private static final long FAST_FAILURE = 10000L;
+	private static final int MAX_FAST_FAILURES = 5;
+	private volatile LockStateTracker mTracker = null;
+	private volatile Thread mMonitorThread = null;
+	private Process mMonitor = null;
+
+	@Override
+	public synchronized void start(LockStateTracker tracker) throws IOException {
+		if (mMonitorThread != null)
+			return;
+		mTracker = tracker;
+		Thread monitorThread = new Thread(this, "TapLockLockMonitor");
+		monitorThread.setDaemon(true);
+		mMonitorThread = monitorThread;
+		monitorThread.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		Thread monitorThread = mMonitorThread;
+		mMonitorThread = null;
+		if (mMonitor != null)
+			mMonitor.destroy();
+		if (monitorThread != null)
+			monitorThread.interrupt();
+	}
+
+	@Override
+	public void run() {
+		Thread monitorThread = Thread.currentThread();
+		int fastFailures = 0;
+		while (mMonitorThread == monitorThread) {
+			long started = System.nanoTime();
+			Process monitor = null;
+			try {
+				monitor = new ProcessBuilder(MONITOR_COMMAND).redirectErrorStream(true).start();
+			} catch (IOException e) {
+				TapLockServer.writeLog("dbus-monitor: " + e.getMessage());
+			}
+			if (monitor != null) {
+				synchronized (this) {
+					if (mMonitorThread != monitorThread) {
+						monitor.destroy();
+						break;
+					}
+					mMonitor = monitor;
+				}
+				// query after the monitor is up, so a change in between isn't missed
+				query();
+				follow(monitor);
+				synchronized (this) {
+					mMonitor = null;
+				}
+				monitor.destroy();
+			}
+			// signals may have been missed until the monitor is back
+			LockStateTracker tracker = mTracker;
+			if (tracker != null)
+				tracker.setUnknown();
+			if (System.nanoTime() - started < FAST_FAILURE * 1000000L)
+				fastFailures++;
+			else
+				fastFailures = 0;
+			if (fastFailures >= MAX_FAST_FAILURES) {
+				TapLockServer.writeLog("dbus-monitor keeps failing, only the server's own actions are tracked");
+				break;
+			}
+			if (mMonitorThread == monitorThread) {
+				try {
+					// 5s, 10s, 20s... while it keeps failing
+					Thread.sleep(RESTART_DELAY << Math.max(0, fastFailures - 1));
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		}
+	}
+
+	private void follow(Process monitor) {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(monitor.getInputStream()));
+		try {
+			boolean inSignal = false;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.contains(SIGNAL_MEMBER))
+					inSignal = true;
+				else if (inSignal) {
+					// the signal's argument follows on the next line, "   boolean true"
+					line = line.trim();
+					if (line.startsWith("boolean")) {
+						LockStateTracker tracker = mTracker;
+						if (tracker != null)
+							tracker.setLocked(line.endsWith("true"));
+					}
+					inSignal = false;
+				}
+			}
+		} catch (IOException e) {
+			TapLockServer.writeLog("dbus-monitor read: " + e.getMessage());
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				TapLockServer.writeLog("dbus-monitor close: " + e.getMessage());
+			}
+		}
+	}
+
+	private void query() {
+		Process p = null;
+		try {
+			p = new ProcessBuilder(QUERY_COMMAND).redirectErrorStream(true).start();
+		} catch (IOException e) {
+			TapLockServer.writeLog("gnome-screensaver-command: " + e.getMessage());
+		}
+		if (p != null) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			try {
+				String line = reader.readLine();
+				LockStateTracker tracker = mTracker;
+				// "The screensaver is active" or "The screensaver is inactive"
+				if ((line != null) && (tracker != null) && line.contains("active"))
+					tracker.setLocked(!line.contains("inactive"));
+			} catch (IOException e) {
+				TapLockServer.writeLog("gnome-screensaver-command read: " + e.getMessage());
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					TapLockServer.writeLog("gnome-screensaver-command close: " + e.getMessage());
+				}
+				p.destroy();
+			}
+		}
+	}
+}
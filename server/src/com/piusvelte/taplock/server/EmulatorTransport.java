@@ -0,0 +1,89 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+
+import javax.bluetooth.LocalDevice;
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+
+import com.intel.bluetooth.BlueCoveConfigProperties;
+import com.intel.bluetooth.BlueCoveImpl;
+
+/**
+ * RFCOMM over the bluecove-emu stack, for running the real BlueCove code path
+ * on a machine without a radio. Each thread that talks to the emulator gets its
+ * own emulated device, so clients and the server can share one JVM.
+ */
+public class EmulatorTransport extends RfcommTransport {
+	private static final String SERVER_DEVICE_ID = "0";
+	private static int sNextClientDeviceId = 1;
+	private static final ThreadLocal<Boolean> sClientDevice = new ThreadLocal<Boolean>();
+	private Object mStackID = null;
+
+	static {
+		System.setProperty(BlueCoveConfigProperties.PROPERTY_STACK, "emulator");
+		// start the emulator's device manager in this JVM unless pointed at another one
+		if (System.getProperty(BlueCoveConfigProperties.PROPERTY_EMULATOR_HOST) == null)
+			System.setProperty(BlueCoveConfigProperties.PROPERTY_EMULATOR_RMI_REGISTRY, "true");
+	}
+
+	@Override
+	public void open() throws IOException {
+		BlueCoveImpl.useThreadLocalBluetoothStack();
+		BlueCoveImpl.setConfigProperty(BlueCoveConfigProperties.PROPERTY_LOCAL_DEVICE_ID, SERVER_DEVICE_ID);
+		super.open();
+		mStackID = BlueCoveImpl.getThreadBluetoothStackID();
+	}
+
+	@Override
+	public TransportSession accept() throws IOException {
+		// the emulated device is bound to the thread that opened it
+		if (mStackID != null)
+			BlueCoveImpl.setThreadBluetoothStackID(mStackID);
+		return super.accept();
+	}
+
+	@Override
+	public String getName() {
+		return "emulator";
+	}
+
+	/**
+	 * Connect to an emulated server from the calling thread, creating an emulated
+	 * client device for that thread on first use.
+	 */
+	public static StreamConnection connect(String url) throws IOException {
+		if (sClientDevice.get() == null) {
+			BlueCoveImpl.useThreadLocalBluetoothStack();
+			// don't inherit the server's device
+			BlueCoveImpl.setThreadBluetoothStackID(null);
+			int deviceId;
+			synchronized (EmulatorTransport.class) {
+				deviceId = sNextClientDeviceId++;
+			}
+			BlueCoveImpl.setConfigProperty(BlueCoveConfigProperties.PROPERTY_LOCAL_DEVICE_ID, Integer.toString(deviceId));
+			LocalDevice.getLocalDevice();
+			sClientDevice.set(Boolean.TRUE);
+		}
+		return (StreamConnection) Connector.open(url);
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifies {@link TapLockServer#PROTOCOL_VERSION_HMAC} requests, where the hmac
+ * is HMAC-SHA256 keyed by the passphrase over challenge, action and new
+ * passphrase, each followed by a 0 byte. One Mac is keyed per passphrase and
+ * shared, and each session clones it and reuses the clone and its own buffers,
+ * so verifying allocates little more than a wrapper per string. A session's
+ * verifier isn't thread safe.
+ */
+public class HmacVerifier {
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MAC_LENGTH = 32;
+	private static final Object sKeyLock = new Object();
+	private static volatile KeyedMac sKeyedMac = null;
+	private String mPassphrase = null;
+	private Mac mMac = null;
+	// unpaired surrogates become '?', as String.getBytes does
+	private final CharsetEncoder mEncoder = UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer mInput = ByteBuffer.allocate(64);
+	private final byte[] mExpected = new byte[MAC_LENGTH];
+	private final byte[] mReceived = new byte[MAC_LENGTH];
+
+	// the Mac is only ever cloned, never updated, so any thread can clone it
+	private static class KeyedMac {
+		final String passphrase;
+		final Mac mac;
+
+		KeyedMac(String passphrase, Mac mac) {
+			this.passphrase = passphrase;
+			this.mac = mac;
+		}
+	}
+
+	/**
+	 * Drop the shared keyed Mac, once the passphrase has changed.
+	 */
+	public static void invalidate() {
+		sKeyedMac = null;
+	}
+
+	/**
+	 * @return true if hmac is the hex encoded HMAC of the request under passphrase
+	 */
+	public boolean verify(String passphrase, String challenge, String action, String newPassphrase, String hmac) {
+		if ((passphrase == null) || (challenge == null) || (action == null) || (hmac == null))
+			return false;
+		if (newPassphrase == null)
+			newPassphrase = "";
+		Mac mac = getMac(passphrase);
+		if (mac == null)
+			return false;
+		try {
+			mac.reset();
+			update(mac, challenge);
+			update(mac, action);
+			update(mac, newPassphrase);
+			mac.doFinal(mExpected, 0);
+		} catch (GeneralSecurityException e) {
+			TapLockServer.writeLog("verify: " + e.getMessage());
+			return false;
+		}
+		boolean decoded = decodeHex(hmac, mReceived);
+		// always compare, so a malformed hmac takes as long as a wrong one
+		return MessageDigest.isEqual(mExpected, mReceived) & decoded;
+	}
+
+	private Mac getMac(String passphrase) {
+		if ((mMac != null) && ((mPassphrase == passphrase) || passphrase.equals(mPassphrase)))
+			return mMac;
+		mMac = null;
+		try {
+			KeyedMac keyedMac = sKeyedMac;
+			if ((keyedMac == null) || !keyedMac.passphrase.equals(passphrase)) {
+				synchronized (sKeyLock) {
+					keyedMac = sKeyedMac;
+					if ((keyedMac == null) || !keyedMac.passphrase.equals(passphrase))
+						sKeyedMac = keyedMac = new KeyedMac(passphrase, createMac(passphrase));
+				}
+			}
+			try {
+				mMac = (Mac) keyedMac.mac.clone();
+			} catch (CloneNotSupportedException e) {
+				// the provider's Mac can't be cloned, so key one for this session
+				mMac = createMac(passphrase);
+			}
+		} catch (GeneralSecurityException e) {
+			TapLockServer.writeLog("getMac: " + e.getMessage());
+			return null;
+		}
+		mPassphrase = passphrase;
+		return mMac;
+	}
+
+	private static Mac createMac(String passphrase) throws GeneralSecurityException {
+		byte[] key = passphrase.getBytes(UTF_8);
+		// HMAC allows an empty key, SecretKeySpec doesn't, and a zero-padded key is the same
+		if (key.length == 0)
+			key = new byte[1];
+		Mac mac = Mac.getInstance(ALGORITHM);
+		mac.init(new SecretKeySpec(key, ALGORITHM));
+		return mac;
+	}
+
+	private void update(Mac mac, String str) {
+		int maxLength = (int) (str.length() * mEncoder.maxBytesPerChar());
+		if (mInput.capacity() < maxLength)
+			mInput = ByteBuffer.allocate(Math.max(maxLength, mInput.capacity() * 2));
+		mInput.clear();
+		mEncoder.reset();
+		mEncoder.encode(CharBuffer.wrap(str), mInput, true);
+		mEncoder.flush(mInput);
+		mInput.flip();
+		mac.update(mInput);
+		mac.update((byte) 0);
+	}
+
+	private static boolean decodeHex(String hex, byte[] out) {
+		boolean valid = hex.length() == (out.length * 2);
+		for (int i = 0; i < out.length; i++) {
+			int hi = valid ? Character.digit(hex.charAt(i * 2), 16) : 0;
+			int lo = valid ? Character.digit(hex.charAt(i * 2 + 1), 16) : 0;
+			if ((hi < 0) || (lo < 0)) {
+				valid = false;
+				hi = 0;
+				lo = 0;
+			}
+			out[i] = (byte) ((hi << 4) | lo);
+		}
+		return valid;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * Holds the Windows password key once it's been read from the keystore, along
+ * with ciphers that are initialized once per thread and reused, since doFinal
+ * leaves a cipher ready for the next message. The keystore is only read again
+ * after {@link #invalidate()}, which is called when the passphrase re-keys it.
+ */
+public class KeyMaterialCache {
+	private static final String KEYSTORE_TYPE = "BKS";
+	private static final String CIPHER = "AES";
+	private final String mKeystore;
+	private final String mAlias;
+	private volatile SecretKey mSecretKey = null;
+	private final ThreadLocal<Ciphers> mCiphers = new ThreadLocal<Ciphers>() {
+		@Override
+		protected Ciphers initialValue() {
+			return new Ciphers();
+		}
+	};
+
+	private static class Ciphers {
+		SecretKey key = null;
+		Cipher encrypt = null;
+		Cipher decrypt = null;
+	}
+
+	public KeyMaterialCache(String keystore, String alias) {
+		mKeystore = keystore;
+		mAlias = alias;
+	}
+
+	/**
+	 * @return the cached key, loading it from the keystore on first use, or null if there isn't one
+	 */
+	public SecretKey getSecretKey(String passphrase) {
+		SecretKey sk = mSecretKey;
+		if (sk == null) {
+			synchronized (this) {
+				sk = mSecretKey;
+				if (sk == null)
+					mSecretKey = sk = load(passphrase);
+			}
+		}
+		return sk;
+	}
+
+	/**
+	 * Use a key that was just generated and stored, without reading it back.
+	 */
+	public void setSecretKey(SecretKey sk) {
+		mSecretKey = sk;
+	}
+
+	public void invalidate() {
+		mSecretKey = null;
+	}
+
+	/**
+	 * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+	 * @return a cipher confined to the calling thread, or null if there's no key
+	 */
+	public Cipher getCipher(int mode, String passphrase) {
+		SecretKey sk = getSecretKey(passphrase);
+		if (sk == null)
+			return null;
+		Ciphers ciphers = mCiphers.get();
+		if (ciphers.key != sk) {
+			// first use on this thread, or re-keyed
+			ciphers.key = sk;
+			ciphers.encrypt = null;
+			ciphers.decrypt = null;
+		}
+		Cipher cipher = mode == Cipher.ENCRYPT_MODE ? ciphers.encrypt : ciphers.decrypt;
+		if (cipher == null) {
+			try {
+				cipher = Cipher.getInstance(CIPHER);
+				cipher.init(mode, sk);
+			} catch (NoSuchAlgorithmException e) {
+				TapLockServer.writeLog("getCipher: " + e.getMessage());
+				return null;
+			} catch (NoSuchPaddingException e) {
+				TapLockServer.writeLog("getCipher: " + e.getMessage());
+				return null;
+			} catch (InvalidKeyException e) {
+				TapLockServer.writeLog("getCipher: " + e.getMessage());
+				return null;
+			}
+			if (mode == Cipher.ENCRYPT_MODE)
+				ciphers.encrypt = cipher;
+			else
+				ciphers.decrypt = cipher;
+		}
+		return cipher;
+	}
+
+	private SecretKey load(String passphrase) {
+		KeyStore ks;
+		try {
+			ks = KeyStore.getInstance(KEYSTORE_TYPE);
+		} catch (KeyStoreException e) {
+			TapLockServer.writeLog("getKeyStore: " + e.getMessage());
+			return null;
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(mKeystore);
+			ks.load(in, passphrase.toCharArray());
+			return (SecretKey) ks.getKey(mAlias, passphrase.toCharArray());
+		} catch (FileNotFoundException e) {
+			// no password has been set yet
+			TapLockServer.writeLog("getSecretKey: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			TapLockServer.writeLog("getSecretKey: " + e.getMessage());
+		} catch (CertificateException e) {
+			TapLockServer.writeLog("getSecretKey: " + e.getMessage());
+		} catch (IOException e) {
+			TapLockServer.writeLog("getSecretKey: " + e.getMessage());
+		} catch (UnrecoverableKeyException e) {
+			TapLockServer.writeLog("getSecretKey: " + e.getMessage());
+		} catch (KeyStoreException e) {
+			TapLockServer.writeLog("getSecretKey: " + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					TapLockServer.writeLog("getSecretKey: " + e.getMessage());
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram. Each power of
+ * two is split into 16 linear buckets, so any percentile is within about 6% of
+ * the true value. Recording is an index calculation and an atomic increment.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// nanoseconds up to 2^40, about 18 minutes, the rest land in the last bucket
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	private final String mName;
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public LatencyHistogram(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		mCounts.incrementAndGet(bucketOf(nanos));
+		mCount.incrementAndGet();
+		mTotal.addAndGet(nanos);
+		long max;
+		while (nanos > (max = mMax.get())) {
+			if (mMax.compareAndSet(max, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * @param start a {@link System#nanoTime()} taken at the start of the measured span
+	 */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS) + subBucket;
+	}
+
+	/**
+	 * @return the highest value that falls in bucket
+	 */
+	private static long highestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = (bucket / SUB_BUCKETS) + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + ((subBucket + 1) * width) - 1;
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return nanoseconds at or below which percentile of the recorded values fall
+	 */
+	public long getPercentile(double percentile) {
+		long count = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			count += counts[i] = mCounts.get(i);
+		if (count == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil((percentile / 100.0) * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(highestValueIn(i), mMax.get());
+		}
+		return mMax.get();
+	}
+
+	@Override
+	public long getCount() {
+		return mCount.get();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		long count = mCount.get();
+		return count == 0 ? 0 : (mTotal.get() / (double) count) / 1000.0;
+	}
+
+	@Override
+	public long getP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(50));
+	}
+
+	@Override
+	public long getP90Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(90));
+	}
+
+	@Override
+	public long getP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(99));
+	}
+
+	@Override
+	public long getP999Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(99.9));
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(mMax.get());
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			mCounts.set(i, 0);
+		mCount.set(0);
+		mTotal.set(0);
+		mMax.set(0);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+
+/**
+ * Keeps whether the screen is locked in memory, so a toggle can be resolved
+ * without asking the screensaver. A {@link Backend} reports changes made
+ * outside the server, and the server reports its own lock and unlock actions.
+ */
+public class LockStateTracker {
+	public static final int STATE_UNKNOWN = 0;
+	public static final int STATE_LOCKED = 1;
+	public static final int STATE_UNLOCKED = 2;
+	private final Backend mBackend;
+	private volatile int mState = STATE_UNKNOWN;
+
+	public interface Backend {
+		/**
+		 * Begin reporting the lock state to tracker, including the current state if it's known.
+		 */
+		void start(LockStateTracker tracker) throws IOException;
+
+		void stop();
+	}
+
+	/**
+	 * A backend that only reports what it's told, for tests and platforms without a monitor.
+	 */
+	public static class ManualBackend implements Backend {
+		private volatile LockStateTracker mTracker = null;
+
+		@Override
+		public void start(LockStateTracker tracker) {
+			mTracker = tracker;
+		}
+
+		@Override
+		public void stop() {
+			mTracker = null;
+		}
+
+		public void setLocked(boolean locked) {
+			LockStateTracker tracker = mTracker;
+			if (tracker != null)
+				tracker.setLocked(locked);
+		}
+	}
+
+	public LockStateTracker(Backend backend) {
+		mBackend = backend;
+	}
+
+	public void start() throws IOException {
+		mBackend.start(this);
+	}
+
+	public void stop() {
+		mBackend.stop();
+		mState = STATE_UNKNOWN;
+	}
+
+	public void setLocked(boolean locked) {
+		int state = locked ? STATE_LOCKED : STATE_UNLOCKED;
+		if (mState != state) {
+			mState = state;
+			TapLockServer.writeLog("lock state: " + (locked ? "locked" : "unlocked"));
+		}
+	}
+
+	public void setUnknown() {
+		mState = STATE_UNKNOWN;
+	}
+
+	public int getState() {
+		return mState;
+	}
+
+	/**
+	 * @return the action that toggles the current state, or null if it isn't known
+	 */
+	public String getToggleAction() {
+		int state = mState;
+		if (state == STATE_LOCKED)
+			return TapLockServer.ACTION_UNLOCK;
+		else if (state == STATE_UNLOCKED)
+			return TapLockServer.ACTION_LOCK;
+		return null;
+	}
+}
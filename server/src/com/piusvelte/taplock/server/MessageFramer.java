@@ -0,0 +1,208 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads and writes protocol messages on one session, keeping a single buffer
+ * for the life of the session. Reads are incremental, so a message split over
+ * several reads, or several messages arriving in one read, are both handled.
+ * <p>
+ * Legacy clients send bare JSON objects, which are delimited by matching the
+ * outer braces. Clients that saw {@link TapLockServer#PROTOCOL_VERSION_FRAMED} or later
+ * in the challenge prefix each message with a 4 byte big-endian length. The
+ * mode is picked from the first byte of the first request, since a length
+ * header can never start with '{'.
+ */
+public class MessageFramer {
+	public static final int MODE_UNKNOWN = 0;
+	public static final int MODE_LEGACY = 1;
+	public static final int MODE_FRAMED = 2;
+	private static final int HEADER_LENGTH = 4;
+	private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private final InputStream mInStream;
+	private final OutputStream mOutStream;
+	private int mMode;
+	private byte[] mBuffer = new byte[1024];
+	// valid, unconsumed bytes are mBuffer[mStart, mEnd)
+	private int mStart = 0;
+	private int mEnd = 0;
+	// legacy scan state, kept so a partial message isn't rescanned
+	private int mScanPos = 0;
+	private int mDepth = 0;
+	private boolean mInString = false;
+	private boolean mEscaped = false;
+	private byte[] mWriteBuffer = new byte[1024];
+
+	public MessageFramer(InputStream inStream, OutputStream outStream) {
+		this(inStream, outStream, MODE_UNKNOWN);
+	}
+
+	public MessageFramer(InputStream inStream, OutputStream outStream, int mode) {
+		mInStream = inStream;
+		mOutStream = outStream;
+		mMode = mode;
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	public void setMode(int mode) {
+		mMode = mode;
+	}
+
+	/**
+	 * @return the next message, or null at end of stream
+	 */
+	public String read() throws IOException {
+		int length = nextMessageLength();
+		while (length == -1) {
+			if (!fill())
+				return null;
+			length = nextMessageLength();
+		}
+		String message;
+		if (mMode == MODE_FRAMED) {
+			message = new String(mBuffer, mStart + HEADER_LENGTH, length - HEADER_LENGTH, UTF_8);
+		} else
+			message = new String(mBuffer, mStart, length, UTF_8);
+		consume(length);
+		return message;
+	}
+
+	/**
+	 * Write a message in the session's mode, in a single write so it isn't
+	 * segmented any more than necessary. Until the client's mode is known,
+	 * messages go out unframed.
+	 */
+	public void write(String message) throws IOException {
+		byte[] payload = message.getBytes(UTF_8);
+		if (mMode == MODE_FRAMED) {
+			int length = payload.length + HEADER_LENGTH;
+			if (mWriteBuffer.length < length)
+				mWriteBuffer = new byte[length];
+			mWriteBuffer[0] = (byte) (payload.length >>> 24);
+			mWriteBuffer[1] = (byte) (payload.length >>> 16);
+			mWriteBuffer[2] = (byte) (payload.length >>> 8);
+			mWriteBuffer[3] = (byte) payload.length;
+			System.arraycopy(payload, 0, mWriteBuffer, HEADER_LENGTH, payload.length);
+			mOutStream.write(mWriteBuffer, 0, length);
+		} else
+			mOutStream.write(payload);
+		mOutStream.flush();
+	}
+
+	/**
+	 * @return the length of the complete message at the head of the buffer,
+	 * including any header, or -1 if more bytes are needed
+	 */
+	private int nextMessageLength() throws IOException {
+		if (mMode == MODE_UNKNOWN) {
+			// skip whitespace between legacy messages
+			while ((mStart < mEnd) && Character.isWhitespace(mBuffer[mStart]))
+				consume(1);
+			if (mStart == mEnd)
+				return -1;
+			mMode = mBuffer[mStart] == '{' ? MODE_LEGACY : MODE_FRAMED;
+		}
+		if (mMode == MODE_FRAMED) {
+			if (mEnd - mStart < HEADER_LENGTH)
+				return -1;
+			int payloadLength = ((mBuffer[mStart] & 0xFF) << 24) | ((mBuffer[mStart + 1] & 0xFF) << 16) | ((mBuffer[mStart + 2] & 0xFF) << 8) | (mBuffer[mStart + 3] & 0xFF);
+			if ((payloadLength < 0) || (payloadLength > MAX_MESSAGE_LENGTH))
+				throw new IOException("invalid frame length: " + payloadLength);
+			int length = payloadLength + HEADER_LENGTH;
+			ensureCapacity(length);
+			return (mEnd - mStart) >= length ? length : -1;
+		} else
+			return scanLegacy();
+	}
+
+	private int scanLegacy() throws IOException {
+		if (mDepth == 0) {
+			while ((mStart < mEnd) && (mBuffer[mStart] != '{')) {
+				if (!Character.isWhitespace(mBuffer[mStart]))
+					throw new IOException("unexpected byte before message: " + mBuffer[mStart]);
+				consume(1);
+			}
+			if (mScanPos < mStart)
+				mScanPos = mStart;
+		}
+		while (mScanPos < mEnd) {
+			byte b = mBuffer[mScanPos++];
+			if (mInString) {
+				if (mEscaped)
+					mEscaped = false;
+				else if (b == '\\')
+					mEscaped = true;
+				else if (b == '"')
+					mInString = false;
+			} else if (b == '"')
+				mInString = true;
+			else if (b == '{')
+				mDepth++;
+			else if ((b == '}') && (--mDepth == 0))
+				return mScanPos - mStart;
+		}
+		if (mScanPos - mStart > MAX_MESSAGE_LENGTH)
+			throw new IOException("message too long");
+		return -1;
+	}
+
+	private void consume(int length) {
+		mStart += length;
+		if (mStart == mEnd) {
+			mStart = 0;
+			mEnd = 0;
+			mScanPos = 0;
+		} else if (mScanPos < mStart)
+			mScanPos = mStart;
+	}
+
+	private void ensureCapacity(int length) {
+		if (mBuffer.length - mStart < length) {
+			if (mBuffer.length < length) {
+				byte[] buffer = new byte[Math.max(length, mBuffer.length * 2)];
+				System.arraycopy(mBuffer, mStart, buffer, 0, mEnd - mStart);
+				mBuffer = buffer;
+			} else
+				System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+			mScanPos -= mStart;
+			mEnd -= mStart;
+			mStart = 0;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (mEnd == mBuffer.length)
+			ensureCapacity(mEnd - mStart + 1);
+		int read = mInStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+		if (read == -1)
+			return false;
+		mEnd += read;
+		return true;
+	}
+}
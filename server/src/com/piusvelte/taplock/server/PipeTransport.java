@@ -0,0 +1,234 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-memory transport. Clients in the same JVM call {@link #connect(String)} and
+ * get the other end of the session the server accepts, so the whole request
+ * pipeline can be driven without any Bluetooth stack.
+ */
+public class PipeTransport implements Transport {
+	private static final int PIPE_SIZE = 4096;
+	private static final PipeSession CLOSED = new PipeSession(null, null, null);
+	private final BlockingQueue<PipeSession> mPending = new LinkedBlockingQueue<PipeSession>();
+	private volatile boolean mClosed = false;
+
+	@Override
+	public void open() throws IOException {
+		// clients may queue up before the server thread gets here
+	}
+
+	@Override
+	public TransportSession accept() throws IOException {
+		if (mClosed)
+			throw new IOException("transport closed");
+		PipeSession session;
+		try {
+			session = mPending.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("accept interrupted");
+		}
+		if (session == CLOSED)
+			throw new IOException("transport closed");
+		return session;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mClosed = true;
+		mPending.offer(CLOSED);
+	}
+
+	@Override
+	public String getName() {
+		return "pipe";
+	}
+
+	/**
+	 * Open a client connection.
+	 * 
+	 * @param address the address the server will see for this client
+	 * @return the client's end of the session
+	 */
+	public TransportSession connect(String address) throws IOException {
+		if (mClosed)
+			throw new IOException("transport closed");
+		Pipe toServer = new Pipe(PIPE_SIZE);
+		Pipe toClient = new Pipe(PIPE_SIZE);
+		mPending.offer(new PipeSession(toServer, toClient, address));
+		return new PipeSession(toClient, toServer, "server");
+	}
+
+	private static class PipeSession implements TransportSession {
+		private final Pipe mIn;
+		private final Pipe mOut;
+		private final String mRemoteAddress;
+
+		PipeSession(Pipe in, Pipe out, String remoteAddress) {
+			mIn = in;
+			mOut = out;
+			mRemoteAddress = remoteAddress;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mIn.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mOut.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mIn.close();
+			mOut.close();
+		}
+	}
+
+	/**
+	 * Bounded byte ring with blocking reads and writes. Unlike the java.io piped
+	 * streams it isn't tied to the threads that first used it.
+	 */
+	private static class Pipe {
+		private final byte[] mBuffer;
+		private int mReadPos = 0;
+		private int mCount = 0;
+		private boolean mClosed = false;
+		private final InputStream mInputStream = new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int read = read(b, 0, 1);
+				return read == -1 ? -1 : (b[0] & 0xFF);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() throws IOException {
+				synchronized (Pipe.this) {
+					return mCount;
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				Pipe.this.close();
+			}
+		};
+		private final OutputStream mOutputStream = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int size) {
+			mBuffer = new byte[size];
+		}
+
+		InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		OutputStream getOutputStream() {
+			return mOutputStream;
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (mCount == 0) {
+				if (mClosed)
+					return -1;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("read interrupted");
+				}
+			}
+			int read = 0;
+			while ((read < len) && (mCount > 0)) {
+				int chunk = Math.min(Math.min(len - read, mCount), mBuffer.length - mReadPos);
+				System.arraycopy(mBuffer, mReadPos, b, off + read, chunk);
+				mReadPos = (mReadPos + chunk) % mBuffer.length;
+				mCount -= chunk;
+				read += chunk;
+			}
+			notifyAll();
+			return read;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (!mClosed && (mCount == mBuffer.length)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("write interrupted");
+					}
+				}
+				if (mClosed)
+					throw new IOException("pipe closed");
+				int writePos = (mReadPos + mCount) % mBuffer.length;
+				int chunk = Math.min(Math.min(len, mBuffer.length - mCount), mBuffer.length - writePos);
+				System.arraycopy(b, off, mBuffer, writePos, chunk);
+				mCount += chunk;
+				off += chunk;
+				len -= chunk;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			mClosed = true;
+			notifyAll();
+		}
+	}
+}
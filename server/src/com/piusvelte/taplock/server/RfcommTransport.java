@@ -0,0 +1,123 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.bluetooth.DiscoveryAgent;
+import javax.bluetooth.LocalDevice;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
+
+/**
+ * Bluetooth RFCOMM transport backed by BlueCove, this is what the Android client connects to.
+ */
+public class RfcommTransport implements Transport {
+	protected static final String sSPD = "TapLock";
+	protected static final UUID sTapLockUUID = new UUID("0000110100001000800000805F9B34FB", false);
+	protected LocalDevice local = null;
+	private volatile StreamConnectionNotifier notifier = null;
+
+	@Override
+	public void open() throws IOException {
+		// retrieve the local Bluetooth device object
+		// setup the server to listen for connection
+		local = LocalDevice.getLocalDevice();
+		local.setDiscoverable(DiscoveryAgent.GIAC);
+		//			String url = "btspp://localhost:" + mRemoteAuthServerUUID.toString() + ";master=false;encrypt=false;authenticate=false;name=" + sSPD;
+		String url = "btspp://localhost:" + sTapLockUUID.toString() + ";name=" + sSPD;
+		notifier = (StreamConnectionNotifier) Connector.open(url);
+	}
+
+	@Override
+	public TransportSession accept() throws IOException {
+		StreamConnectionNotifier n = notifier;
+		if (n == null)
+			throw new IOException("transport closed");
+		return new StreamConnectionSession(n.acceptAndOpen());
+	}
+
+	@Override
+	public void close() throws IOException {
+		StreamConnectionNotifier n = notifier;
+		notifier = null;
+		local = null;
+		if (n != null)
+			n.close();
+	}
+
+	@Override
+	public String getName() {
+		return "rfcomm";
+	}
+
+	/**
+	 * @return the url a client would use to reach this service, or null if not open
+	 */
+	public String getConnectionURL() {
+		StreamConnectionNotifier n = notifier;
+		if ((local != null) && (n != null)) {
+			ServiceRecord record = local.getRecord(n);
+			if (record != null)
+				return record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
+		}
+		return null;
+	}
+
+	protected static class StreamConnectionSession implements TransportSession {
+		private final StreamConnection mConnection;
+		private String mRemoteAddress = null;
+
+		public StreamConnectionSession(StreamConnection connection) {
+			mConnection = connection;
+			try {
+				mRemoteAddress = RemoteDevice.getRemoteDevice(connection).getBluetoothAddress();
+			} catch (IOException e) {
+				TapLockServer.writeLog("getRemoteDevice: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mConnection.openInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mConnection.openOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mConnection.close();
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the server, registered with the
+ * platform MBean server under {@link #DOMAIN}:type=TapLockServer so they can be
+ * watched with jconsole or any other JMX client. Recording is lock-free.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	public static final String DOMAIN = "com.piusvelte.taplock.server";
+	private final AtomicLong mSessionsAccepted = new AtomicLong();
+	private final AtomicLong mSessionsActive = new AtomicLong();
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mAuthFailures = new AtomicLong();
+	private final AtomicLong mReplayedChallenges = new AtomicLong();
+	private final AtomicLong mTicketsRedeemed = new AtomicLong();
+	private final AtomicLong mTicketsExpired = new AtomicLong();
+	private final AtomicLong mParseErrors = new AtomicLong();
+	private final AtomicLong mInvalidRequests = new AtomicLong();
+	private final AtomicLong mCommandFailures = new AtomicLong();
+	private final AtomicLong mCommandTimeouts = new AtomicLong();
+	private final AtomicLong mCredentialProviderFailures = new AtomicLong();
+	// succeeded and failed for each of lock, unlock, toggle and passphrase
+	private final AtomicLong[] mActionOutcomes = new AtomicLong[8];
+	private final LatencyHistogram mAcceptToChallenge = new LatencyHistogram("acceptToChallenge");
+	private final LatencyHistogram mChallengeToRequest = new LatencyHistogram("challengeToRequest");
+	private final LatencyHistogram mHmacVerify = new LatencyHistogram("hmacVerify");
+	private final LatencyHistogram mCommandExec = new LatencyHistogram("commandExec");
+	private final LatencyHistogram mCredentialProvider = new LatencyHistogram("credentialProvider");
+	private final LatencyHistogram[] mHistograms = new LatencyHistogram[] {mAcceptToChallenge, mChallengeToRequest, mHmacVerify, mCommandExec, mCredentialProvider};
+
+	public ServerMetrics() {
+		for (int i = 0; i < mActionOutcomes.length; i++)
+			mActionOutcomes[i] = new AtomicLong();
+	}
+
+	/**
+	 * Register this and each histogram with the platform MBean server.
+	 */
+	public void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, new ObjectName(DOMAIN + ":type=TapLockServer"));
+			for (LatencyHistogram histogram : mHistograms)
+				server.registerMBean(histogram, new ObjectName(DOMAIN + ":type=TapLockServer,latency=" + histogram.getName()));
+		} catch (MalformedObjectNameException e) {
+			TapLockServer.writeLog("metrics register: " + e.getMessage());
+		} catch (InstanceAlreadyExistsException e) {
+			TapLockServer.writeLog("metrics register: " + e.getMessage());
+		} catch (MBeanRegistrationException e) {
+			TapLockServer.writeLog("metrics register: " + e.getMessage());
+		} catch (NotCompliantMBeanException e) {
+			TapLockServer.writeLog("metrics register: " + e.getMessage());
+		}
+	}
+
+	public void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(new ObjectName(DOMAIN + ":type=TapLockServer"));
+			for (LatencyHistogram histogram : mHistograms)
+				server.unregisterMBean(new ObjectName(DOMAIN + ":type=TapLockServer,latency=" + histogram.getName()));
+		} catch (MalformedObjectNameException e) {
+			TapLockServer.writeLog("metrics unregister: " + e.getMessage());
+		} catch (InstanceNotFoundException e) {
+			TapLockServer.writeLog("metrics unregister: " + e.getMessage());
+		} catch (MBeanRegistrationException e) {
+			TapLockServer.writeLog("metrics unregister: " + e.getMessage());
+		}
+	}
+
+	public void sessionAccepted() {
+		mSessionsAccepted.incrementAndGet();
+		mSessionsActive.incrementAndGet();
+	}
+
+	public void sessionFinished() {
+		mSessionsActive.decrementAndGet();
+	}
+
+	public void request() {
+		mRequests.incrementAndGet();
+	}
+
+	public void authFailure() {
+		mAuthFailures.incrementAndGet();
+	}
+
+	public void replayedChallenge() {
+		mReplayedChallenges.incrementAndGet();
+	}
+
+	public void ticketRedeemed() {
+		mTicketsRedeemed.incrementAndGet();
+	}
+
+	public void ticketExpired() {
+		mTicketsExpired.incrementAndGet();
+	}
+
+	public void parseError() {
+		mParseErrors.incrementAndGet();
+	}
+
+	public void invalidRequest() {
+		mInvalidRequests.incrementAndGet();
+	}
+
+	public void commandFailure() {
+		mCommandFailures.incrementAndGet();
+	}
+
+	public void commandTimeout() {
+		mCommandTimeouts.incrementAndGet();
+	}
+
+	public void credentialProviderFailure() {
+		mCredentialProviderFailures.incrementAndGet();
+	}
+
+	/**
+	 * Count the outcome of one of the TapLockServer.ACTION_* requests, others are ignored.
+	 */
+	public void actionOutcome(String action, boolean succeeded) {
+		int index;
+		if (TapLockServer.ACTION_LOCK.equals(action))
+			index = 0;
+		else if (TapLockServer.ACTION_UNLOCK.equals(action))
+			index = 2;
+		else if (TapLockServer.ACTION_TOGGLE.equals(action))
+			index = 4;
+		else if (TapLockServer.ACTION_PASSPHRASE.equals(action))
+			index = 6;
+		else
+			return;
+		mActionOutcomes[succeeded ? index : index + 1].incrementAndGet();
+	}
+
+	public LatencyHistogram getAcceptToChallenge() {
+		return mAcceptToChallenge;
+	}
+
+	public LatencyHistogram getChallengeToRequest() {
+		return mChallengeToRequest;
+	}
+
+	public LatencyHistogram getHmacVerify() {
+		return mHmacVerify;
+	}
+
+	public LatencyHistogram getCommandExec() {
+		return mCommandExec;
+	}
+
+	public LatencyHistogram getCredentialProvider() {
+		return mCredentialProvider;
+	}
+
+	@Override
+	public long getSessionsAccepted() {
+		return mSessionsAccepted.get();
+	}
+
+	@Override
+	public long getSessionsActive() {
+		return mSessionsActive.get();
+	}
+
+	@Override
+	public long getRequests() {
+		return mRequests.get();
+	}
+
+	@Override
+	public long getAuthFailures() {
+		return mAuthFailures.get();
+	}
+
+	@Override
+	public long getReplayedChallenges() {
+		return mReplayedChallenges.get();
+	}
+
+	@Override
+	public long getTicketsRedeemed() {
+		return mTicketsRedeemed.get();
+	}
+
+	@Override
+	public long getTicketsExpired() {
+		return mTicketsExpired.get();
+	}
+
+	@Override
+	public long getParseErrors() {
+		return mParseErrors.get();
+	}
+
+	@Override
+	public long getInvalidRequests() {
+		return mInvalidRequests.get();
+	}
+
+	@Override
+	public long getCommandFailures() {
+		return mCommandFailures.get();
+	}
+
+	@Override
+	public long getCommandTimeouts() {
+		return mCommandTimeouts.get();
+	}
+
+	@Override
+	public long getCredentialProviderFailures() {
+		return mCredentialProviderFailures.get();
+	}
+
+	@Override
+	public long getLockSucceeded() {
+		return mActionOutcomes[0].get();
+	}
+
+	@Override
+	public long getLockFailed() {
+		return mActionOutcomes[1].get();
+	}
+
+	@Override
+	public long getUnlockSucceeded() {
+		return mActionOutcomes[2].get();
+	}
+
+	@Override
+	public long getUnlockFailed() {
+		return mActionOutcomes[3].get();
+	}
+
+	@Override
+	public long getToggleSucceeded() {
+		return mActionOutcomes[4].get();
+	}
+
+	@Override
+	public long getToggleFailed() {
+		return mActionOutcomes[5].get();
+	}
+
+	@Override
+	public long getPassphraseSucceeded() {
+		return mActionOutcomes[6].get();
+	}
+
+	@Override
+	public long getPassphraseFailed() {
+		return mActionOutcomes[7].get();
+	}
+
+	@Override
+	public void reset() {
+		// active sessions is a gauge, so it's left alone
+		mSessionsAccepted.set(0);
+		mRequests.set(0);
+		mAuthFailures.set(0);
+		mReplayedChallenges.set(0);
+		mTicketsRedeemed.set(0);
+		mTicketsExpired.set(0);
+		mParseErrors.set(0);
+		mInvalidRequests.set(0);
+		mCommandFailures.set(0);
+		mCommandTimeouts.set(0);
+		mCredentialProviderFailures.set(0);
+		for (AtomicLong outcome : mActionOutcomes)
+			outcome.set(0);
+		for (LatencyHistogram histogram : mHistograms)
+			histogram.reset();
+	}
+}
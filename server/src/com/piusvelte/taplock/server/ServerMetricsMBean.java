@@ -0,0 +1,64 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+public interface ServerMetricsMBean {
+	long getSessionsAccepted();
+
+	long getSessionsActive();
+
+	long getRequests();
+
+	long getAuthFailures();
+
+	long getReplayedChallenges();
+
+	long getTicketsRedeemed();
+
+	long getTicketsExpired();
+
+	long getParseErrors();
+
+	long getInvalidRequests();
+
+	long getCommandFailures();
+
+	long getCommandTimeouts();
+
+	long getCredentialProviderFailures();
+
+	long getLockSucceeded();
+
+	long getLockFailed();
+
+	long getUnlockSucceeded();
+
+	long getUnlockFailed();
+
+	long getToggleSucceeded();
+
+	long getToggleFailed();
+
+	long getPassphraseSucceeded();
+
+	long getPassphraseFailed();
+
+	void reset();
+}
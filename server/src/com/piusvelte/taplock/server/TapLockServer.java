@@ -40,7 +40,6 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
@@ -48,16 +47,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.util.Properties;
-import java.util.logging.FileHandler;
-import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -81,17 +75,40 @@ public class TapLockServer implements Daemon {
 	public static final String PARAM_PASSPHRASE = "passphrase";
 	public static final String PARAM_CHALLENGE = "challenge";
 	public static final String PARAM_ERROR = "error";
+	public static final String PARAM_VERSION = "version";
+	public static final String PARAM_TICKET = "ticket";
+	public static final String PARAM_IDLE_TIMEOUT = "idletimeout";
+	public static final String ERROR_TICKET_EXPIRED = "ticket expired";
+	public static final int PROTOCOL_VERSION_LEGACY = 1;
+	public static final int PROTOCOL_VERSION_FRAMED = 2;
+	public static final int PROTOCOL_VERSION_HMAC = 3;
+	public static final int PROTOCOL_VERSION_TICKET = 4;
+	public static final int PROTOCOL_VERSION = PROTOCOL_VERSION_TICKET;
 
 	private static final String TAP_LOCK = "taplock";
 	protected static final String sPassphraseKey = "passphrase";
 	protected static final String sDisplaySystemTrayKey = "displaysystemtray";
 	protected static final String sDebuggingKey = "debugging";
 	protected static final String sPasswordKey = "password";
-	protected static String sPassphrase = "TapLock";
+	protected static final String sMaxSessionsKey = "maxsessions";
+	protected static final String sTransportKey = "transport";
+	protected static final String sCommandTimeoutKey = "commandtimeout";
+	protected static final String sTicketTimeoutKey = "tickettimeout";
+	protected static final String sIdleTimeoutKey = "idletimeout";
+	protected static volatile String sPassphrase = "TapLock";
 	protected static boolean sDisplaySystemTray = true;
-	protected static boolean sDebugging = false;
-	protected static FileHandler sLogFileHandler;
-	protected static Logger sLogger;
+	protected static volatile boolean sDebugging = false;
+	protected static int sMaxSessions = 8;
+	protected static String sTransport = "rfcomm";
+	protected static int sCommandTimeout = 10000;
+	protected static int sTicketTimeout = 60000;
+	// a session waiting this long for a request is closed, releasing its permit,
+	// the default outlasts the longest time the client keeps a connection
+	protected static int sIdleTimeout = 130000;
+	protected static final AsyncLogger sLogger = new AsyncLogger();
+	protected static final ServerMetrics sMetrics = new ServerMetrics();
+	protected static ConfigService sConfig = null;
+	protected static volatile LockStateTracker sLockState = null;
 
 	private static ConnectionThread sConnectionThread = null;
 	private static int[] sConnectionThreadLock = new int[0];
@@ -102,6 +119,7 @@ public class TapLockServer implements Daemon {
 	protected static final int S_PASSBUF = 32;
 	protected static final int S_CREDBUF = S_USERBUF + S_PASSBUF;
 	protected static final String CREDENTIAL_PROVIDER_SUCCESS = "0";
+	protected static final CredentialProviderClient sCredentialProvider = new CredentialProviderClient(S_LOCALHOST, SERVER_PORT);
 
 	protected static final int OS_NIX = 0;
 	protected static final int OS_WIN = 1;
@@ -111,6 +129,7 @@ public class TapLockServer implements Daemon {
 	protected static final String sProperties;
 	protected static final String sLog;
 	private static final String sKeystore;
+	protected static final KeyMaterialCache sKeyCache;
 
 	static {
 		OS = System.getProperty("os.name").startsWith("Windows") ? OS_WIN : OS_NIX;
@@ -133,6 +152,7 @@ public class TapLockServer implements Daemon {
 		sProperties = APP_PATH + "taplock.properties";
 		sLog = APP_PATH + "taplock.log";
 		sKeystore = APP_PATH + "taplock.bks";
+		sKeyCache = new KeyMaterialCache(sKeystore, TAP_LOCK);
 	}
 
 	public static void main(String[] args) {
@@ -155,59 +175,49 @@ public class TapLockServer implements Daemon {
 		if (OS == OS_WIN)
 			Security.addProvider(new BouncyCastleProvider());
 		System.out.println("APP_PATH: " + APP_PATH);
-		try {
-			sLogFileHandler = new FileHandler(sLog);
-		} catch (SecurityException e) {
-			writeLog("sLogFileHandler init: " + e.getMessage());
-		} catch (IOException e) {
-			writeLog("sLogFileHandler init: " + e.getMessage());
-		}
+		sLogger.setFile(new File(sLog));
+		writeLog("service starting");
+		sMetrics.register();
+
+		sConfig = new ConfigService(new File(sProperties));
+		sConfig.start();
+		// fill in any missing settings with the defaults
+		sPassphrase = sConfig.get(sPassphraseKey, sPassphrase);
+		sConfig.set(sPassphraseKey, sPassphrase);
+		sDisplaySystemTray = sConfig.getBoolean(sDisplaySystemTrayKey, sDisplaySystemTray);
+		sConfig.set(sDisplaySystemTrayKey, Boolean.toString(sDisplaySystemTray));
+		sDebugging = sConfig.getBoolean(sDebuggingKey, sDebugging);
+		sConfig.set(sDebuggingKey, Boolean.toString(sDebugging));
+		sMaxSessions = sConfig.getInt(sMaxSessionsKey, sMaxSessions);
+		sConfig.set(sMaxSessionsKey, Integer.toString(sMaxSessions));
+		sTransport = sConfig.get(sTransportKey, sTransport).trim();
+		sConfig.set(sTransportKey, sTransport);
+		sCommandTimeout = sConfig.getInt(sCommandTimeoutKey, sCommandTimeout);
+		sConfig.set(sCommandTimeoutKey, Integer.toString(sCommandTimeout));
+		sTicketTimeout = sConfig.getInt(sTicketTimeoutKey, sTicketTimeout);
+		sConfig.set(sTicketTimeoutKey, Integer.toString(sTicketTimeout));
+		sIdleTimeout = sConfig.getInt(sIdleTimeoutKey, sIdleTimeout);
+		sConfig.set(sIdleTimeoutKey, Integer.toString(sIdleTimeout));
+		sConfig.addListener(new ConfigService.Listener() {
+			@Override
+			public void onConfigReloaded(ConfigService config) {
+				// pick up hand edits, the rest take effect on restart
+				String passphrase = config.get(sPassphraseKey, sPassphrase);
+				// re-key as if it were set by a client, so nothing stays keyed by the old one
+				if (!passphrase.equals(sPassphrase))
+					setPassphrase(passphrase);
+				sDebugging = config.getBoolean(sDebuggingKey, sDebugging);
+			}
+		});
 
-		File propertiesFile = new File(sProperties);
-		if (!propertiesFile.exists()) {
+		if (OS == OS_NIX) {
+			LockStateTracker lockState = new LockStateTracker(new DbusMonitorBackend());
 			try {
-				propertiesFile.createNewFile();
+				lockState.start();
+				sLockState = lockState;
 			} catch (IOException e) {
-				writeLog("propertiesFile.createNewFile: " + e.getMessage());
-			}
-		}
-
-		Properties prop = new Properties();
-
-		try {
-			prop.load(new FileInputStream(sProperties));
-			if (prop.isEmpty()) {
-				prop.setProperty(sPassphraseKey, sPassphrase);
-				prop.setProperty(sDisplaySystemTrayKey, Boolean.toString(sDisplaySystemTray));
-				prop.setProperty(sDebuggingKey, Boolean.toString(sDebugging));
-				prop.store(new FileOutputStream(sProperties), null);
-			} else {
-				if (prop.containsKey(sPassphraseKey))
-					sPassphrase = prop.getProperty(sPassphraseKey);
-				else
-					prop.setProperty(sPassphraseKey, sPassphrase);
-				if (prop.containsKey(sDisplaySystemTrayKey))
-					sDisplaySystemTray = Boolean.parseBoolean(prop.getProperty(sDisplaySystemTrayKey));
-				else
-					prop.setProperty(sDisplaySystemTrayKey, Boolean.toString(sDisplaySystemTray));
-				if (prop.containsKey(sDebuggingKey))
-					sDebugging = Boolean.parseBoolean(prop.getProperty(sDebuggingKey));
-				else
-					prop.setProperty(sDebuggingKey, Boolean.toString(sDebugging));
+				writeLog("lock state: " + e.getMessage());
 			}
-		} catch (FileNotFoundException e) {
-			writeLog("prop load: " + e.getMessage());
-		} catch (IOException e) {
-			writeLog("prop load: " + e.getMessage());
-		}
-
-		if (sLogFileHandler != null) {
-			sLogger = Logger.getLogger("TapLock");
-			sLogger.setUseParentHandlers(false);
-			sLogger.addHandler(sLogFileHandler);
-			SimpleFormatter sf = new SimpleFormatter();
-			sLogFileHandler.setFormatter(sf);
-			writeLog("service starting");
 		}
 
 		if (sDisplaySystemTray && SystemTray.isSupported()) {
@@ -239,18 +249,8 @@ public class TapLockServer implements Daemon {
 						int option = JOptionPane.showOptionDialog(null, panel, "Tap Lock", JOptionPane.NO_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
 						if (option == 0) {
 							String password = encryptString(new String(passField.getPassword()));
-							if (password != null) {
-								Properties prop = new Properties();
-								try {
-									prop.load(new FileInputStream(sProperties));
-									prop.setProperty(sPasswordKey, password);
-									prop.store(new FileOutputStream(sProperties), null);
-								} catch (FileNotFoundException e1) {
-									writeLog("prop load: " + e1.getMessage());
-								} catch (IOException e1) {
-									writeLog("prop load: " + e1.getMessage());
-								}
-							}
+							if (password != null)
+								sConfig.set(sPasswordKey, password);
 						}
 					}
 				});
@@ -293,22 +293,21 @@ public class TapLockServer implements Daemon {
 			});
 		}
 		synchronized (sConnectionThreadLock) {
-			(sConnectionThread = new ConnectionThread()).start();
+			(sConnectionThread = new ConnectionThread(createTransport(sTransport), sMaxSessions)).start();
 		}
 	}
 
+	protected static Transport createTransport(String name) {
+		if ("emulator".equals(name))
+			return new EmulatorTransport();
+		else if (!"rfcomm".equals(name))
+			writeLog("unknown transport: " + name + ", using rfcomm");
+		return new RfcommTransport();
+	}
+
 	protected static void setTrayIconDisplay(boolean display) {
 		sDisplaySystemTray = display;
-		Properties prop = new Properties();
-		try {
-			prop.load(new FileInputStream(sProperties));
-			prop.setProperty(sDisplaySystemTrayKey, Boolean.toString(sDisplaySystemTray));
-			prop.store(new FileOutputStream(sProperties), null);
-		} catch (FileNotFoundException e) {
-			writeLog("prop load: " + e.getMessage());
-		} catch (IOException e) {
-			writeLog("prop load: " + e.getMessage());
-		}
+		sConfig.set(sDisplaySystemTrayKey, Boolean.toString(sDisplaySystemTray));
 	}
 
 	protected static void setDebugging(boolean debugging) {
@@ -317,37 +316,21 @@ public class TapLockServer implements Daemon {
 		sDebugging = debugging;
 		if (sDebugging)
 			writeLog("debugging started");
-		Properties prop = new Properties();
-		try {
-			prop.load(new FileInputStream(sProperties));
-			prop.setProperty(sDebuggingKey, Boolean.toString(sDebugging));
-			prop.store(new FileOutputStream(sProperties), null);
-		} catch (FileNotFoundException e) {
-			writeLog("prop load: " + e.getMessage());
-		} catch (IOException e) {
-			writeLog("prop load: " + e.getMessage());
-		}
+		sConfig.set(sDebuggingKey, Boolean.toString(sDebugging));
 	}
 
-	protected static void setPassphrase(String passphrase) {
-		Properties prop = new Properties();
-		try {
-			prop.load(new FileInputStream(sProperties));
-			prop.setProperty(sPassphraseKey, passphrase);
-			prop.store(new FileOutputStream(sProperties), null);
-		} catch (FileNotFoundException e) {
-			writeLog("prop load: " + e.getMessage());
-		} catch (IOException e) {
-			writeLog("prop load: " + e.getMessage());
-		}
+	protected static synchronized void setPassphrase(String passphrase) {
+		if (sConfig != null)
+			sConfig.set(sPassphraseKey, passphrase);
 		if (OS == OS_WIN) {
 			KeyStore ks = getKeyStore();
 			if (ks != null) {
 				SecretKey sk = getSecretKey(ks);
-				if (ks != null) {
+				if (sk != null) {
 					try {
-						ks.setKeyEntry(TAP_LOCK, sk, sPassphrase.toCharArray(), null);
-						ks.store(new FileOutputStream(sKeystore), sPassphrase.toCharArray());
+						// re-key the store with the new passphrase
+						ks.setKeyEntry(TAP_LOCK, sk, passphrase.toCharArray(), null);
+						ks.store(new FileOutputStream(sKeystore), passphrase.toCharArray());
 					} catch (KeyStoreException e) {
 						writeLog("change key password: " + e.getMessage());
 					} catch (NoSuchAlgorithmException e) {
@@ -361,11 +344,20 @@ public class TapLockServer implements Daemon {
 					}
 				}
 			}
+			sKeyCache.invalidate();
 		}
+		HmacVerifier.invalidate();
 		sPassphrase = passphrase;
 	}
 
 	protected static String getToggleAction() {
+		LockStateTracker lockState = sLockState;
+		if (lockState != null) {
+			String action = lockState.getToggleAction();
+			if (action != null)
+				return action;
+		}
+		// the state isn't being tracked, ask the screensaver
 		String command = null;
 		if (OS == OS_NIX) {
 			command = "gnome-screensaver-command -q";
@@ -396,11 +388,43 @@ public class TapLockServer implements Daemon {
 		return ACTION_LOCK;
 	}
 
+	/**
+	 * Record a lock or unlock the server carried out itself.
+	 */
+	protected static void lockStateChanged(String action) {
+		LockStateTracker lockState = sLockState;
+		if (lockState != null) {
+			if (ACTION_LOCK.equals(action))
+				lockState.setLocked(true);
+			else if (ACTION_UNLOCK.equals(action))
+				lockState.setLocked(false);
+		}
+	}
+
+	/**
+	 * Queue a message for the log, the caller never waits on I/O.
+	 */
 	protected static void writeLog(String message) {
-		if (sDebugging && (sLogFileHandler != null) && (sLogger != null)) {
-			sLogger.info(message);
-		} else
-			System.out.println(message);
+		sLogger.log(message);
+	}
+
+	/**
+	 * Queue a message only while debugging. Each "{}" in format is filled in by
+	 * the log writer, so a disabled call costs a volatile read.
+	 */
+	protected static void debugLog(String message) {
+		if (sDebugging)
+			sLogger.log(message);
+	}
+
+	protected static void debugLog(String format, Object arg) {
+		if (sDebugging)
+			sLogger.log(format, arg);
+	}
+
+	protected static void debugLog(String format, Object arg0, Object arg1) {
+		if (sDebugging)
+			sLogger.log(format, arg0, arg1);
 	}
 
 	protected static String getHashString(String str) throws NoSuchAlgorithmException, UnsupportedEncodingException {
@@ -450,10 +474,13 @@ public class TapLockServer implements Daemon {
 				sConnectionThread = null;
 			}
 		}
-		if (sLogger != null)
-			sLogger = null;
-		if (sLogFileHandler != null)
-			sLogFileHandler.close();
+		if (sLockState != null)
+			sLockState.stop();
+		sCredentialProvider.close();
+		if (sConfig != null)
+			sConfig.stop();
+		sMetrics.unregister();
+		sLogger.stop();
 		System.exit(0);
 	}
 
@@ -498,12 +525,45 @@ public class TapLockServer implements Daemon {
 		return sk;
 	}
 
+	/**
+	 * @return true only if there's certainly no stored key, so a new one won't replace it
+	 */
+	private static boolean isSecretKeyMissing(KeyStore ks) {
+		File keystore = new File(sKeystore);
+		if (!keystore.exists())
+			return true;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(keystore);
+			ks.load(in, sPassphrase.toCharArray());
+			return !ks.containsAlias(TAP_LOCK);
+		} catch (NoSuchAlgorithmException e) {
+			writeLog("isSecretKeyMissing: " + e.getMessage());
+		} catch (CertificateException e) {
+			writeLog("isSecretKeyMissing: " + e.getMessage());
+		} catch (IOException e) {
+			writeLog("isSecretKeyMissing: " + e.getMessage());
+		} catch (KeyStoreException e) {
+			writeLog("isSecretKeyMissing: " + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					writeLog("isSecretKeyMissing: " + e.getMessage());
+				}
+			}
+		}
+		return false;
+	}
+
 	protected static String encryptString(String decStr) {
 		String encStr = null;
-		KeyStore ks = getKeyStore();
-		if (ks != null) {
-			SecretKey sk = getSecretKey(ks);
-			if (sk == null) {
+		Cipher cipher = sKeyCache.getCipher(Cipher.ENCRYPT_MODE, sPassphrase);
+		if (cipher == null) {
+			KeyStore ks = getKeyStore();
+			// a stored key that just couldn't be used is kept, the stored passwords need it
+			if ((ks != null) && isSecretKeyMissing(ks)) {
 				// create key
 				KeyGenerator kgen = null;
 				try {
@@ -514,18 +574,20 @@ public class TapLockServer implements Daemon {
 				if (kgen != null) {
 					int keyLength;
 					try {
-						keyLength = Cipher.getMaxAllowedKeyLength("AES");
+						keyLength = Math.min(Cipher.getMaxAllowedKeyLength("AES"), 256);
 					} catch (NoSuchAlgorithmException e) {
 						keyLength = 128;
 						writeLog("encryptString: " + e.getMessage());
 					}
 					kgen.init(keyLength);
-					sk = kgen.generateKey();
+					SecretKey sk = kgen.generateKey();
 					// create a keystore
 					try {
 						ks.load(null, sPassphrase.toCharArray());
 						ks.setKeyEntry(TAP_LOCK, sk, sPassphrase.toCharArray(), null);
 						ks.store(new FileOutputStream(sKeystore), sPassphrase.toCharArray());
+						sKeyCache.setSecretKey(sk);
+						cipher = sKeyCache.getCipher(Cipher.ENCRYPT_MODE, sPassphrase);
 					} catch (NoSuchAlgorithmException e) {
 						writeLog("encryptString: " + e.getMessage());
 					} catch (CertificateException e) {
@@ -536,26 +598,18 @@ public class TapLockServer implements Daemon {
 						writeLog("encryptString: " + e.getMessage());
 					}
 				}
-			}
-			if ((sk != null) && (decStr != null)) {
-				Cipher cipher;
-				try {
-					cipher = Cipher.getInstance("AES");
-					cipher.init(Cipher.ENCRYPT_MODE, sk);
-					return new String(Base64.encodeBase64(cipher.doFinal(decStr.getBytes("UTF-8"))));
-				} catch (NoSuchAlgorithmException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (NoSuchPaddingException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (InvalidKeyException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (IllegalBlockSizeException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (BadPaddingException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (UnsupportedEncodingException e) {
-					writeLog("encryptString: " + e.getMessage());
-				}
+			} else
+				writeLog("encryptString: the stored key couldn't be used");
+		}
+		if ((cipher != null) && (decStr != null)) {
+			try {
+				return new String(Base64.encodeBase64(cipher.doFinal(decStr.getBytes("UTF-8"))));
+			} catch (IllegalBlockSizeException e) {
+				writeLog("encryptString: " + e.getMessage());
+			} catch (BadPaddingException e) {
+				writeLog("encryptString: " + e.getMessage());
+			} catch (UnsupportedEncodingException e) {
+				writeLog("encryptString: " + e.getMessage());
 			}
 		}
 		return encStr;
@@ -563,28 +617,16 @@ public class TapLockServer implements Daemon {
 
 	protected static String decryptString(String encStr) {
 		String decStr = null;
-		KeyStore ks = getKeyStore();
-		if (ks != null) {
-			SecretKey sk = getSecretKey(ks);
-			if (sk != null) {
-				Cipher cipher;
-				try {
-					cipher = Cipher.getInstance("AES");
-					cipher.init(Cipher.DECRYPT_MODE, sk);
-					return new String(cipher.doFinal(Base64.decodeBase64(encStr)), "UTF-8");
-				} catch (NoSuchAlgorithmException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (NoSuchPaddingException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (InvalidKeyException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (UnsupportedEncodingException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (IllegalBlockSizeException e) {
-					writeLog("encryptString: " + e.getMessage());
-				} catch (BadPaddingException e) {
-					writeLog("encryptString: " + e.getMessage());
-				}
+		Cipher cipher = sKeyCache.getCipher(Cipher.DECRYPT_MODE, sPassphrase);
+		if (cipher != null) {
+			try {
+				return new String(cipher.doFinal(Base64.decodeBase64(encStr)), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				writeLog("decryptString: " + e.getMessage());
+			} catch (IllegalBlockSizeException e) {
+				writeLog("decryptString: " + e.getMessage());
+			} catch (BadPaddingException e) {
+				writeLog("decryptString: " + e.getMessage());
 			}
 		}
 		return decStr;
@@ -0,0 +1,123 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the next challenge sent to each device, so a client can answer it
+ * on its next connection straight away instead of waiting for a new challenge.
+ * Tickets are bound to the device they were sent to, expire, and are only good
+ * once. The least recently seen devices, and each device's oldest tickets, are
+ * forgotten past the bounds.
+ */
+public class TicketCache {
+	private static final int DEFAULT_MAX_DEVICES = 64;
+	private static final int DEFAULT_TICKETS_PER_DEVICE = 4;
+	private final int mTicketsPerDevice;
+	private final long mTimeout;
+	private final LinkedHashMap<String, ArrayDeque<Ticket>> mDevices;
+
+	private static class Ticket {
+		final String mChallenge;
+		final long mExpiresAt;
+
+		Ticket(String challenge, long expiresAt) {
+			mChallenge = challenge;
+			mExpiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * @param timeout milliseconds a ticket stays good for, 0 to not issue tickets
+	 */
+	public TicketCache(long timeout) {
+		this(DEFAULT_MAX_DEVICES, DEFAULT_TICKETS_PER_DEVICE, timeout);
+	}
+
+	public TicketCache(final int maxDevices, int ticketsPerDevice, long timeout) {
+		mTicketsPerDevice = Math.max(1, ticketsPerDevice);
+		mTimeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		mDevices = new LinkedHashMap<String, ArrayDeque<Ticket>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<Ticket>> eldest) {
+				return size() > maxDevices;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return mTimeout > 0;
+	}
+
+	/**
+	 * Remember a challenge that was sent to a device.
+	 */
+	public synchronized void put(String address, String challenge) {
+		if ((address == null) || !isEnabled())
+			return;
+		ArrayDeque<Ticket> tickets = mDevices.get(address);
+		if (tickets == null) {
+			tickets = new ArrayDeque<Ticket>(mTicketsPerDevice);
+			mDevices.put(address, tickets);
+		}
+		if (tickets.size() == mTicketsPerDevice)
+			tickets.removeFirst();
+		tickets.addLast(new Ticket(challenge, System.nanoTime() + mTimeout));
+	}
+
+	/**
+	 * Take a ticket, so it can't be used again.
+	 * 
+	 * @return true if the ticket was sent to this device and hasn't expired
+	 */
+	public synchronized boolean redeem(String address, String challenge) {
+		if ((address == null) || (challenge == null))
+			return false;
+		ArrayDeque<Ticket> tickets = mDevices.get(address);
+		if (tickets == null)
+			return false;
+		long now = System.nanoTime();
+		boolean redeemed = false;
+		Iterator<Ticket> iterator = tickets.iterator();
+		while (iterator.hasNext()) {
+			Ticket ticket = iterator.next();
+			if (ticket.mExpiresAt - now <= 0)
+				iterator.remove();
+			else if (ticket.mChallenge.equals(challenge)) {
+				iterator.remove();
+				redeemed = true;
+			}
+		}
+		if (tickets.isEmpty())
+			mDevices.remove(address);
+		return redeemed;
+	}
+
+	public synchronized void clear() {
+		mDevices.clear();
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import java.io.IOException;
+
+/**
+ * Source of client sessions for the {@link ConnectionThread}. The thread opens
+ * the transport once, then loops on {@link #accept()} until it's closed.
+ */
+public interface Transport {
+
+	/**
+	 * Prepare the transport to accept clients, e.g. register the service record.
+	 */
+	void open() throws IOException;
+
+	/**
+	 * Block until a client connects.
+	 * 
+	 * @return the new session, never null
+	 * @throws IOException if the transport is closed or the accept failed
+	 */
+	TransportSession accept() throws IOException;
+
+	/**
+	 * Stop accepting clients and unblock any pending {@link #accept()}.
+	 */
+	void close() throws IOException;
+
+	String getName();
+}
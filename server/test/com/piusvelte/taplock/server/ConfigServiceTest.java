@@ -0,0 +1,125 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConfigServiceTest {
+	private File mDir;
+	private File mFile;
+	private ConfigService mConfig;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("config", "");
+		mDir.delete();
+		mDir.mkdir();
+		mFile = new File(mDir, "taplock.properties");
+		mConfig = new ConfigService(mFile);
+	}
+
+	@After
+	public void tearDown() {
+		mConfig.stop();
+		for (File file : mDir.listFiles())
+			file.delete();
+		mDir.delete();
+	}
+
+	@Test
+	public void setIsReadBackAndWritten() throws Exception {
+		store("kept", "1");
+		mConfig.start();
+		mConfig.set("key", "value");
+		assertEquals("value", mConfig.get("key"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!"value".equals(load().getProperty("key")) && (System.currentTimeMillis() < deadline))
+			Thread.sleep(50);
+		Properties prop = load();
+		assertEquals("value", prop.getProperty("key"));
+		assertEquals("1", prop.getProperty("kept"));
+	}
+
+	@Test
+	public void stopWritesAPendingSet() throws Exception {
+		mConfig.start();
+		mConfig.set("key", "value");
+		mConfig.stop();
+		assertEquals("value", load().getProperty("key"));
+	}
+
+	@Test
+	public void handEditIsReloaded() throws Exception {
+		store("key", "old");
+		mConfig.start();
+		final CountDownLatch reloaded = new CountDownLatch(1);
+		mConfig.addListener(new ConfigService.Listener() {
+
+			@Override
+			public void onConfigReloaded(ConfigService config) {
+				// the file may be seen part way through being written, wait for the edit
+				if ("new".equals(config.get("key")))
+					reloaded.countDown();
+			}
+		});
+		store("key", "new");
+		assertTrue(reloaded.await(30, TimeUnit.SECONDS));
+		assertEquals("new", mConfig.get("key"));
+	}
+
+	private void store(String key, String value) throws IOException {
+		Properties prop = new Properties();
+		prop.setProperty(key, value);
+		OutputStream out = new FileOutputStream(mFile);
+		try {
+			prop.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	private Properties load() throws IOException {
+		Properties prop = new Properties();
+		if (mFile.exists()) {
+			InputStream in = new FileInputStream(mFile);
+			try {
+				prop.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return prop;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+public class HmacVerifierTest {
+	// HMAC-SHA256 of "what do ya want\0for nothing?\0\0" keyed by "Jefe", as RFC 4231 case 2 with the request's separators
+	private static final String KNOWN_HMAC = "c9c20a952f435a925a4974ca0fc0f7e0ba86361a5faa01a77eeb8f612607f231";
+
+	private static String reference(String passphrase, String challenge, String action, String newPassphrase) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(passphrase.getBytes("UTF-8"), "HmacSHA256"));
+		mac.update((challenge + "\0" + action + "\0" + newPassphrase + "\0").getBytes("UTF-8"));
+		StringBuilder hex = new StringBuilder();
+		for (byte b : mac.doFinal())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	@Test
+	public void knownVector() {
+		HmacVerifier verifier = new HmacVerifier();
+		assertTrue(verifier.verify("Jefe", "what do ya want", "for nothing?", "", KNOWN_HMAC));
+		// a missing new passphrase is the same as an empty one
+		assertTrue(verifier.verify("Jefe", "what do ya want", "for nothing?", null, KNOWN_HMAC));
+		assertTrue(verifier.verify("Jefe", "what do ya want", "for nothing?", "", KNOWN_HMAC.toUpperCase()));
+	}
+
+	@Test
+	public void wrongOrMalformedHmacIsRejected() {
+		HmacVerifier verifier = new HmacVerifier();
+		String tampered = KNOWN_HMAC.substring(0, KNOWN_HMAC.length() - 1) + "0";
+		assertFalse(verifier.verify("Jefe", "what do ya want", "for nothing?", "", tampered));
+		assertFalse(verifier.verify("Jefe", "what do ya want", "for nothing?", "", KNOWN_HMAC.substring(2)));
+		assertFalse(verifier.verify("Jefe", "what do ya want", "for nothing?", "", "zz" + KNOWN_HMAC.substring(2)));
+		assertFalse(verifier.verify("jefe", "what do ya want", "for nothing?", "", KNOWN_HMAC));
+		assertFalse(verifier.verify("Jefe", "what do ya want", "for nothing!", "", KNOWN_HMAC));
+		assertFalse(verifier.verify("Jefe", null, "for nothing?", "", KNOWN_HMAC));
+	}
+
+	@Test
+	public void matchesTheJceMac() throws Exception {
+		StringBuilder longPassphrase = new StringBuilder();
+		// longer than a block, so the key is hashed first
+		for (int i = 0; i < 20; i++)
+			longPassphrase.append("pass\u00e9");
+		String[][] requests = new String[][] {
+				{"TapLock", "1234567890abcdef", TapLockServer.ACTION_UNLOCK, ""},
+				{longPassphrase.toString(), "challenge", TapLockServer.ACTION_PASSPHRASE, "new \u20ac passphrase"},
+				{"\ud83d\udd12", "c", TapLockServer.ACTION_LOCK, "\u00e9\ud83d\udd13"}};
+		HmacVerifier verifier = new HmacVerifier();
+		// each verify switches passphrase, and the last goes back to the first
+		for (String[] request : requests)
+			assertTrue(request[0], verifier.verify(request[0], request[1], request[2], request[3], reference(request[0], request[1], request[2], request[3])));
+		String[] first = requests[0];
+		assertTrue(verifier.verify(first[0], first[1], first[2], first[3], reference(first[0], first[1], first[2], first[3])));
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class LockStateTrackerTest {
+
+	@Test
+	public void unknownUntilReported() throws Exception {
+		LockStateTracker tracker = new LockStateTracker(new LockStateTracker.ManualBackend());
+		tracker.start();
+		assertEquals(LockStateTracker.STATE_UNKNOWN, tracker.getState());
+		assertNull(tracker.getToggleAction());
+	}
+
+	@Test
+	public void toggleResolvesFromTheBackend() throws Exception {
+		LockStateTracker.ManualBackend backend = new LockStateTracker.ManualBackend();
+		LockStateTracker tracker = new LockStateTracker(backend);
+		tracker.start();
+		backend.setLocked(true);
+		assertEquals(LockStateTracker.STATE_LOCKED, tracker.getState());
+		assertEquals(TapLockServer.ACTION_UNLOCK, tracker.getToggleAction());
+		backend.setLocked(false);
+		assertEquals(LockStateTracker.STATE_UNLOCKED, tracker.getState());
+		assertEquals(TapLockServer.ACTION_LOCK, tracker.getToggleAction());
+	}
+
+	@Test
+	public void toggleResolvesFromTheServer() throws Exception {
+		LockStateTracker tracker = new LockStateTracker(new LockStateTracker.ManualBackend());
+		tracker.start();
+		tracker.setLocked(false);
+		assertEquals(TapLockServer.ACTION_LOCK, tracker.getToggleAction());
+		tracker.setLocked(true);
+		assertEquals(TapLockServer.ACTION_UNLOCK, tracker.getToggleAction());
+	}
+
+	@Test
+	public void unknownAgainWhenTheStateIsLost() throws Exception {
+		LockStateTracker.ManualBackend backend = new LockStateTracker.ManualBackend();
+		LockStateTracker tracker = new LockStateTracker(backend);
+		tracker.start();
+		backend.setLocked(true);
+		tracker.setUnknown();
+		assertEquals(LockStateTracker.STATE_UNKNOWN, tracker.getState());
+		assertNull(tracker.getToggleAction());
+	}
+
+	@Test
+	public void stoppedBackendReportsNothing() throws Exception {
+		LockStateTracker.ManualBackend backend = new LockStateTracker.ManualBackend();
+		LockStateTracker tracker = new LockStateTracker(backend);
+		tracker.start();
+		backend.setLocked(true);
+		tracker.stop();
+		assertEquals(LockStateTracker.STATE_UNKNOWN, tracker.getState());
+		backend.setLocked(false);
+		assertEquals(LockStateTracker.STATE_UNKNOWN, tracker.getState());
+		assertNull(tracker.getToggleAction());
+	}
+}
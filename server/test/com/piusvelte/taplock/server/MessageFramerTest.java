@@ -0,0 +1,139 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class MessageFramerTest {
+
+	/**
+	 * Hands out at most a few bytes per read, like a slow RFCOMM link.
+	 */
+	private static class TrickleInputStream extends InputStream {
+		private final InputStream mIn;
+		private final int mChunk;
+
+		TrickleInputStream(byte[] bytes, int chunk) {
+			mIn = new ByteArrayInputStream(bytes);
+			mChunk = chunk;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return mIn.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return mIn.read(b, off, Math.min(len, mChunk));
+		}
+	}
+
+	private static byte[] frame(String... messages) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessageFramer framer = new MessageFramer(null, out, MessageFramer.MODE_FRAMED);
+		for (String message : messages)
+			framer.write(message);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void legacyModeIsDetectedFromTheOpeningBrace() throws IOException {
+		MessageFramer framer = new MessageFramer(new ByteArrayInputStream("{\"action\":\"lock\"}".getBytes("UTF-8")), null);
+		assertEquals("{\"action\":\"lock\"}", framer.read());
+		assertEquals(MessageFramer.MODE_LEGACY, framer.getMode());
+		assertNull(framer.read());
+	}
+
+	@Test
+	public void framedModeIsDetectedFromTheLengthHeader() throws IOException {
+		MessageFramer framer = new MessageFramer(new ByteArrayInputStream(frame("{\"action\":\"unlock\"}")), null);
+		assertEquals("{\"action\":\"unlock\"}", framer.read());
+		assertEquals(MessageFramer.MODE_FRAMED, framer.getMode());
+		assertNull(framer.read());
+	}
+
+	@Test
+	public void legacyMessagesSplitAndJoinedAcrossReads() throws IOException {
+		// braces and escaped quotes inside strings don't end the message
+		String first = "{\"passphrase\":\"}{\\\"\",\"nested\":{\"a\":1}}";
+		String second = "{\"action\":\"toggle\"}";
+		byte[] bytes = (first + " \n" + second).getBytes("UTF-8");
+		for (int chunk = 1; chunk <= bytes.length; chunk++) {
+			MessageFramer framer = new MessageFramer(new TrickleInputStream(bytes, chunk), null);
+			assertEquals("chunk " + chunk, first, framer.read());
+			assertEquals("chunk " + chunk, second, framer.read());
+			assertNull(framer.read());
+		}
+	}
+
+	@Test
+	public void framedMessagesSplitAndJoinedAcrossReads() throws IOException {
+		StringBuilder large = new StringBuilder("{\"hmac\":\"");
+		// bigger than the initial buffer, so it has to grow mid message
+		for (int i = 0; i < 3000; i++)
+			large.append('a');
+		large.append("\"}");
+		byte[] bytes = frame("{}", large.toString(), "{\"x\":\"\u00e9\"}");
+		for (int chunk : new int[] {1, 3, 4, 5, 1024, bytes.length}) {
+			MessageFramer framer = new MessageFramer(new TrickleInputStream(bytes, chunk), null);
+			assertEquals("{}", framer.read());
+			assertEquals(large.toString(), framer.read());
+			assertEquals("{\"x\":\"\u00e9\"}", framer.read());
+			assertNull(framer.read());
+		}
+	}
+
+	@Test
+	public void streamEndingMidMessageReturnsNull() throws IOException {
+		byte[] bytes = frame("{\"action\":\"lock\"}");
+		byte[] torn = new byte[bytes.length - 1];
+		System.arraycopy(bytes, 0, torn, 0, torn.length);
+		assertNull(new MessageFramer(new ByteArrayInputStream(torn), null).read());
+		assertNull(new MessageFramer(new ByteArrayInputStream("{\"action\":".getBytes("UTF-8")), null).read());
+	}
+
+	@Test
+	public void oversizedFrameIsRejected() {
+		byte[] header = new byte[] {0x7f, 0, 0, 0};
+		try {
+			new MessageFramer(new ByteArrayInputStream(header), null).read();
+			fail("expected an IOException");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void writeIsUnframedUntilTheModeIsKnown() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new MessageFramer(null, out).write("{\"challenge\":\"c\"}");
+		assertEquals("{\"challenge\":\"c\"}", out.toString("UTF-8"));
+	}
+}
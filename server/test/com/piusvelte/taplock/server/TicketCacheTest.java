@@ -0,0 +1,89 @@
+/*
+ * TapLock
+ * Copyright (C) 2012 Bryan Emmanuel
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  Bryan Emmanuel piusvelte@gmail.com
+ */
+package com.piusvelte.taplock.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TicketCacheTest {
+	private static final String DEVICE = "00:11:22:33:44:55";
+	private static final String OTHER_DEVICE = "66:77:88:99:AA:BB";
+
+	@Test
+	public void ticketIsOnlyGoodOnce() {
+		TicketCache tickets = new TicketCache(60000);
+		tickets.put(DEVICE, "challenge");
+		assertTrue(tickets.redeem(DEVICE, "challenge"));
+		assertFalse(tickets.redeem(DEVICE, "challenge"));
+	}
+
+	@Test
+	public void ticketIsBoundToItsDevice() {
+		TicketCache tickets = new TicketCache(60000);
+		tickets.put(DEVICE, "challenge");
+		assertFalse(tickets.redeem(OTHER_DEVICE, "challenge"));
+		assertFalse(tickets.redeem(DEVICE, "other"));
+		assertTrue(tickets.redeem(DEVICE, "challenge"));
+	}
+
+	@Test
+	public void ticketExpires() throws InterruptedException {
+		TicketCache tickets = new TicketCache(50);
+		tickets.put(DEVICE, "stale");
+		Thread.sleep(100);
+		tickets.put(DEVICE, "fresh");
+		assertFalse(tickets.redeem(DEVICE, "stale"));
+		assertTrue(tickets.redeem(DEVICE, "fresh"));
+	}
+
+	@Test
+	public void oldestTicketsAndDevicesAreForgotten() {
+		TicketCache tickets = new TicketCache(2, 2, 60000);
+		tickets.put(DEVICE, "first");
+		tickets.put(DEVICE, "second");
+		tickets.put(DEVICE, "third");
+		assertFalse(tickets.redeem(DEVICE, "first"));
+		assertTrue(tickets.redeem(DEVICE, "second"));
+		tickets.put(OTHER_DEVICE, "other");
+		tickets.put("CC:DD:EE:FF:00:11", "newest");
+		// DEVICE was seen least recently
+		assertFalse(tickets.redeem(DEVICE, "third"));
+		assertTrue(tickets.redeem(OTHER_DEVICE, "other"));
+		assertTrue(tickets.redeem("CC:DD:EE:FF:00:11", "newest"));
+	}
+
+	@Test
+	public void noTicketsWithoutATimeout() {
+		TicketCache tickets = new TicketCache(0);
+		assertFalse(tickets.isEnabled());
+		tickets.put(DEVICE, "challenge");
+		assertFalse(tickets.redeem(DEVICE, "challenge"));
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		TicketCache tickets = new TicketCache(60000);
+		tickets.put(DEVICE, "challenge");
+		tickets.clear();
+		assertFalse(tickets.redeem(DEVICE, "challenge"));
+	}
+}